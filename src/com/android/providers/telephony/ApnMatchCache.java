@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.telephony.SubscriptionManager;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A cache of the APNs matching the SIM of a subscription, as returned by
+ * TelephonyProvider#getSubscriptionMatchingAPNList, so that data connection setup reading the
+ * same list again and again doesn't have to query the carriers table and match every row
+ * against the SIM each time.
+ *
+ * Results are keyed by the query, which includes the MCC/MNC and carrier id of the SIM, by
+ * subscription and by the SIM records that MVNO APNs are matched against. Every write to the
+ * carriers table drops the whole cache, and so does a change of the subscriptions, which is why
+ * nothing is cached until a listener for those is registered on first use. Matching reads the
+ * carriers table outside of the provider lock, so a write may land in the middle of it; the
+ * result is then returned without being cached, as the generation it started with is gone.
+ */
+public class ApnMatchCache {
+    private static final String TAG = "ApnMatchCache";
+
+    private static final int MAX_SIZE = 16;
+
+    /**
+     * The matching APNs, as rows of the given columns.
+     */
+    static class Result {
+        final String[] columnNames;
+        final List<Object[]> rows;
+
+        Result(String[] columnNames, List<Object[]> rows) {
+            this.columnNames = columnNames;
+            this.rows = Collections.unmodifiableList(rows);
+        }
+
+        /**
+         * Returns a new cursor over the rows.
+         */
+        Cursor toCursor() {
+            MatrixCursor cursor = new MatrixCursor(columnNames, rows.size());
+            for (Object[] row : rows) {
+                cursor.addRow(row);
+            }
+            return cursor;
+        }
+    }
+
+    private final LruCache<String, Result> mCache = new LruCache<>(MAX_SIZE);
+    private long mGeneration;
+    private boolean mRegisterAttempted;
+    private boolean mRegistered;
+
+    private final SubscriptionManager.OnSubscriptionsChangedListener mSubscriptionsListener =
+            new SubscriptionManager.OnSubscriptionsChangedListener() {
+                @Override
+                public void onSubscriptionsChanged() {
+                    invalidate();
+                }
+            };
+
+    /**
+     * Starts dropping the cache whenever the subscriptions change. Does nothing if already
+     * attempted. This has to be called outside of the provider lock, since the subscription
+     * manager may query the provider.
+     */
+    void register(Context context) {
+        synchronized (this) {
+            if (mRegisterAttempted) {
+                return;
+            }
+            mRegisterAttempted = true;
+        }
+        SubscriptionManager subManager = context.getSystemService(SubscriptionManager.class);
+        if (subManager == null) {
+            return;
+        }
+        try {
+            subManager.addOnSubscriptionsChangedListener(Runnable::run, mSubscriptionsListener);
+            synchronized (this) {
+                mRegistered = true;
+            }
+        } catch (RuntimeException e) {
+            // Without the listener, the results can't be cached.
+            Log.e(TAG, "register: failed to listen to subscription changes", e);
+        }
+    }
+
+    /**
+     * Returns the cached result of the given query, or null if it has to be run.
+     */
+    synchronized Result get(String key) {
+        return mRegistered ? mCache.get(key) : null;
+    }
+
+    /**
+     * Returns the current generation, to be passed to {@link #put} once the result of the query
+     * that is about to be run is known.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches the result of the given query, unless the cache was invalidated since
+     * {@code generation} was obtained.
+     */
+    synchronized void put(String key, Result result, long generation) {
+        if (mRegistered && generation == mGeneration) {
+            mCache.put(key, result);
+        }
+    }
+
+    /**
+     * Drops all the cached results. Call this after writing to the carriers table.
+     */
+    synchronized void invalidate() {
+        mGeneration++;
+        mCache.evictAll();
+    }
+}
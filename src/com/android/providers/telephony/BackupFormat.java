@@ -0,0 +1,589 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.util.JsonReader;
+import android.util.JsonWriter;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The formats of the SMS and MMS backup files: JSON, and a compact binary encoding of the same
+ * structure. {@link TelephonyBackupAgent} writes and reads both through the {@link Writer} and
+ * {@link Reader} interfaces, which have the subset of the JsonWriter and JsonReader methods that
+ * it uses.
+ *
+ * The compact format starts with a magic number and a version, followed by a stream of tokens.
+ * Names are written in full the first time only, then referred to by index. Strings that are
+ * decimal integers, like most of the columns of a message, are written as variable length
+ * integers and read back as the same strings.
+ */
+public class BackupFormat {
+    private static final int COMPACT_MAGIC = 0x534d4246; // "SMBF"
+    @VisibleForTesting
+    static final int COMPACT_VERSION = 1;
+
+    // Tokens of the compact format.
+    private static final int TOKEN_BEGIN_ARRAY = 1;
+    private static final int TOKEN_END_ARRAY = 2;
+    private static final int TOKEN_BEGIN_OBJECT = 3;
+    private static final int TOKEN_END_OBJECT = 4;
+    // A new name, followed by its length and UTF-8 bytes. Its index is the number of names
+    // defined before it.
+    private static final int TOKEN_NAME = 5;
+    // A name defined before, followed by its index.
+    private static final int TOKEN_NAME_REF = 6;
+    // Followed by the length and the UTF-8 bytes of the string.
+    private static final int TOKEN_STRING = 7;
+    // Followed by the zigzag encoded integer.
+    private static final int TOKEN_LONG = 8;
+    private static final int TOKEN_TRUE = 9;
+    private static final int TOKEN_FALSE = 10;
+    private static final int TOKEN_NULL = 11;
+
+    private static final int NO_TOKEN = -1;
+
+    /**
+     * Writes a backup file, see {@link JsonWriter}.
+     */
+    interface Writer extends Closeable {
+        Writer beginArray() throws IOException;
+        Writer endArray() throws IOException;
+        Writer beginObject() throws IOException;
+        Writer endObject() throws IOException;
+        Writer name(String name) throws IOException;
+        Writer value(String value) throws IOException;
+        Writer value(long value) throws IOException;
+        Writer value(boolean value) throws IOException;
+    }
+
+    /**
+     * Reads a backup file, see {@link JsonReader}.
+     */
+    interface Reader extends Closeable {
+        void beginArray() throws IOException;
+        void endArray() throws IOException;
+        void beginObject() throws IOException;
+        void endObject() throws IOException;
+        boolean hasNext() throws IOException;
+        String nextName() throws IOException;
+        String nextString() throws IOException;
+        int nextInt() throws IOException;
+        boolean nextBoolean() throws IOException;
+        void skipValue() throws IOException;
+    }
+
+    /**
+     * Returns a writer of JSON to the given writer. Closing it closes the JSON writer.
+     */
+    static Writer json(JsonWriter jsonWriter) {
+        return new JsonBackupWriter(jsonWriter);
+    }
+
+    /**
+     * Returns a reader of JSON from the given reader. Closing it closes the JSON reader.
+     */
+    static Reader json(JsonReader jsonReader) {
+        return new JsonBackupReader(jsonReader);
+    }
+
+    /**
+     * Returns a writer of the compact format to the given stream, which should be buffered.
+     * Closing it closes the stream.
+     */
+    static Writer compact(OutputStream out) throws IOException {
+        return new CompactWriter(out);
+    }
+
+    /**
+     * Returns a reader of the compact format from the given stream, which should be buffered.
+     * Closing it closes the stream.
+     *
+     * @throws IOException if the stream isn't in a version of the compact format that can be
+     *         read
+     */
+    static Reader compact(InputStream in) throws IOException {
+        return new CompactReader(in);
+    }
+
+    private static final class JsonBackupWriter implements Writer {
+        private final JsonWriter mWriter;
+
+        JsonBackupWriter(JsonWriter writer) {
+            mWriter = writer;
+        }
+
+        @Override
+        public Writer beginArray() throws IOException {
+            mWriter.beginArray();
+            return this;
+        }
+
+        @Override
+        public Writer endArray() throws IOException {
+            mWriter.endArray();
+            return this;
+        }
+
+        @Override
+        public Writer beginObject() throws IOException {
+            mWriter.beginObject();
+            return this;
+        }
+
+        @Override
+        public Writer endObject() throws IOException {
+            mWriter.endObject();
+            return this;
+        }
+
+        @Override
+        public Writer name(String name) throws IOException {
+            mWriter.name(name);
+            return this;
+        }
+
+        @Override
+        public Writer value(String value) throws IOException {
+            mWriter.value(value);
+            return this;
+        }
+
+        @Override
+        public Writer value(long value) throws IOException {
+            mWriter.value(value);
+            return this;
+        }
+
+        @Override
+        public Writer value(boolean value) throws IOException {
+            mWriter.value(value);
+            return this;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mWriter.close();
+        }
+    }
+
+    private static final class JsonBackupReader implements Reader {
+        private final JsonReader mReader;
+
+        JsonBackupReader(JsonReader reader) {
+            mReader = reader;
+        }
+
+        @Override
+        public void beginArray() throws IOException {
+            mReader.beginArray();
+        }
+
+        @Override
+        public void endArray() throws IOException {
+            mReader.endArray();
+        }
+
+        @Override
+        public void beginObject() throws IOException {
+            mReader.beginObject();
+        }
+
+        @Override
+        public void endObject() throws IOException {
+            mReader.endObject();
+        }
+
+        @Override
+        public boolean hasNext() throws IOException {
+            return mReader.hasNext();
+        }
+
+        @Override
+        public String nextName() throws IOException {
+            return mReader.nextName();
+        }
+
+        @Override
+        public String nextString() throws IOException {
+            return mReader.nextString();
+        }
+
+        @Override
+        public int nextInt() throws IOException {
+            return mReader.nextInt();
+        }
+
+        @Override
+        public boolean nextBoolean() throws IOException {
+            return mReader.nextBoolean();
+        }
+
+        @Override
+        public void skipValue() throws IOException {
+            mReader.skipValue();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mReader.close();
+        }
+    }
+
+    private static final class CompactWriter implements Writer {
+        private final DataOutputStream mOut;
+        private final Map<String, Integer> mNames = new HashMap<>();
+
+        CompactWriter(OutputStream out) throws IOException {
+            mOut = new DataOutputStream(out);
+            mOut.writeInt(COMPACT_MAGIC);
+            mOut.writeByte(COMPACT_VERSION);
+        }
+
+        @Override
+        public Writer beginArray() throws IOException {
+            mOut.writeByte(TOKEN_BEGIN_ARRAY);
+            return this;
+        }
+
+        @Override
+        public Writer endArray() throws IOException {
+            mOut.writeByte(TOKEN_END_ARRAY);
+            return this;
+        }
+
+        @Override
+        public Writer beginObject() throws IOException {
+            mOut.writeByte(TOKEN_BEGIN_OBJECT);
+            return this;
+        }
+
+        @Override
+        public Writer endObject() throws IOException {
+            mOut.writeByte(TOKEN_END_OBJECT);
+            return this;
+        }
+
+        @Override
+        public Writer name(String name) throws IOException {
+            Integer index = mNames.get(name);
+            if (index != null) {
+                mOut.writeByte(TOKEN_NAME_REF);
+                writeVarint(index);
+            } else {
+                mNames.put(name, mNames.size());
+                mOut.writeByte(TOKEN_NAME);
+                writeString(name);
+            }
+            return this;
+        }
+
+        @Override
+        public Writer value(String value) throws IOException {
+            if (value == null) {
+                mOut.writeByte(TOKEN_NULL);
+            } else if (isCanonicalLong(value)) {
+                value(Long.parseLong(value));
+            } else {
+                mOut.writeByte(TOKEN_STRING);
+                writeString(value);
+            }
+            return this;
+        }
+
+        @Override
+        public Writer value(long value) throws IOException {
+            mOut.writeByte(TOKEN_LONG);
+            writeVarint((value << 1) ^ (value >> 63));
+            return this;
+        }
+
+        @Override
+        public Writer value(boolean value) throws IOException {
+            mOut.writeByte(value ? TOKEN_TRUE : TOKEN_FALSE);
+            return this;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOut.close();
+        }
+
+        private void writeString(String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            mOut.write(bytes);
+        }
+
+        private void writeVarint(long value) throws IOException {
+            while ((value & ~0x7fL) != 0) {
+                mOut.writeByte((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            mOut.writeByte((int) value);
+        }
+
+        /**
+         * Whether the string is what Long.toString() returns for some long, so that it can be
+         * written as that long and read back as the same string.
+         */
+        private static boolean isCanonicalLong(String s) {
+            final int length = s.length();
+            final int start = s.startsWith("-") ? 1 : 0;
+            if (length == start || length - start > 19) {
+                return false;
+            }
+            if (s.charAt(start) == '0' && (length > start + 1 || start == 1)) {
+                // Leading zeroes, and "-0".
+                return false;
+            }
+            for (int i = start; i < length; i++) {
+                final char c = s.charAt(i);
+                if (c < '0' || c > '9') {
+                    return false;
+                }
+            }
+            try {
+                Long.parseLong(s);
+                return true;
+            } catch (NumberFormatException e) {
+                // Out of range.
+                return false;
+            }
+        }
+    }
+
+    private static final class CompactReader implements Reader {
+        private final DataInputStream mIn;
+        private final List<String> mNames = new ArrayList<>();
+        private int mPeeked = NO_TOKEN;
+
+        CompactReader(InputStream in) throws IOException {
+            mIn = new DataInputStream(in);
+            if (mIn.readInt() != COMPACT_MAGIC) {
+                throw new IOException("Not a compact backup");
+            }
+            final int version = mIn.readUnsignedByte();
+            if (version != COMPACT_VERSION) {
+                throw new IOException("Unsupported compact backup version " + version);
+            }
+        }
+
+        @Override
+        public void beginArray() throws IOException {
+            consume(TOKEN_BEGIN_ARRAY);
+        }
+
+        @Override
+        public void endArray() throws IOException {
+            consume(TOKEN_END_ARRAY);
+        }
+
+        @Override
+        public void beginObject() throws IOException {
+            consume(TOKEN_BEGIN_OBJECT);
+        }
+
+        @Override
+        public void endObject() throws IOException {
+            consume(TOKEN_END_OBJECT);
+        }
+
+        @Override
+        public boolean hasNext() throws IOException {
+            final int token = peek();
+            return token != TOKEN_END_ARRAY && token != TOKEN_END_OBJECT;
+        }
+
+        @Override
+        public String nextName() throws IOException {
+            final int token = peek();
+            if (token != TOKEN_NAME && token != TOKEN_NAME_REF) {
+                throw unexpected("a name");
+            }
+            return readName(next());
+        }
+
+        @Override
+        public String nextString() throws IOException {
+            switch (peek()) {
+                case TOKEN_STRING:
+                    next();
+                    return readString();
+                case TOKEN_LONG:
+                    next();
+                    return Long.toString(readLong());
+                default:
+                    throw unexpected("a string");
+            }
+        }
+
+        @Override
+        public int nextInt() throws IOException {
+            final long value;
+            switch (peek()) {
+                case TOKEN_LONG:
+                    next();
+                    value = readLong();
+                    break;
+                case TOKEN_STRING:
+                    next();
+                    return Integer.parseInt(readString());
+                default:
+                    throw unexpected("an int");
+            }
+            if (value != (int) value) {
+                throw new NumberFormatException("Expected an int but was " + value);
+            }
+            return (int) value;
+        }
+
+        @Override
+        public boolean nextBoolean() throws IOException {
+            switch (peek()) {
+                case TOKEN_TRUE:
+                    next();
+                    return true;
+                case TOKEN_FALSE:
+                    next();
+                    return false;
+                default:
+                    throw unexpected("a boolean");
+            }
+        }
+
+        @Override
+        public void skipValue() throws IOException {
+            int depth = 0;
+            do {
+                final int token = next();
+                switch (token) {
+                    case TOKEN_BEGIN_ARRAY:
+                    case TOKEN_BEGIN_OBJECT:
+                        depth++;
+                        break;
+                    case TOKEN_END_ARRAY:
+                    case TOKEN_END_OBJECT:
+                        depth--;
+                        break;
+                    case TOKEN_NAME:
+                    case TOKEN_NAME_REF:
+                        // Names of nested objects still have to be defined for later references.
+                        readName(token);
+                        break;
+                    case TOKEN_STRING:
+                        readString();
+                        break;
+                    case TOKEN_LONG:
+                        readLong();
+                        break;
+                    default:
+                        break;
+                }
+            } while (depth > 0);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+
+        private int peek() throws IOException {
+            if (mPeeked == NO_TOKEN) {
+                final int token = mIn.read();
+                if (token < 0) {
+                    throw new EOFException("End of compact backup");
+                }
+                if (token < TOKEN_BEGIN_ARRAY || token > TOKEN_NULL) {
+                    throw new IOException("Unknown token " + token);
+                }
+                mPeeked = token;
+            }
+            return mPeeked;
+        }
+
+        private int next() throws IOException {
+            final int token = peek();
+            mPeeked = NO_TOKEN;
+            return token;
+        }
+
+        private void consume(int token) throws IOException {
+            if (peek() != token) {
+                throw unexpected("token " + token);
+            }
+            next();
+        }
+
+        private IllegalStateException unexpected(String expected) {
+            return new IllegalStateException("Expected " + expected + " but was token " + mPeeked);
+        }
+
+        private String readName(int token) throws IOException {
+            if (token == TOKEN_NAME) {
+                final String name = readString();
+                mNames.add(name);
+                return name;
+            }
+            final long index = readVarint();
+            if (index >= mNames.size()) {
+                throw new IOException("Unknown name index " + index);
+            }
+            return mNames.get((int) index);
+        }
+
+        private String readString() throws IOException {
+            final long length = readVarint();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("String too long: " + length);
+            }
+            byte[] bytes = new byte[(int) length];
+            mIn.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private long readLong() throws IOException {
+            final long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final int b = mIn.readUnsignedByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+    }
+}
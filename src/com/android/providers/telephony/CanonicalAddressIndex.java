@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.Telephony.CanonicalAddressesColumns;
+import android.provider.Telephony.Mms;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A memory-resident index over the canonical_addresses table, so that resolving an address to
+ * its canonical id doesn't require a scan of the whole table.
+ *
+ * Phone numbers are bucketed on their last config_phonenumber_compare_min_match digits, which
+ * is the tail that the PHONE_NUMBERS_EQUAL sqlite extension compares. All other addresses are
+ * bucketed on their exact value, matching the "address=?" comparison used for them, and also on
+ * their digits like a phone number, since PHONE_NUMBERS_EQUAL ignores the characters that made
+ * them fail {@link Mms#isPhoneNumber} and may match them against a phone number being looked
+ * up. A bucket only narrows down the candidates; callers still have to confirm a phone number
+ * match with PHONE_NUMBERS_EQUAL unless the candidate is an exact match.
+ *
+ * There is one index per database. It's loaded lazily and has to be kept in sync by every code
+ * path that writes to canonical_addresses, either with {@link #add} or, for bulk changes, with
+ * {@link #invalidate} so that it's reloaded on next use.
+ */
+public class CanonicalAddressIndex {
+    private static final String TAG = "CanonicalAddressIndex";
+
+    private static final long[] NO_CANDIDATES = new long[0];
+
+    private static final String[] LOAD_PROJECTION = new String[] {
+            CanonicalAddressesColumns._ID, CanonicalAddressesColumns.ADDRESS };
+
+    // Prefix for the keys of phone number buckets, so they can't collide with a non phone
+    // number address consisting of only digits.
+    private static final char PHONE_KEY_PREFIX = '#';
+
+    private static final Map<SQLiteDatabase, CanonicalAddressIndex> sIndices =
+            new WeakHashMap<>();
+
+    private final int mMinMatch;
+
+    // Bucket key -> canonical ids, in ascending order.
+    private final HashMap<String, List<Long>> mBuckets = new HashMap<>();
+    // Canonical id -> address, used for exact matches and to find the bucket of an id.
+    private final LongSparseArray<String> mAddresses = new LongSparseArray<>();
+    private boolean mLoaded;
+
+    @VisibleForTesting
+    CanonicalAddressIndex(int minMatch) {
+        mMinMatch = minMatch;
+    }
+
+    /**
+     * Returns the index for the canonical_addresses table of the given database, creating it if
+     * needed. The index is populated lazily on the first lookup.
+     */
+    static synchronized CanonicalAddressIndex getInstance(SQLiteDatabase db, int minMatch) {
+        CanonicalAddressIndex index = sIndices.get(db);
+        if (index == null || index.mMinMatch != minMatch) {
+            index = new CanonicalAddressIndex(minMatch);
+            sIndices.put(db, index);
+        }
+        return index;
+    }
+
+    /**
+     * Drops the index of the given database, if any, so that it's reloaded from the database on
+     * next use. Use this after changes to canonical_addresses that can't be tracked row by row.
+     */
+    static void invalidate(SQLiteDatabase db) {
+        CanonicalAddressIndex index;
+        synchronized (CanonicalAddressIndex.class) {
+            index = sIndices.get(db);
+        }
+        if (index != null) {
+            index.clear();
+        }
+    }
+
+    /**
+     * Returns the canonical ids that may be equal to the given address, in ascending order, or
+     * null if the address can't be looked up in the index and the caller has to fall back to a
+     * query on the whole table.
+     */
+    synchronized long[] getCandidates(SQLiteDatabase db, String address) {
+        String key = getKey(address);
+        if (key == null) {
+            return null;
+        }
+        if (!mLoaded) {
+            load(db);
+        }
+        List<Long> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            return NO_CANDIDATES;
+        }
+        long[] result = new long[bucket.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bucket.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether the address of the given canonical id is exactly the given address.
+     */
+    synchronized boolean isExactMatch(long id, String address) {
+        return address.equals(mAddresses.get(id));
+    }
+
+    /**
+     * Adds a newly inserted canonical address to the index.
+     */
+    synchronized void add(long id, String address) {
+        if (!mLoaded || id < 0) {
+            // Not loaded yet; the row will be picked up by the initial load.
+            return;
+        }
+        addInternal(id, address);
+    }
+
+    private synchronized void clear() {
+        mBuckets.clear();
+        mAddresses.clear();
+        mLoaded = false;
+    }
+
+    private void load(SQLiteDatabase db) {
+        mBuckets.clear();
+        mAddresses.clear();
+        try (Cursor c = db.query(MmsSmsProvider.TABLE_CANONICAL_ADDRESSES, LOAD_PROJECTION,
+                null, null, null, null, CanonicalAddressesColumns._ID)) {
+            while (c.moveToNext()) {
+                addInternal(c.getLong(0), c.getString(1));
+            }
+        }
+        mLoaded = true;
+        Log.d(TAG, "load: indexed " + mAddresses.size() + " canonical addresses");
+    }
+
+    private void addInternal(long id, String address) {
+        if (address == null) {
+            return;
+        }
+        mAddresses.put(id, address);
+        addToBucket(getKey(address), id);
+        if (!Mms.isPhoneNumber(address)) {
+            addToBucket(getPhoneNumberKey(address), id);
+        }
+    }
+
+    private void addToBucket(String key, long id) {
+        if (key == null) {
+            return;
+        }
+        List<Long> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<>(1);
+            mBuckets.put(key, bucket);
+        }
+        // Ids are almost always added in ascending order, keep the bucket sorted regardless.
+        int i = bucket.size();
+        while (i > 0 && bucket.get(i - 1) > id) {
+            i--;
+        }
+        bucket.add(i, id);
+    }
+
+    /**
+     * Returns the bucket key of the given address, or null if it has none.
+     */
+    @VisibleForTesting
+    String getKey(String address) {
+        if (address == null) {
+            return null;
+        }
+        if (!Mms.isPhoneNumber(address)) {
+            return address;
+        }
+        return getPhoneNumberKey(address);
+    }
+
+    /**
+     * Returns the bucket key of the given address as a phone number, or null if it has no
+     * digits.
+     */
+    private String getPhoneNumberKey(String address) {
+        // Keep the last mMinMatch digits, ignoring separators and other non dialable chars.
+        StringBuilder sb = new StringBuilder(mMinMatch + 1);
+        for (int i = address.length() - 1; i >= 0 && sb.length() < mMinMatch; i--) {
+            char c = address.charAt(i);
+            if (c >= '0' && c <= '9') {
+                sb.append(c);
+            }
+        }
+        if (sb.length() == 0) {
+            return null;
+        }
+        return sb.append(PHONE_KEY_PREFIX).reverse().toString();
+    }
+}
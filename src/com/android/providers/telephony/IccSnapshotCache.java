@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A cache of the SMS messages stored on the ICC of each subscription, already converted to
+ * cursor rows, so that reading them again, or reading a single one, doesn't read the whole
+ * ICC again.
+ *
+ * The snapshot of a subscription has to be invalidated whenever the ICC is written through the
+ * provider, and all of them when the state of a SIM changes. Messages the modem stores on the
+ * ICC when it receives them don't go through the provider, so snapshots also expire after 30
+ * seconds. Reading an ICC takes a while: a read that was overtaken by a deletion gets a stale
+ * generation from {@link #getGeneration}, and {@link #put} drops what it read.
+ */
+public class IccSnapshotCache {
+    private static final long EXPIRY_MS = 30 * 1000;
+
+    /**
+     * The messages of an ICC, as rows of SmsProvider.ICC_COLUMNS.
+     */
+    static class Snapshot {
+        final List<Object[]> rows;
+        final long expiryTime;
+
+        Snapshot(List<Object[]> rows, long expiryTime) {
+            this.rows = Collections.unmodifiableList(rows);
+            this.expiryTime = expiryTime;
+        }
+    }
+
+    private final SparseArray<Snapshot> mSnapshots = new SparseArray<>();
+    private long mGeneration;
+
+    /**
+     * Returns the cached messages of the ICC of the given subscription, or null if they have to
+     * be read.
+     */
+    synchronized List<Object[]> get(int subId) {
+        Snapshot snapshot = mSnapshots.get(subId);
+        if (snapshot == null) {
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() >= snapshot.expiryTime) {
+            mSnapshots.remove(subId);
+            return null;
+        }
+        return snapshot.rows;
+    }
+
+    /**
+     * Returns the current generation, to be passed to {@link #put} once the messages that are
+     * about to be read are known.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches the messages of the ICC of the given subscription, unless the cache was
+     * invalidated since {@code generation} was obtained.
+     */
+    synchronized void put(int subId, List<Object[]> rows, long generation) {
+        if (generation == mGeneration) {
+            mSnapshots.put(subId, new Snapshot(rows, SystemClock.elapsedRealtime() + EXPIRY_MS));
+        }
+    }
+
+    /**
+     * Drops the cached messages of the given subscription. Call this after writing to its ICC.
+     */
+    synchronized void invalidate(int subId) {
+        mGeneration++;
+        mSnapshots.remove(subId);
+    }
+
+    /**
+     * Drops the cached messages of all the subscriptions.
+     */
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mSnapshots.clear();
+    }
+}
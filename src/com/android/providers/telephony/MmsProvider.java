@@ -35,7 +35,9 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.Binder;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.BaseColumns;
@@ -64,6 +66,7 @@ import com.google.android.mms.util.DownloadDrmHelper;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 
 /**
  * The class to provide base facility to access MMS related content,
@@ -81,7 +84,24 @@ public class MmsProvider extends ContentProvider {
     // The name of parts directory. The full dir is "app_parts".
     static final String PARTS_DIR_NAME = "parts";
 
+    // Call() methods and parameters
+    // Inserts messages with their parts and addresses in a single transaction. Used by
+    // TelephonyBackupAgent to restore MMS.
+    static final String METHOD_BULK_INSERT = "bulk_insert";
+    // The messages, as an ArrayList<Bundle> with the keys below.
+    static final String MESSAGES_KEY = "messages";
+    // Values of the pdu of a message, as ContentValues.
+    static final String PDU_KEY = "pdu";
+    // Values of the parts of a message, as an ArrayList<ContentValues>.
+    static final String PARTS_KEY = "parts";
+    // Values of the addresses of a message, as an ArrayList<ContentValues>.
+    static final String ADDRS_KEY = "addrs";
+    // Id of each inserted message, as a long[].
+    static final String MMS_IDS_KEY = "mms_ids";
+
     private ProviderUtilWrapper providerUtilWrapper = new ProviderUtilWrapper();
+    // The selections restricting the messages visible to each user.
+    private final SubscriptionSelectionCache mSelectionCache = new SubscriptionSelectionCache();
 
     @VisibleForTesting
     public void setProviderUtilWrapper(ProviderUtilWrapper providerUtilWrapper) {
@@ -193,6 +213,10 @@ public class MmsProvider extends ContentProvider {
                 qb.setTables(TABLE_ADDR);
                 qb.appendWhere(Addr.MSG_ID + "=" + uri.getPathSegments().get(0));
                 break;
+            case MMS_ALL_ADDR:
+                // Addresses of many messages at once, used by the backup.
+                qb.setTables(TABLE_ADDR);
+                break;
             case MMS_REPORT_STATUS:
                 /*
                    SELECT DISTINCT address,
@@ -270,7 +294,7 @@ public class MmsProvider extends ContentProvider {
         final long token = Binder.clearCallingIdentity();
         try {
             // Filter MMS based on subId.
-            selectionBySubIds = ProviderUtil.getSelectionBySubIds(getContext(),
+            selectionBySubIds = mSelectionCache.getSelectionBySubIds(getContext(),
                     callerUserHandle);
         } finally {
             Binder.restoreCallingIdentity(token);
@@ -647,25 +671,7 @@ public class MmsProvider extends ContentProvider {
 
             res = Uri.parse(res + "/part/" + rowId);
 
-            // Don't use a trigger for updating the words table because of a bug
-            // in FTS3.  The bug is such that the call to get the last inserted
-            // row is incorrect.
-            if (plainText) {
-                // Update the words table with a corresponding row.  The words table
-                // allows us to search for words quickly, without scanning the whole
-                // table;
-                ContentValues cv = new ContentValues();
-
-                // we're using the row id of the part table row but we're also using ids
-                // from the sms table so this divides the space into two large chunks.
-                // The row ids from the part table start at 2 << 32.
-                cv.put(Telephony.MmsSms.WordsTable.ID, (2L << 32) + rowId);
-                cv.put(Telephony.MmsSms.WordsTable.INDEXED_TEXT, values.getAsString("text"));
-                cv.put(Telephony.MmsSms.WordsTable.SOURCE_ROW_ID, rowId);
-                cv.put(Telephony.MmsSms.WordsTable.TABLE_ID, 2);
-                cv.put(MmsSms.WordsTable.SUBSCRIPTION_ID, subId);
-                db.insert(TABLE_WORDS, Telephony.MmsSms.WordsTable.INDEXED_TEXT, cv);
-            }
+            // The words table is updated by a trigger for text/plain parts.
 
         } else if (table.equals(TABLE_RATE)) {
             long now = values.getAsLong(Rate.SENT_TIME);
@@ -803,7 +809,7 @@ public class MmsProvider extends ContentProvider {
         String selectionBySubIds;
         try {
             // Filter SMS based on subId.
-            selectionBySubIds = ProviderUtil.getSelectionBySubIds(getContext(),
+            selectionBySubIds = mSelectionCache.getSelectionBySubIds(getContext(),
                     callerUserHandle);
         } finally {
             Binder.restoreCallingIdentity(token);
@@ -984,7 +990,7 @@ public class MmsProvider extends ContentProvider {
         String selectionBySubIds;
         try {
             // Filter MMS based on subId.
-            selectionBySubIds = ProviderUtil.getSelectionBySubIds(getContext(),
+            selectionBySubIds = mSelectionCache.getSelectionBySubIds(getContext(),
                     callerUserHandle);
         } finally {
             Binder.restoreCallingIdentity(token);
@@ -1039,6 +1045,69 @@ public class MmsProvider extends ContentProvider {
         return count;
     }
 
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        // The manifest write permission doesn't cover call(), and the backup agent running in
+        // this app is the only caller of the bulk insert, so other uids are rejected.
+        if (Binder.getCallingUid() != Process.myUid()) {
+            Log.w(TAG, "Ignored " + method + " call from uid " + Binder.getCallingUid());
+            return null;
+        }
+        if (!METHOD_BULK_INSERT.equals(method)) {
+            Log.w(TAG, "Ignored unsupported " + method + " call");
+            return null;
+        }
+        ArrayList<Bundle> messages = extras == null
+                ? null : extras.getParcelableArrayList(MESSAGES_KEY, Bundle.class);
+        if (messages == null) {
+            Log.e(TAG, "call: missing messages for " + method);
+            return null;
+        }
+
+        // The pdu of each message is inserted first, so that its parts and addresses can be
+        // inserted with its id, like PduPersister does. Each row goes through insert() for the
+        // same checks, in a transaction so that either all the messages are inserted or none.
+        long[] mmsIds = new long[messages.size()];
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < messages.size(); i++) {
+                Bundle message = messages.get(i);
+                ContentValues pdu = message.getParcelable(PDU_KEY, ContentValues.class);
+                Uri mmsUri = pdu == null ? null : insert(Mms.CONTENT_URI, pdu);
+                if (mmsUri == null) {
+                    Log.e(TAG, "call: could not insert pdu " + i);
+                    return null;
+                }
+                mmsIds[i] = ContentUris.parseId(mmsUri);
+                if (!insertAll(Uri.withAppendedPath(mmsUri, "part"),
+                        message.getParcelableArrayList(PARTS_KEY, ContentValues.class))
+                        || !insertAll(Uri.withAppendedPath(mmsUri, "addr"),
+                        message.getParcelableArrayList(ADDRS_KEY, ContentValues.class))) {
+                    Log.e(TAG, "call: could not insert parts or addresses of pdu " + i);
+                    return null;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Bundle result = new Bundle();
+        result.putLongArray(MMS_IDS_KEY, mmsIds);
+        return result;
+    }
+
+    private boolean insertAll(Uri uri, ArrayList<ContentValues> rows) {
+        if (rows != null) {
+            for (ContentValues values : rows) {
+                if (insert(uri, values) == null) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
     @Override
     public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
         int match = sURLMatcher.match(uri);
@@ -1190,6 +1259,7 @@ public class MmsProvider extends ContentProvider {
     private static final int MMS_DRM_STORAGE_ID           = 18;
     private static final int MMS_THREADS                  = 19;
     private static final int MMS_PART_RESET_FILE_PERMISSION = 20;
+    private static final int MMS_ALL_ADDR                 = 21;
 
     private static final UriMatcher
             sURLMatcher = new UriMatcher(UriMatcher.NO_MATCH);
@@ -1209,6 +1279,7 @@ public class MmsProvider extends ContentProvider {
         sURLMatcher.addURI("mms", "#/part",     MMS_MSG_PART);
         sURLMatcher.addURI("mms", "part/#",     MMS_PART_ID);
         sURLMatcher.addURI("mms", "#/addr",     MMS_MSG_ADDR);
+        sURLMatcher.addURI("mms", "addr",       MMS_ALL_ADDR);
         sURLMatcher.addURI("mms", "rate",       MMS_SENDING_RATE);
         sURLMatcher.addURI("mms", "report-status/#",  MMS_REPORT_STATUS);
         sURLMatcher.addURI("mms", "report-request/#", MMS_REPORT_REQUEST);
@@ -28,10 +28,12 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.database.DatabaseErrorHandler;
+import android.database.DatabaseUtils;
 import android.database.DefaultDatabaseErrorHandler;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.os.FileUtils;
 import android.os.storage.StorageManager;
 import android.preference.PreferenceManager;
@@ -64,8 +66,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -267,7 +268,7 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
     private static boolean sFakeLowStorageTest = false;     // for testing only
 
     static final String DATABASE_NAME = "mmssms.db";
-    static final int DATABASE_VERSION = 69;
+    static final int DATABASE_VERSION = 71;
     private static final int IDLE_CONNECTION_TIMEOUT_MS = 30000;
 
     private final Context mContext;
@@ -312,6 +313,10 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
     }
 
     @VisibleForTesting
+    // Rebuilds the words index in the background, see WordsIndexRebuilder.
+    @VisibleForTesting
+    WordsIndexRebuilder mWordsIndexRebuilder = new WordsIndexRebuilder(this);
+
     MmsSmsDatabaseHelper(Context context, MmsSmsDatabaseErrorHandler dbErrorHandler) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION, dbErrorHandler);
         mContext = context;
@@ -366,48 +371,34 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         return sCeInstance;
     }
 
+    // Deletes the canonical addresses that aren't referenced by any thread, using the
+    // address_id index of thread_recipients. When there are no threads, this deletes all the
+    // addresses. The recipient_ids that thread_recipients couldn't parse, see
+    // jsonEachRecipientId(), are searched for the remaining addresses instead.
+    private static final String DELETE_UNREFERENCED_CANONICAL_ADDRESSES =
+            "DELETE FROM " + MmsSmsProvider.TABLE_CANONICAL_ADDRESSES +
+            " WHERE NOT EXISTS (" +
+                " SELECT 1 FROM " + MmsSmsProvider.TABLE_THREAD_RECIPIENTS +
+                " WHERE address_id = canonical_addresses._id)" +
+            " AND NOT EXISTS (" +
+                " SELECT 1 FROM " + MmsSmsProvider.TABLE_THREADS +
+                " WHERE NOT json_valid(" + getRecipientIdsJson("recipient_ids") + ")" +
+                " AND ' ' || recipient_ids || ' ' LIKE '% ' || canonical_addresses._id || ' %')";
+
     /**
      * Look through all the recipientIds referenced by the threads and then delete any
      * unreferenced rows from the canonical_addresses table.
      */
     private static void removeUnferencedCanonicalAddresses(SQLiteDatabase db) {
-        Cursor c = db.query(MmsSmsProvider.TABLE_THREADS, new String[] { "recipient_ids" },
-                null, null, null, null, null);
-        if (c != null) {
-            try {
-                if (c.getCount() == 0) {
-                    // no threads, delete all addresses
-                    int rows = db.delete("canonical_addresses", null, null);
-                } else {
-                    // Find all the referenced recipient_ids from the threads. recipientIds is
-                    // a space-separated list of recipient ids: "1 14 21"
-                    HashSet<Integer> recipientIds = new HashSet<Integer>();
-                    while (c.moveToNext()) {
-                        String[] recips = c.getString(0).split(" ");
-                        for (String recip : recips) {
-                            try {
-                                int recipientId = Integer.parseInt(recip);
-                                recipientIds.add(recipientId);
-                            } catch (Exception e) {
-                            }
-                        }
-                    }
-                    // Now build a selection string of all the unique recipient ids
-                    StringBuilder sb = new StringBuilder();
-                    Iterator<Integer> iter = recipientIds.iterator();
-                    sb.append("_id NOT IN (");
-                    while (iter.hasNext()) {
-                        sb.append(iter.next());
-                        if (iter.hasNext()) {
-                            sb.append(",");
-                        }
-                    }
-                    sb.append(")");
-                    int rows = db.delete("canonical_addresses", sb.toString(), null);
-                }
-            } finally {
-                c.close();
-            }
+        int rows;
+        try (SQLiteStatement statement =
+                db.compileStatement(DELETE_UNREFERENCED_CANONICAL_ADDRESSES)) {
+            rows = statement.executeUpdateDelete();
+        }
+        if (rows > 0) {
+            // The index is reloaded rather than patched, so it also stays right if
+            // the enclosing transaction gets rolled back.
+            CanonicalAddressIndex.invalidate(db);
         }
     }
 
@@ -430,19 +421,78 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         if (whereArgs == null) {
             whereArgs = BIND_ARGS_NONE;
         }
+        // Delete rows in the threads table if
+        // there are no more messages attached to it in either
+        // the sms or pdu tables.
+        // Note that we do this regardless of whether they match 'where'.
+        updateThreadRows(db,
+                "_id NOT IN (" +
+                    " SELECT DISTINCT thread_id FROM sms WHERE thread_id IS NOT NULL" +
+                    " UNION" +
+                    " SELECT DISTINCT thread_id FROM pdu WHERE thread_id IS NOT NULL)",
+                "EXISTS (" +
+                    " SELECT _id" +
+                    " FROM sms" +
+                    " WHERE thread_id = threads._id" +
+                    " AND (" + where + ")" +
+                    " LIMIT 1" +
+                " )",
+                whereArgs);
+    }
+
+    // Above this many threads, updating them one by one isn't cheaper than a full pass.
+    private static final int MAX_INCREMENTAL_THREAD_UPDATES = 1000;
+
+    /**
+     * Update the given threads only, typically the threads of messages that were just deleted,
+     * and delete those of them that are now empty. Unlike {@link #updateThreads(SQLiteDatabase,
+     * String, String[])}, this doesn't look at the other threads, so its cost is proportional to
+     * the number of threads touched rather than to the size of the database.
+     */
+    public static void updateThreads(SQLiteDatabase db, Collection<Long> threadIds) {
+        if (threadIds.isEmpty()) {
+            return;
+        }
+        if (threadIds.size() > MAX_INCREMENTAL_THREAD_UPDATES) {
+            updateThreads(db, null, null);
+            return;
+        }
+        StringBuilder ids = new StringBuilder("_id IN (");
+        boolean first = true;
+        for (Long threadId : threadIds) {
+            if (!first) {
+                ids.append(',');
+            }
+            ids.append(threadId.longValue());
+            first = false;
+        }
+        ids.append(')');
+        updateThreadRows(db,
+                ids +
+                " AND NOT EXISTS (SELECT _id FROM sms WHERE thread_id = threads._id)" +
+                " AND NOT EXISTS (SELECT _id FROM pdu WHERE thread_id = threads._id)",
+                ids +
+                " AND EXISTS (" +
+                    " SELECT _id" +
+                    " FROM sms" +
+                    " WHERE thread_id = threads._id" +
+                    " LIMIT 1" +
+                " )",
+                BIND_ARGS_NONE);
+    }
+
+    /**
+     * Delete the empty threads matching 'emptyThreadsWhere', then recompute the message count,
+     * date, snippet and error of the threads matching 'threadsWhere'. Both conditions apply to
+     * the threads table.
+     */
+    private static void updateThreadRows(SQLiteDatabase db, String emptyThreadsWhere,
+            String threadsWhere, String[] whereArgs) {
         db.beginTransaction();
         try {
-            // Delete rows in the threads table if
-            // there are no more messages attached to it in either
-            // the sms or pdu tables.
-            // Note that we do this regardless of whether they match 'where'.
-            int rows = db.delete(MmsSmsProvider.TABLE_THREADS,
-                    "_id NOT IN (" +
-                        " SELECT DISTINCT thread_id FROM sms WHERE thread_id IS NOT NULL" +
-                        " UNION" +
-                        " SELECT DISTINCT thread_id FROM pdu WHERE thread_id IS NOT NULL)",
-                        null);
+            int rows = db.delete(MmsSmsProvider.TABLE_THREADS, emptyThreadsWhere, null);
             if (rows > 0) {
+                ThreadIdCache.invalidate(db);
                 // If this deleted a row, let's remove orphaned canonical_addresses
                 removeUnferencedCanonicalAddresses(db);
             }
@@ -461,13 +511,7 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
                         " AND (m_type=132 OR m_type=130 OR m_type=128)" +
                         " AND " + Mms.MESSAGE_BOX + " != 3" +
                     " )" +
-                    " WHERE EXISTS (" +
-                        " SELECT _id" +
-                        " FROM sms" +
-                        " WHERE thread_id = threads._id" +
-                        " AND (" + where + ")" +
-                        " LIMIT 1" +
-                    " );",
+                    " WHERE " + threadsWhere + ";",
                     whereArgs);
 
             // Update the date and the snippet (and its character set) in
@@ -489,13 +533,7 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
                     " SET date   = (SELECT date FROM matches)," +
                         " snippet    = (SELECT snippet FROM matches)," +
                         " snippet_cs = (SELECT snippet_cs FROM matches)" +
-                    " WHERE EXISTS (" +
-                        " SELECT _id" +
-                        " FROM sms" +
-                        " WHERE thread_id = threads._id" +
-                        " AND (" + where + ")" +
-                        " LIMIT 1" +
-                    " );",
+                    " WHERE " + threadsWhere + ";",
                     whereArgs);
 
             // Update the error column of the thread to indicate if there
@@ -509,13 +547,7 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
                         " WHERE type=" + Telephony.TextBasedSmsColumns.MESSAGE_TYPE_FAILED +
                         " AND thread_id = threads._id" +
                     " )" +
-                    " WHERE EXISTS (" +
-                        " SELECT _id" +
-                        " FROM sms" +
-                        " WHERE thread_id = threads._id" +
-                        " AND (" + where + ")" +
-                        " LIMIT 1" +
-                    " );",
+                    " WHERE " + threadsWhere + ";",
                     whereArgs);
 
             db.setTransactionSuccessful();
@@ -573,6 +605,7 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         createMmsTriggers(db);
         createWordsTables(db);
         createIndices(db);
+        createThreadRecipientsTable(db);
 
         clearMmsParts();    // leave no dangling MMS attachments when rebuilding the DB
 
@@ -624,110 +657,224 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
-    // When upgrading the database we need to populate the words
-    // table with the rows out of sms and part.
-    private void populateWordsTable(SQLiteDatabase db) {
-        final String TABLE_WORDS = "words";
-        {
-            Cursor smsRows = db.query(
-                    "sms",
-                    new String[] { Sms._ID, Sms.BODY },
-                    null,
-                    null,
-                    null,
-                    null,
-                    null);
-            try {
-                if (smsRows != null) {
-                    smsRows.moveToPosition(-1);
-                    ContentValues cv = new ContentValues();
-                    while (smsRows.moveToNext()) {
-                        cv.clear();
-
-                        long id = smsRows.getLong(0);        // 0 for Sms._ID
-                        String body = smsRows.getString(1);  // 1 for Sms.BODY
-
-                        cv.put(Telephony.MmsSms.WordsTable.ID, id);
-                        cv.put(Telephony.MmsSms.WordsTable.INDEXED_TEXT, body);
-                        cv.put(Telephony.MmsSms.WordsTable.SOURCE_ROW_ID, id);
-                        cv.put(Telephony.MmsSms.WordsTable.TABLE_ID, 1);
-                        cv.put(MmsSms.WordsTable.SUBSCRIPTION_ID, -1);
-                        db.insert(TABLE_WORDS, Telephony.MmsSms.WordsTable.INDEXED_TEXT, cv);
-                    }
-                }
-            } finally {
-                if (smsRows != null) {
-                    smsRows.close();
-                }
-            }
-        }
-
-        {
-            Cursor mmsRows = db.query(
-                    "part",
-                    new String[] { Part._ID, Part.TEXT },
-                    "ct = 'text/plain'",
-                    null,
-                    null,
-                    null,
-                    null);
-            try {
-                if (mmsRows != null) {
-                    mmsRows.moveToPosition(-1);
-                    ContentValues cv = new ContentValues();
-                    while (mmsRows.moveToNext()) {
-                        cv.clear();
-
-                        long id = mmsRows.getLong(0);         // 0 for Part._ID
-                        String body = mmsRows.getString(1);   // 1 for Part.TEXT
-
-                        // we're using the row id of the part table row but we're also using ids
-                        // from the sms table so this divides the space into two large chunks.
-                        // The row ids from the part table start at 2 << 32.
-                        cv.put(Telephony.MmsSms.WordsTable.ID, (2L << 32) + id);
-                        cv.put(Telephony.MmsSms.WordsTable.INDEXED_TEXT, body);
-                        cv.put(Telephony.MmsSms.WordsTable.SOURCE_ROW_ID, id);
-                        cv.put(Telephony.MmsSms.WordsTable.TABLE_ID, 2);
-                        cv.put(MmsSms.WordsTable.SUBSCRIPTION_ID, -1);
-                        db.insert(TABLE_WORDS, Telephony.MmsSms.WordsTable.INDEXED_TEXT, cv);
-                    }
-                }
-            } finally {
-                if (mmsRows != null) {
-                    mmsRows.close();
-                }
-            }
-        }
-    }
+    // The words table indexes the sms bodies and the text parts of mms. Its rowid is the _id of
+    // the sms, or the _id of the part plus this offset, so the two don't collide.
+    static final long MMS_WORDS_ID_OFFSET = 2L << 32;
 
     private void createWordsTables(SQLiteDatabase db) {
         createWordsTables(db, -1, -1, -1);
     }
 
+    /**
+     * Returns whether the words table is an FTS5 one, rather than the FTS4 fallback that's
+     * created on SQLite builds without FTS5.
+     */
+    static boolean isWordsFts5(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM sqlite_master" +
+                " WHERE type = 'table' AND name = '" + MmsProvider.TABLE_WORDS + "'" +
+                " AND sql LIKE '%USING fts5%'", null) > 0;
+    }
+
+    @VisibleForTesting
+    boolean isFts5Available(SQLiteDatabase db) {
+        try {
+            db.execSQL("CREATE VIRTUAL TABLE temp.words_fts5_check USING fts5 (x);");
+            db.execSQL("DROP TABLE temp.words_fts5_check;");
+            return true;
+        } catch (SQLiteException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Creates the words full text search index over the sms and part tables.
+     *
+     * words is an FTS5 table with external content, so it doesn't keep a copy of the text;
+     * the indexed text and the words columns are read through the words_content view. Triggers
+     * on sms and part keep the index in sync, which requires the old values of a row when it's
+     * updated or deleted, hence the "delete" commands. Where FTS5 isn't available, words is an
+     * FTS4 table keeping its own copy of the columns instead.
+     */
     private void createWordsTables(
             SQLiteDatabase db, int oldVersion, int currentVersion, int upgradeVersion) {
         try {
+            // Check before dropping the current index, which falls back to FTS4 without FTS5.
+            final boolean fts5 = isFts5Available(db);
+            if (!fts5) {
+                Log.w(TAG, "createWordsTables: FTS5 isn't available, using FTS4");
+            }
+            db.execSQL("DROP TRIGGER IF EXISTS sms_words_insert");
+            db.execSQL("DROP TRIGGER IF EXISTS sms_words_update");
+            db.execSQL("DROP TRIGGER IF EXISTS sms_words_delete");
             db.execSQL("DROP TABLE IF EXISTS " + MmsProvider.TABLE_WORDS);
-            db.execSQL("CREATE VIRTUAL TABLE words USING FTS3 (_id INTEGER PRIMARY KEY, index_text TEXT, source_id INTEGER, table_to_use INTEGER, sub_id INTEGER);");
-
-            // monitor the sms table
-            // NOTE don't handle inserts using a trigger because it has an unwanted
-            // side effect:  the value returned for the last row ends up being the
-            // id of one of the trigger insert not the original row insert.
-            // Handle inserts manually in the provider.
-            db.execSQL("CREATE TRIGGER IF NOT EXISTS sms_words_update AFTER UPDATE ON sms "
-                + "BEGIN UPDATE words SET index_text = NEW.body "
-                + "WHERE (source_id=NEW._id AND table_to_use=1); END;");
-            db.execSQL("CREATE TRIGGER IF NOT EXISTS sms_words_delete AFTER DELETE ON sms "
-                + "BEGIN DELETE FROM words WHERE source_id = OLD._id AND table_to_use = 1; END;");
-
-            populateWordsTable(db);
+            db.execSQL("DROP VIEW IF EXISTS words_content");
+            WordsIndexRebuilder.createCheckpointTable(db);
+
+            if (fts5) {
+                db.execSQL("CREATE VIEW words_content AS" +
+                        " SELECT _id AS _id, body AS index_text, _id AS source_id," +
+                        " 1 AS table_to_use, sub_id" +
+                        " FROM sms" +
+                        " UNION ALL" +
+                        " SELECT " + MMS_WORDS_ID_OFFSET + " + _id, text, _id, 2, sub_id" +
+                        " FROM part" +
+                        " WHERE ct = 'text/plain';");
+                db.execSQL("CREATE VIRTUAL TABLE words USING fts5 (index_text," +
+                        " _id UNINDEXED, source_id UNINDEXED, table_to_use UNINDEXED," +
+                        " sub_id UNINDEXED," +
+                        " content='words_content', content_rowid='_id', prefix='2 3');");
+            } else {
+                db.execSQL("CREATE VIRTUAL TABLE words USING fts4 (index_text, _id, source_id," +
+                        " table_to_use, sub_id, notindexed=_id, notindexed=source_id," +
+                        " notindexed=table_to_use, notindexed=sub_id, prefix='2,3');");
+            }
+
+            // monitor the sms table, leaving alone the rows that a rebuild hasn't reached yet
+            final String smsNew = WordsIndexRebuilder.getSmsIndexedCondition("NEW._id");
+            final String smsOld = WordsIndexRebuilder.getSmsIndexedCondition("OLD._id");
+            db.execSQL("CREATE TRIGGER sms_words_insert AFTER INSERT ON sms "
+                + "BEGIN "
+                + WordsIndexRebuilder.getSmsInsertStatement(fts5, smsNew) + "; "
+                + "END;");
+            db.execSQL("CREATE TRIGGER sms_words_update AFTER UPDATE OF body ON sms "
+                + "BEGIN "
+                + WordsIndexRebuilder.getSmsDeleteStatement(fts5, smsOld) + "; "
+                + WordsIndexRebuilder.getSmsInsertStatement(fts5, smsNew) + "; "
+                + "END;");
+            db.execSQL("CREATE TRIGGER sms_words_delete AFTER DELETE ON sms "
+                + "BEGIN "
+                + WordsIndexRebuilder.getSmsDeleteStatement(fts5, smsOld) + "; "
+                + "END;");
+
+            createPartWordsTriggers(db, fts5);
+
+            // Index the existing messages in the background once the database is open, see
+            // onOpen.
+            WordsIndexRebuilder.startReindex(db);
         } catch (Exception ex) {
             Log.e(TAG, "got exception creating words table: " + ex.toString());
             logException(ex, oldVersion, currentVersion, upgradeVersion);
         }
     }
 
+    /**
+     * Creates the triggers keeping the words index in sync with the part table, which are
+     * dropped along with the table, and the index that FTS5 looks the text parts up with.
+     */
+    private static void createPartWordsTriggers(SQLiteDatabase db, boolean fts5) {
+        db.execSQL("DROP TRIGGER IF EXISTS mms_words_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS mms_words_update");
+        db.execSQL("DROP TRIGGER IF EXISTS mms_words_delete");
+        if (fts5) {
+            // Lets FTS5 look the text parts up by words rowid.
+            db.execSQL("CREATE INDEX IF NOT EXISTS partWordsIdIndex ON part" +
+                    " (" + MMS_WORDS_ID_OFFSET + " + _id) WHERE ct = 'text/plain';");
+        }
+
+        final String partNew = "NEW.ct = 'text/plain' AND "
+                + WordsIndexRebuilder.getPartIndexedCondition("NEW._id");
+        final String partOld = "OLD.ct = 'text/plain' AND "
+                + WordsIndexRebuilder.getPartIndexedCondition("OLD._id");
+        db.execSQL("CREATE TRIGGER mms_words_insert AFTER INSERT ON part "
+            + "BEGIN "
+            + WordsIndexRebuilder.getPartInsertStatement(fts5, partNew) + "; "
+            + "END;");
+        db.execSQL("CREATE TRIGGER mms_words_update AFTER UPDATE OF ct, text ON part "
+            + "BEGIN "
+            + WordsIndexRebuilder.getPartDeleteStatement(fts5, partOld) + "; "
+            + WordsIndexRebuilder.getPartInsertStatement(fts5, partNew) + "; "
+            + "END;");
+        db.execSQL("CREATE TRIGGER mms_words_delete AFTER DELETE ON part "
+            + "BEGIN "
+            + WordsIndexRebuilder.getPartDeleteStatement(fts5, partOld) + "; "
+            + "END;");
+    }
+
+    /**
+     * Returns a JSON array of the tokens of the given recipient_ids SQL expression, as strings.
+     * recipient_ids is a space-separated list of recipient ids, "1 14 21", which is turned into
+     * a JSON array since common table expressions can't be used in triggers. The array is only
+     * invalid if recipient_ids has control characters.
+     */
+    private static String getRecipientIdsJson(String recipientIds) {
+        return "'[\"' || replace(replace(replace(trim(" + recipientIds + "), '\\', '\\\\')," +
+                " '\"', '\\\"'), ' ', '\",\"') || '\"]'";
+    }
+
+    /**
+     * Returns a json_each() table of the tokens of the given recipient_ids SQL expression, or an
+     * empty table if they can't be parsed. Select {@link #RECIPIENT_ID_VALUE} with
+     * {@link #RECIPIENT_ID_CONDITION} to get the ids, skipping the tokens that aren't numbers
+     * like the previous Integer.parseInt() based parsing did.
+     */
+    private static String jsonEachRecipientId(String recipientIds) {
+        String json = getRecipientIdsJson(recipientIds);
+        return "json_each(CASE WHEN json_valid(" + json + ") THEN " + json + " ELSE '[]' END)";
+    }
+
+    private static final String RECIPIENT_ID_VALUE = "CAST(value AS INTEGER)";
+    private static final String RECIPIENT_ID_CONDITION =
+            "value != '' AND value NOT GLOB '*[^0-9]*'";
+
+    /**
+     * Creates the thread_recipients table, which normalizes threads.recipient_ids so that the
+     * threads of an address or the addresses that are no longer used by any thread can be found
+     * with indexed joins, and the triggers keeping it in sync with the threads table.
+     */
+    private void createThreadRecipientsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + MmsSmsProvider.TABLE_THREAD_RECIPIENTS + " (" +
+                   "thread_id INTEGER NOT NULL," +
+                   "address_id INTEGER NOT NULL," +
+                   "PRIMARY KEY (thread_id, address_id)" +
+                ") WITHOUT ROWID;");
+        db.execSQL("CREATE INDEX IF NOT EXISTS threadRecipientsAddressIdIndex ON " +
+                MmsSmsProvider.TABLE_THREAD_RECIPIENTS + " (address_id);");
+
+        createThreadRecipientsTriggers(db);
+    }
+
+    /**
+     * Creates the triggers keeping thread_recipients in sync with the threads table, which are
+     * dropped along with the table.
+     */
+    private static void createThreadRecipientsTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS thread_recipients_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS thread_recipients_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS thread_recipients_on_delete");
+        db.execSQL("CREATE TRIGGER thread_recipients_on_insert" +
+                   " AFTER INSERT ON threads " +
+                   "BEGIN " +
+                   "  INSERT OR IGNORE INTO thread_recipients (thread_id, address_id)" +
+                   "  SELECT new._id, " + RECIPIENT_ID_VALUE +
+                   "  FROM " + jsonEachRecipientId("new.recipient_ids") +
+                   "  WHERE " + RECIPIENT_ID_CONDITION + "; " +
+                   "END;");
+        db.execSQL("CREATE TRIGGER thread_recipients_on_update" +
+                   " AFTER UPDATE OF recipient_ids ON threads " +
+                   "BEGIN " +
+                   "  DELETE FROM thread_recipients WHERE thread_id = old._id; " +
+                   "  INSERT OR IGNORE INTO thread_recipients (thread_id, address_id)" +
+                   "  SELECT new._id, " + RECIPIENT_ID_VALUE +
+                   "  FROM " + jsonEachRecipientId("new.recipient_ids") +
+                   "  WHERE " + RECIPIENT_ID_CONDITION + "; " +
+                   "END;");
+        db.execSQL("CREATE TRIGGER thread_recipients_on_delete" +
+                   " AFTER DELETE ON threads " +
+                   "BEGIN " +
+                   "  DELETE FROM thread_recipients WHERE thread_id = old._id; " +
+                   "END;");
+    }
+
+    private void upgradeDatabaseToVersion70(SQLiteDatabase db) {
+        createThreadRecipientsTable(db);
+
+        // Populate the table from the existing threads.
+        db.execSQL("INSERT OR IGNORE INTO thread_recipients (thread_id, address_id)" +
+                " SELECT threads._id, " + RECIPIENT_ID_VALUE +
+                " FROM threads, " + jsonEachRecipientId("threads.recipient_ids") +
+                " WHERE " + RECIPIENT_ID_CONDITION + ";");
+    }
+
     private void createIndices(SQLiteDatabase db) {
         createThreadIdIndex(db);
         createThreadIdDateIndex(db);
@@ -1017,16 +1164,6 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
                    "      new." + Mms.MESSAGE_TYPE + ",0,0,0,0);" +
                    "END;");
 
-        // monitor the mms table
-        db.execSQL("DROP TRIGGER IF EXISTS mms_words_update");
-        db.execSQL("CREATE TRIGGER mms_words_update AFTER UPDATE ON part BEGIN UPDATE words " +
-                " SET index_text = NEW.text WHERE (source_id=NEW._id AND table_to_use=2); " +
-                " END;");
-
-        db.execSQL("DROP TRIGGER IF EXISTS mms_words_delete");
-        db.execSQL("CREATE TRIGGER mms_words_delete AFTER DELETE ON part BEGIN DELETE FROM " +
-                " words WHERE source_id = OLD._id AND table_to_use = 2; END;");
-
         // Updates threads table whenever a message in pdu is updated.
         db.execSQL("DROP TRIGGER IF EXISTS pdu_update_thread_date_subject_on_update");
         db.execSQL("CREATE TRIGGER pdu_update_thread_date_subject_on_update AFTER" +
@@ -1347,6 +1484,21 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
                    "END;");
     }
 
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // Resume the rebuild of the words index that onCreate or onUpgrade has just started, or
+        // that couldn't run before the user unlocked.
+        resumeWordsReindex();
+    }
+
+    /**
+     * Resumes the rebuild of the words index in progress, if any, in the background.
+     */
+    void resumeWordsReindex() {
+        mWordsIndexRebuilder.resume();
+    }
+
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int currentVersion) {
         Log.w(TAG, "Upgrading database from version " + oldVersion
@@ -1493,17 +1645,8 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
                 return;
             }
 
-            db.beginTransaction();
-            try {
-                createWordsTables(db, oldVersion, currentVersion, 49);
-                db.setTransactionSuccessful();
-            } catch (Throwable ex) {
-                Log.e(TAG, ex.getMessage(), ex);
-                logException(ex, oldVersion, currentVersion, 49);
-                break;
-            } finally {
-                db.endTransaction();
-            }
+            // The words table used to be created here. It's now created with its current
+            // schema by the upgrade to version 71.
             // fall through
         case 49:
             if (currentVersion <= 49) {
@@ -1822,8 +1965,8 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
 
             db.beginTransaction();
             try {
-                // Create words table with new sub_id column
-                createWordsTables(db, oldVersion, currentVersion, 69);
+                // The words table with the new sub_id column is created by the upgrade to
+                // version 71.
                 if (!isColumnExists(db, SmsProvider.TABLE_SR_PENDING, "sub_id")) {
                     // Add sub_id to sr_pending table if it is not present already
                     db.execSQL("ALTER TABLE " + SmsProvider.TABLE_SR_PENDING
@@ -1838,6 +1981,41 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
             } finally {
                 db.endTransaction();
             }
+            // fall through
+        case 69:
+            if (currentVersion <= 69) {
+                return;
+            }
+
+            db.beginTransaction();
+            try {
+                upgradeDatabaseToVersion70(db);
+                db.setTransactionSuccessful();
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.getMessage(), ex);
+                logException(ex, oldVersion, currentVersion, 70);
+                break; // force to destroy all old data;
+            } finally {
+                db.endTransaction();
+            }
+            // fall through
+        case 70:
+            if (currentVersion <= 70) {
+                return;
+            }
+
+            db.beginTransaction();
+            try {
+                // Replace the FTS3 words table with an FTS5 one.
+                createWordsTables(db, oldVersion, currentVersion, 71);
+                db.setTransactionSuccessful();
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.getMessage(), ex);
+                logException(ex, oldVersion, currentVersion, 71);
+                break; // force to destroy all old data;
+            } finally {
+                db.endTransaction();
+            }
             return;
         }
 
@@ -2367,7 +2545,8 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
     // the threads table. This could fail if the user has a lot of conversations and not enough
     // storage to make a copy of the threads table. That's ok. This upgrade is optional. It'll
     // be called again next time the device is rebooted.
-    private void upgradeThreadsTableToAutoIncrement(SQLiteDatabase db) {
+    @VisibleForTesting
+    void upgradeThreadsTableToAutoIncrement(SQLiteDatabase db) {
         if (hasAutoIncrement(db, MmsSmsProvider.TABLE_THREADS)) {
             Log.d(TAG, "[MmsSmsDb] upgradeThreadsTableToAutoIncrement: already upgraded");
             return;
@@ -2394,6 +2573,9 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("INSERT INTO threads_temp SELECT * from threads;");
         db.execSQL("DROP TABLE threads;");
         db.execSQL("ALTER TABLE threads_temp RENAME TO threads;");
+
+        // The thread ids are kept, so only the thread_recipients triggers need to be rebuilt.
+        createThreadRecipientsTriggers(db);
     }
 
     // upgradeAddressTableToAutoIncrement() is called to add the AUTOINCREMENT keyword to
@@ -2424,7 +2606,8 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
     // the part table. This could fail if the user has a lot of sound/video/picture attachments
     // and not enough storage to make a copy of the part table.
     // That's ok. This upgrade is optional. It'll be called again next time the device is rebooted.
-    private void upgradePartTableToAutoIncrement(SQLiteDatabase db) {
+    @VisibleForTesting
+    void upgradePartTableToAutoIncrement(SQLiteDatabase db) {
         if (hasAutoIncrement(db, "part")) {
             Log.d(TAG, "[MmsSmsDb] upgradePartTableToAutoIncrement: already upgraded");
             return;
@@ -2458,6 +2641,10 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
 
         // part-related triggers get tossed when the part table is dropped -- rebuild them.
         createMmsTriggers(db);
+        if (DatabaseUtils.queryNumEntries(db, "sqlite_master",
+                "type = 'table' AND name = '" + MmsProvider.TABLE_WORDS + "'") > 0) {
+            createPartWordsTriggers(db, isWordsFts5(db));
+        }
     }
 
     // upgradePduTableToAutoIncrement() is called to add the AUTOINCREMENT keyword to
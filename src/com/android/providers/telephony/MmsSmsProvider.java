@@ -46,6 +46,7 @@ import android.telephony.SubscriptionManager;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.TelephonyStatsLog;
 import com.android.internal.telephony.util.TelephonyUtils;
 
@@ -53,10 +54,15 @@ import com.google.android.mms.pdu.PduHeaders;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -128,6 +134,11 @@ public class MmsSmsProvider extends ContentProvider {
      */
     static final String TABLE_THREADS = "threads";
 
+    /**
+     * the name of the table that maps each thread to the canonical addresses of its recipients.
+     */
+    static final String TABLE_THREAD_RECIPIENTS = "thread_recipients";
+
     // These constants are used to construct union queries across the
     // MMS and SMS base tables.
 
@@ -190,8 +201,11 @@ public class MmsSmsProvider extends ContentProvider {
     private static final String[] EMPTY_STRING_ARRAY = new String[0];
 
     private static final String[] SEARCH_STRING = new String[1];
-    private static final String SEARCH_QUERY = "SELECT snippet(words, '', ' ', '', 1, 1) as " +
+    private static final String SEARCH_QUERY = "SELECT snippet(words, 0, '', ' ', '', 1) as " +
             "snippet FROM words WHERE index_text MATCH ? ORDER BY snippet LIMIT 50;";
+    // The FTS4 snippet function takes the same parameters in a different order.
+    private static final String SEARCH_QUERY_FTS4 = "SELECT snippet(words, '', ' ', '', 0, 1) " +
+            "as snippet FROM words WHERE index_text MATCH ? ORDER BY snippet LIMIT 50;";
 
     private static final String SMS_CONVERSATION_CONSTRAINT = "(" +
             Sms.TYPE + " != " + Sms.MESSAGE_TYPE_DRAFT + ")";
@@ -203,8 +217,40 @@ public class MmsSmsProvider extends ContentProvider {
             Mms.MESSAGE_TYPE + " = " + PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND + "))";
 
     private static String getTextSearchQuery(String smsTable, String pduTable) {
+        // This code queries the sms and mms tables and returns a unified result set
+        // of text matches.  We query the sms table which is pretty simple.  We also
+        // query the pdu, part and addr table to get the mms result.  Note we're
+        // using a UNION so we have to have the same number of result columns from
+        // both queries.
+        return getSmsTextSearchQuery(smsTable, "") + " UNION "
+                + getMmsTextSearchQuery(pduTable, "") + " "
+                + "GROUP BY thread_id "
+                + "ORDER BY thread_id ASC, date DESC";
+    }
+
+    /**
+     * Like {@link #getTextSearchQuery}, but returns the best matching message of each thread,
+     * with the threads ordered by the bm25 rank of that message and then by its date. The extra
+     * "rank" column holds the rank. FTS4 has no bm25, so its threads are only ordered by date.
+     */
+    private static String getRankedTextSearchQuery(
+            String smsTable, String pduTable, boolean fts5) {
+        final String rank = fts5 ? "bm25(words)" : "0";
+        // The dates of mms are in seconds.
+        return "SELECT _id, thread_id, address, body, date, date_sent, index_text,"
+                + " words_id AS _id, MIN(rank) AS rank "
+                + "FROM (" + getSmsTextSearchQuery(smsTable,
+                        ", words._id AS words_id, " + rank + " AS rank, date AS sort_date")
+                + " UNION ALL " + getMmsTextSearchQuery(pduTable,
+                        ", words._id, " + rank + ", " + pduTable + ".date * 1000")
+                + ") "
+                + "GROUP BY thread_id "
+                + "ORDER BY rank ASC, sort_date DESC";
+    }
+
+    private static String getSmsTextSearchQuery(String smsTable, String extraColumns) {
         // Search on the words table but return the rows from the corresponding sms table
-        final String smsQuery = "SELECT "
+        return "SELECT "
                 + smsTable + "._id AS _id,"
                 + "thread_id,"
                 + "address,"
@@ -212,14 +258,16 @@ public class MmsSmsProvider extends ContentProvider {
                 + "date,"
                 + "date_sent,"
                 + "index_text,"
-                + "words._id "
+                + "words._id"
+                + extraColumns + " "
                 + "FROM " + smsTable + ",words "
                 + "WHERE (index_text MATCH ? "
-                + "AND " + smsTable + "._id=words.source_id "
-                + "AND words.table_to_use=1)";
+                + "AND " + smsTable + "._id=words.rowid)";
+    }
 
+    private static String getMmsTextSearchQuery(String pduTable, String extraColumns) {
         // Search on the words table but return the rows from the corresponding parts table
-        final String mmsQuery = "SELECT "
+        return "SELECT "
                 + pduTable + "._id,"
                 + "thread_id,"
                 + "addr.address,"
@@ -227,24 +275,78 @@ public class MmsSmsProvider extends ContentProvider {
                 + pduTable + ".date,"
                 + pduTable + ".date_sent,"
                 + "index_text,"
-                + "words._id "
+                + "words._id"
+                + extraColumns + " "
                 + "FROM " + pduTable + ",part,addr,words "
                 + "WHERE ((part.mid=" + pduTable + "._id) "
                 + "AND (addr.msg_id=" + pduTable + "._id) "
                 + "AND (addr.type=" + PduHeaders.TO + ") "
                 + "AND (part.ct='text/plain') "
                 + "AND (index_text MATCH ?) "
-                + "AND (part._id = words.source_id) "
-                + "AND (words.table_to_use=2))";
+                + "AND (part._id + " + MmsSmsDatabaseHelper.MMS_WORDS_ID_OFFSET
+                + " = words.rowid))";
+    }
 
-        // This code queries the sms and mms tables and returns a unified result set
-        // of text matches.  We query the sms table which is pretty simple.  We also
-        // query the pdu, part and addr table to get the mms result.  Note we're
-        // using a UNION so we have to have the same number of result columns from
-        // both queries.
-        return smsQuery + " UNION " + mmsQuery + " "
-                + "GROUP BY thread_id "
-                + "ORDER BY thread_id ASC, date DESC";
+    // Query parameters of URI_SEARCH, to page through the results and to order them by
+    // relevance.
+    private static final String SEARCH_LIMIT_PARAM = "limit";
+    private static final String SEARCH_OFFSET_PARAM = "offset";
+    private static final String SEARCH_ORDER_PARAM = "order";
+    private static final String SEARCH_ORDER_RELEVANCE = "relevance";
+
+    /**
+     * Turns a search pattern typed by the user into an FTS5 query matching all its terms, the
+     * last one as a prefix. The terms are quoted so that punctuation in them is never taken for
+     * FTS5 query syntax. FTS4 takes the prefix marker inside the quotes instead.
+     */
+    @VisibleForTesting
+    static String toPrefixMatchQuery(String pattern, boolean fts5) {
+        StringBuilder sb = new StringBuilder();
+        if (pattern != null) {
+            for (String term : pattern.trim().split("\\s+")) {
+                if (term.isEmpty()) {
+                    continue;
+                }
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+                sb.append('"').append(term.replace("\"", "\"\"")).append('"');
+            }
+        }
+        if (sb.length() == 0) {
+            return fts5 ? "\"\"*" : "\"\"";
+        }
+        return fts5 ? sb.append('*').toString() : sb.insert(sb.length() - 1, '*').toString();
+    }
+
+    /**
+     * Runs the URI_SEARCH query of {@code uri}: the messages matching its "pattern" parameter,
+     * one per thread, optionally ordered by relevance and restricted to a page of results.
+     *
+     * The page is cut from the final result set. SQLite still finds, ranks and groups every
+     * matching message before it returns the first row. A page therefore costs about as much as
+     * the whole result set, and a later page also pays for the rows its offset skips. Paging
+     * only bounds the rows copied into the cursor and sent to the caller.
+     */
+    @VisibleForTesting
+    static Cursor searchMessages(SQLiteDatabase db, Uri uri, String smsTable, String pduTable) {
+        final boolean fts5 = MmsSmsDatabaseHelper.isWordsFts5(db);
+        String searchString = toPrefixMatchQuery(uri.getQueryParameter("pattern"), fts5);
+        String query = SEARCH_ORDER_RELEVANCE.equals(uri.getQueryParameter(SEARCH_ORDER_PARAM))
+                ? getRankedTextSearchQuery(smsTable, pduTable, fts5)
+                : getTextSearchQuery(smsTable, pduTable);
+        int limit = ProviderUtil.getNonNegativeIntQueryParameter(uri, SEARCH_LIMIT_PARAM);
+        if (limit >= 0) {
+            int offset = ProviderUtil.getNonNegativeIntQueryParameter(uri, SEARCH_OFFSET_PARAM);
+            query += " LIMIT " + limit + " OFFSET " + Math.max(offset, 0);
+        }
+
+        try {
+            return db.rawQuery(query, new String[] { searchString, searchString });
+        } catch (Exception ex) {
+            Log.e(LOG_TAG, "got exception: " + ex.toString());
+            return null;
+        }
     }
 
     private static final String AUTHORITY = "mms-sms";
@@ -313,15 +415,45 @@ public class MmsSmsProvider extends ContentProvider {
         initializeColumnSets();
     }
 
-    private SQLiteOpenHelper mOpenHelper;
+    @VisibleForTesting
+    SQLiteOpenHelper mOpenHelper;
 
     private boolean mUseStrictPhoneNumberComparation;
+    private int mMinMatch;
+
+    // Striped locks serializing the creation of canonical addresses per address and of threads
+    // per recipient set, so that lookups for different conversations can run in parallel.
+    private static final int LOCK_STRIPES = 32;
+    private final Object[] mAddressLocks = newLockStripes();
+    private final Object[] mThreadLocks = newLockStripes();
+    // The selections restricting the messages visible to each user.
+    private final SubscriptionSelectionCache mSelectionCache = new SubscriptionSelectionCache();
 
     // Call() methods and parameters
     private static final String METHOD_IS_RESTORING = "is_restoring";
     private static final String IS_RESTORING_KEY = "restoring";
     private static final String METHOD_GARBAGE_COLLECT = "garbage_collect";
     private static final String DO_DELETE = "delete";
+    // Also used by TelephonyBackupAgent to resolve the threads of restored messages in bulk.
+    static final String METHOD_GET_OR_CREATE_THREAD_IDS = "get_or_create_thread_ids";
+    // Recipient lists, flattened into a single ArrayList<String>.
+    static final String RECIPIENTS_KEY = "recipients";
+    // Size of each recipient list, as an int[].
+    static final String RECIPIENT_COUNTS_KEY = "recipient_counts";
+    // Thread id of each recipient list, as a long[].
+    static final String THREAD_IDS_KEY = "thread_ids";
+    // Rebuilds the words search index from scratch, in the background.
+    private static final String METHOD_REINDEX_WORDS = "reindex_words";
+    // Returns the progress of the words index rebuild, resuming it if it was interrupted.
+    private static final String METHOD_GET_WORDS_REINDEX_PROGRESS = "get_words_reindex_progress";
+
+    private static Object[] newLockStripes() {
+        Object[] locks = new Object[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+        return locks;
+    }
 
     @Override
     public boolean onCreate() {
@@ -330,7 +462,12 @@ public class MmsSmsProvider extends ContentProvider {
         mUseStrictPhoneNumberComparation =
             getContext().getResources().getBoolean(
                     com.android.internal.R.bool.config_use_strict_phone_number_comparation);
+        mMinMatch =
+            getContext().getResources().getInteger(
+                    com.android.internal.R.integer.config_phonenumber_compare_min_match);
         TelephonyBackupAgent.DeferredSmsMmsRestoreService.startIfFilesExist(getContext());
+        // Finish a rebuild of the words index that was interrupted, if any.
+        ((MmsSmsDatabaseHelper) mOpenHelper).resumeWordsReindex();
         return true;
     }
 
@@ -364,7 +501,8 @@ public class MmsSmsProvider extends ContentProvider {
         final long token = Binder.clearCallingIdentity();
         try {
             // Filter MMS/SMS based on subId
-            selectionBySubIds = ProviderUtil.getSelectionBySubIds(getContext(), callerUserHandle);
+            selectionBySubIds =
+                    mSelectionCache.getSelectionBySubIds(getContext(), callerUserHandle);
         } finally {
             Binder.restoreCallingIdentity(token);
         }
@@ -486,11 +624,12 @@ public class MmsSmsProvider extends ContentProvider {
                         sortOrder);
                 break;
             case URI_SEARCH_SUGGEST: {
-                SEARCH_STRING[0] = uri.getQueryParameter("pattern") + '*' ;
+                final boolean fts5 = MmsSmsDatabaseHelper.isWordsFts5(db);
+                SEARCH_STRING[0] = toPrefixMatchQuery(uri.getQueryParameter("pattern"), fts5);
 
                 // find the words which match the pattern using the snippet function.  The
                 // snippet function parameters mainly describe how to format the result.
-                // See http://www.sqlite.org/fts3.html#section_4_2 for details.
+                // See https://www.sqlite.org/fts5.html#the_snippet_function for details.
                 if (       sortOrder != null
                         || selection != null
                         || selectionArgs != null
@@ -500,7 +639,7 @@ public class MmsSmsProvider extends ContentProvider {
                             "with this query");
                 }
 
-                cursor = db.rawQuery(SEARCH_QUERY, SEARCH_STRING);
+                cursor = db.rawQuery(fts5 ? SEARCH_QUERY : SEARCH_QUERY_FTS4, SEARCH_STRING);
                 break;
             }
             case URI_MESSAGE_ID_TO_THREAD: {
@@ -542,14 +681,7 @@ public class MmsSmsProvider extends ContentProvider {
                             "with this query");
                 }
 
-                String searchString = uri.getQueryParameter("pattern") + "*";
-
-                try {
-                    cursor = db.rawQuery(getTextSearchQuery(smsTable, pduTable),
-                            new String[] { searchString, searchString });
-                } catch (Exception ex) {
-                    Log.e(LOG_TAG, "got exception: " + ex.toString());
-                }
+                cursor = searchMessages(db, uri, smsTable, pduTable);
                 break;
             }
             case URI_PENDING_MSG: {
@@ -649,9 +781,10 @@ public class MmsSmsProvider extends ContentProvider {
     }
 
     /**
-     * Return the canonical address ID for this address.
+     * Return the canonical address ID for this address. If there is none, one is created if
+     * {@code createIfMissing} is true, otherwise -1 is returned.
      */
-    private long getSingleAddressId(String address) {
+    private long getSingleAddressId(String address, boolean createIfMissing) {
         boolean isEmail = Mms.isEmailAddress(address);
         boolean isPhoneNumber = Mms.isPhoneNumber(address);
 
@@ -660,45 +793,73 @@ public class MmsSmsProvider extends ContentProvider {
         // and the thread title would be incorrect when displayed in the UI.
         String refinedAddress = isEmail ? address.toLowerCase(Locale.ROOT) : address;
 
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        CanonicalAddressIndex index = CanonicalAddressIndex.getInstance(db, mMinMatch);
+        long retVal = findOrInsertAddressId(db, index, refinedAddress, isPhoneNumber, false);
+        if (retVal != -1L || !createIfMissing) {
+            return retVal;
+        }
+
+        // Equivalent addresses share their index key, so locking on it is enough to keep
+        // concurrent callers from creating the same canonical address twice.
+        String key = index.getKey(refinedAddress);
+        synchronized (getLockStripe(mAddressLocks, key != null ? key : refinedAddress)) {
+            return findOrInsertAddressId(db, index, refinedAddress, isPhoneNumber, true);
+        }
+    }
+
+    private long findOrInsertAddressId(SQLiteDatabase db, CanonicalAddressIndex index,
+            String refinedAddress, boolean isPhoneNumber, boolean createIfMissing) {
         String selection = "address=?";
         String[] selectionArgs;
         long retVal = -1L;
-        int minMatch =
-            getContext().getResources().getInteger(
-                    com.android.internal.R.integer.config_phonenumber_compare_min_match);
 
         if (!isPhoneNumber) {
             selectionArgs = new String[] { refinedAddress };
         } else {
             selection += " OR PHONE_NUMBERS_EQUAL(address, ?, " +
-                        (mUseStrictPhoneNumberComparation ? "1)" : "0, " + minMatch + ")");
+                        (mUseStrictPhoneNumberComparation ? "1)" : "0, " + mMinMatch + ")");
             selectionArgs = new String[] { refinedAddress, refinedAddress };
         }
 
+        long[] candidates = index.getCandidates(db, refinedAddress);
+        if (candidates != null) {
+            if (candidates.length == 0) {
+                // Nothing shares the address (or its phone number tail), it's a new address.
+                return createIfMissing ? insertCanonicalAddress(index, refinedAddress) : -1L;
+            }
+            if (candidates.length == 1 && index.isExactMatch(candidates[0], refinedAddress)) {
+                return candidates[0];
+            }
+            if (!isPhoneNumber) {
+                for (long candidate : candidates) {
+                    if (index.isExactMatch(candidate, refinedAddress)) {
+                        return candidate;
+                    }
+                }
+                return createIfMissing ? insertCanonicalAddress(index, refinedAddress) : -1L;
+            }
+            // Only compare the phone number against the candidates of its bucket.
+            StringBuilder sb = new StringBuilder("_id IN (");
+            for (int i = 0; i < candidates.length; i++) {
+                if (i != 0) {
+                    sb.append(',');
+                }
+                sb.append(candidates[i]);
+            }
+            sb.append(") AND (").append(selection).append(')');
+            selection = sb.toString();
+        }
+
         Cursor cursor = null;
 
         try {
-            SQLiteDatabase db = mOpenHelper.getReadableDatabase();
             cursor = db.query(
                     "canonical_addresses", ID_PROJECTION,
-                    selection, selectionArgs, null, null, null);
+                    selection, selectionArgs, null, null, BaseColumns._ID);
 
             if (cursor.getCount() == 0) {
-                // TODO (b/256992531): Currently, one sim card is set as default sms subId in work
-                //  profile. Default sms subId should be updated based on user pref.
-                int subId = SmsManager.getDefaultSmsSubscriptionId();
-                ContentValues contentValues = new ContentValues(1);
-                contentValues.put(CanonicalAddressesColumns.ADDRESS, refinedAddress);
-                contentValues.put(CanonicalAddressesColumns.SUBSCRIPTION_ID, subId);
-
-                db = mOpenHelper.getWritableDatabase();
-                retVal = db.insert("canonical_addresses",
-                        CanonicalAddressesColumns.ADDRESS, contentValues);
-
-                Log.d(LOG_TAG, "getSingleAddressId: insert new canonical_address for " +
-                        /*address*/ "xxxxxx" + ", sub_id=" + subId + ", _id=" + retVal);
-
-                return retVal;
+                return createIfMissing ? insertCanonicalAddress(index, refinedAddress) : -1L;
             }
 
             if (cursor.moveToFirst()) {
@@ -713,6 +874,28 @@ public class MmsSmsProvider extends ContentProvider {
         return retVal;
     }
 
+    /**
+     * Insert a new canonical address and add it to the index.
+     */
+    private long insertCanonicalAddress(CanonicalAddressIndex index, String refinedAddress) {
+        // TODO (b/256992531): Currently, one sim card is set as default sms subId in work
+        //  profile. Default sms subId should be updated based on user pref.
+        int subId = SmsManager.getDefaultSmsSubscriptionId();
+        ContentValues contentValues = new ContentValues(1);
+        contentValues.put(CanonicalAddressesColumns.ADDRESS, refinedAddress);
+        contentValues.put(CanonicalAddressesColumns.SUBSCRIPTION_ID, subId);
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long retVal = db.insert("canonical_addresses",
+                CanonicalAddressesColumns.ADDRESS, contentValues);
+        index.add(retVal, refinedAddress);
+
+        Log.d(LOG_TAG, "getSingleAddressId: insert new canonical_address for " +
+                /*address*/ "xxxxxx" + ", sub_id=" + subId + ", _id=" + retVal);
+
+        return retVal;
+    }
+
     /**
      * Return the canonical address IDs for these addresses.
      */
@@ -721,7 +904,7 @@ public class MmsSmsProvider extends ContentProvider {
 
         for (String address : addresses) {
             if (!address.equals(PduHeaders.FROM_INSERT_ADDRESS_TOKEN_STR)) {
-                long id = getSingleAddressId(address);
+                long id = getSingleAddressId(address, true);
                 if (id != -1L) {
                     result.add(id);
                 } else {
@@ -732,6 +915,37 @@ public class MmsSmsProvider extends ContentProvider {
         return result;
     }
 
+    /**
+     * Return the canonical address IDs for these addresses without creating any, or null if
+     * one of them doesn't have a canonical address yet.
+     */
+    private Set<Long> getExistingAddressIds(List<String> addresses) {
+        Set<Long> result = new HashSet<Long>(addresses.size());
+
+        for (String address : addresses) {
+            if (!address.equals(PduHeaders.FROM_INSERT_ADDRESS_TOKEN_STR)) {
+                long id = getSingleAddressId(address, false);
+                if (id == -1L) {
+                    return null;
+                }
+                result.add(id);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return the space-separated, sorted recipient ids of a thread with the given canonical
+     * address IDs, in the format stored in threads.recipient_ids.
+     */
+    private String getRecipientIds(Set<Long> addressIds) {
+        if (addressIds.size() == 1) {
+            // optimize for size==1, which should be most of the cases
+            return Long.toString(addressIds.iterator().next());
+        }
+        return getSpaceSeparatedNumbers(getSortedSet(addressIds));
+    }
+
     /**
      * Return a sorted array of the given Set of Longs.
      */
@@ -772,6 +986,16 @@ public class MmsSmsProvider extends ContentProvider {
      * Insert a record for a new thread.
      */
     private void insertThread(String recipientIds, int numberOfRecipients) {
+        insertThreadRow(recipientIds, numberOfRecipients);
+
+        getContext().getContentResolver().notifyChange(MmsSms.CONTENT_URI, null, true,
+                UserHandle.USER_ALL);
+    }
+
+    /**
+     * Insert a record for a new thread without notifying observers, and return its ID.
+     */
+    private long insertThreadRow(String recipientIds, int numberOfRecipients) {
         ContentValues values = new ContentValues(4);
 
         long date = System.currentTimeMillis();
@@ -788,9 +1012,45 @@ public class MmsSmsProvider extends ContentProvider {
         long result = mOpenHelper.getWritableDatabase().insert(TABLE_THREADS, null, values);
         Log.d(LOG_TAG, "insertThread: created new thread_id " + result +
                 " for recipientIds " + /*recipientIds*/ "xxxxxxx");
+        return result;
+    }
 
-        getContext().getContentResolver().notifyChange(MmsSms.CONTENT_URI, null, true,
-                UserHandle.USER_ALL);
+    /**
+     * Return the lock of the stripe the given key falls in.
+     */
+    private static Object getLockStripe(Object[] locks, String key) {
+        return locks[getLockStripeIndex(locks, key)];
+    }
+
+    private static int getLockStripeIndex(Object[] locks, String key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % locks.length;
+    }
+
+    /**
+     * Run {@code runnable} holding the locks of the stripes all the given keys fall in. The
+     * locks are taken in stripe order, so that two callers holding several of them can't
+     * deadlock.
+     */
+    private static void runWithLockStripes(Object[] locks, Collection<String> keys,
+            Runnable runnable) {
+        boolean[] stripes = new boolean[locks.length];
+        for (String key : keys) {
+            stripes[getLockStripeIndex(locks, key)] = true;
+        }
+        runWithLockStripes(locks, stripes, 0, runnable);
+    }
+
+    private static void runWithLockStripes(Object[] locks, boolean[] stripes, int index,
+            Runnable runnable) {
+        if (index == locks.length) {
+            runnable.run();
+        } else if (!stripes[index]) {
+            runWithLockStripes(locks, stripes, index + 1, runnable);
+        } else {
+            synchronized (locks[index]) {
+                runWithLockStripes(locks, stripes, index + 1, runnable);
+            }
+        }
     }
 
     private static final String THREAD_QUERY =
@@ -802,8 +1062,33 @@ public class MmsSmsProvider extends ContentProvider {
      * one and return it.  Callers should always use
      * Threads.getThreadId to access this information.
      */
-    private synchronized Cursor getThreadId(List<String> recipients) {
-        Set<Long> addressIds = getAddressIds(recipients);
+    @VisibleForTesting
+    Cursor getThreadId(List<String> recipients) {
+        // Recently used recipient sets are served from the cache, without taking the lock.
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        ThreadIdCache threadIdCache = ThreadIdCache.getInstance(db);
+        Set<Long> existingAddressIds = getExistingAddressIds(recipients);
+        if (existingAddressIds != null && existingAddressIds.size() > 0) {
+            Long threadId = threadIdCache.get(getRecipientIds(existingAddressIds));
+            if (threadId != null) {
+                MatrixCursor cursor = new MatrixCursor(ID_PROJECTION, 1);
+                cursor.addRow(new Object[] { threadId });
+                return cursor;
+            }
+        }
+        return getOrCreateThreadId(recipients, existingAddressIds, threadIdCache);
+    }
+
+    /**
+     * Find or create the thread for these recipients, using the already resolved
+     * {@code addressIds} if they're not null, and remember it in {@code threadIdCache}.
+     */
+    private Cursor getOrCreateThreadId(List<String> recipients,
+            Set<Long> addressIds, ThreadIdCache threadIdCache) {
+        final long cacheGeneration = threadIdCache.getGeneration();
+        if (addressIds == null) {
+            addressIds = getAddressIds(recipients);
+        }
         String recipientIds = "";
 
         if (addressIds.size() == 0) {
@@ -814,13 +1099,8 @@ public class MmsSmsProvider extends ContentProvider {
                 TelephonyStatsLog
                     .MMS_SMS_PROVIDER_GET_THREAD_ID_FAILED__FAILURE_CODE__FAILURE_NO_RECIPIENTS);
             return null;
-        } else if (addressIds.size() == 1) {
-            // optimize for size==1, which should be most of the cases
-            for (Long addressId : addressIds) {
-                recipientIds = Long.toString(addressId);
-            }
         } else {
-            recipientIds = getSpaceSeparatedNumbers(getSortedSet(addressIds));
+            recipientIds = getRecipientIds(addressIds);
         }
 
         if (Log.isLoggable(LOG_TAG, Log.VERBOSE)) {
@@ -831,34 +1111,40 @@ public class MmsSmsProvider extends ContentProvider {
         String[] selectionArgs = new String[] { recipientIds };
 
         SQLiteDatabase db = mOpenHelper.getReadableDatabase();
-        db.beginTransaction();
         Cursor cursor = null;
-        try {
-            // Find the thread with the given recipients
-            cursor = db.rawQuery(THREAD_QUERY, selectionArgs);
+        boolean success = false;
+        // Only lookups of the same recipient set need to be serialized, so that they don't
+        // both create a thread.
+        synchronized (getLockStripe(mThreadLocks, recipientIds)) {
+            db.beginTransaction();
+            try {
+                // Find the thread with the given recipients
+                cursor = db.rawQuery(THREAD_QUERY, selectionArgs);
 
-            if (cursor.getCount() == 0) {
-                // No thread with those recipients exists, so create the thread.
-                cursor.close();
+                if (cursor.getCount() == 0) {
+                    // No thread with those recipients exists, so create the thread.
+                    cursor.close();
 
-                Log.d(LOG_TAG, "getThreadId: create new thread_id for recipients " +
-                        /*recipients*/ "xxxxxxxx");
-                insertThread(recipientIds, recipients.size());
+                    Log.d(LOG_TAG, "getThreadId: create new thread_id for recipients " +
+                            /*recipients*/ "xxxxxxxx");
+                    insertThread(recipientIds, recipients.size());
 
-                // The thread was just created, now find it and return it.
-                cursor = db.rawQuery(THREAD_QUERY, selectionArgs);
-            }
-            db.setTransactionSuccessful();
-        } catch (Throwable ex) {
-            Log.e(LOG_TAG, ex.getMessage(), ex);
-            if (mOpenHelper instanceof MmsSmsDatabaseHelper) {
-                ((MmsSmsDatabaseHelper) mOpenHelper).printDatabaseOpeningDebugLog();
+                    // The thread was just created, now find it and return it.
+                    cursor = db.rawQuery(THREAD_QUERY, selectionArgs);
+                }
+                db.setTransactionSuccessful();
+                success = true;
+            } catch (Throwable ex) {
+                Log.e(LOG_TAG, ex.getMessage(), ex);
+                if (mOpenHelper instanceof MmsSmsDatabaseHelper) {
+                    ((MmsSmsDatabaseHelper) mOpenHelper).printDatabaseOpeningDebugLog();
+                }
+                TelephonyStatsLog.write(
+                    TelephonyStatsLog.MMS_SMS_PROVIDER_GET_THREAD_ID_FAILED,
+                    FAILURE_FIND_OR_CREATE_THREAD_ID_SQL);
+            } finally {
+                db.endTransaction();
             }
-            TelephonyStatsLog.write(
-                TelephonyStatsLog.MMS_SMS_PROVIDER_GET_THREAD_ID_FAILED,
-                FAILURE_FIND_OR_CREATE_THREAD_ID_SQL);
-        } finally {
-            db.endTransaction();
         }
 
         if (cursor != null && cursor.getCount() > 1) {
@@ -866,10 +1152,162 @@ public class MmsSmsProvider extends ContentProvider {
             TelephonyStatsLog.write(
                 TelephonyStatsLog.MMS_SMS_PROVIDER_GET_THREAD_ID_FAILED,
                 MULTIPLE_THREAD_IDS_FOUND);
+        } else if (success && cursor != null && cursor.moveToFirst()) {
+            threadIdCache.put(recipientIds, cursor.getLong(0), cacheGeneration);
+            cursor.moveToPosition(-1);
         }
         return cursor;
     }
 
+    // SQLite limits the number of host parameters of a statement to 999.
+    private static final int MAX_THREAD_QUERY_ARGS = 500;
+
+    /**
+     * Return the thread IDs for these lists of recipients, creating the missing threads in a
+     * single transaction. The recipient lists are given flattened in {@code recipients}, with
+     * the size of each list in {@code recipientCounts}. The ID of a list for which no thread
+     * could be found or created is -1.
+     */
+    private long[] getOrCreateThreadIds(List<String> recipients, int[] recipientCounts) {
+        final long[] threadIds = new long[recipientCounts.length];
+        Arrays.fill(threadIds, -1L);
+
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        ThreadIdCache threadIdCache = ThreadIdCache.getInstance(db);
+        final long cacheGeneration = threadIdCache.getGeneration();
+
+        // Resolve every distinct address once; known addresses are served by the canonical
+        // address index without touching the database.
+        Map<String, Long> addressIds = new HashMap<>();
+        String[] recipientIds = new String[recipientCounts.length];
+        int[] numberOfRecipients = new int[recipientCounts.length];
+        int offset = 0;
+        for (int i = 0; i < recipientCounts.length; i++) {
+            Set<Long> ids = new HashSet<Long>(recipientCounts[i]);
+            for (int j = offset; j < offset + recipientCounts[i]; j++) {
+                String address = recipients.get(j);
+                if (address == null || address.equals(PduHeaders.FROM_INSERT_ADDRESS_TOKEN_STR)) {
+                    continue;
+                }
+                Long id = addressIds.get(address);
+                if (id == null) {
+                    id = getSingleAddressId(address, true);
+                    addressIds.put(address, id);
+                }
+                if (id != -1L) {
+                    ids.add(id);
+                }
+            }
+            offset += recipientCounts[i];
+            numberOfRecipients[i] = recipientCounts[i];
+            if (ids.size() == 0) {
+                Log.e(LOG_TAG, "getOrCreateThreadIds: NO receipients specified for list " + i);
+                continue;
+            }
+            recipientIds[i] = getRecipientIds(ids);
+        }
+
+        // Look the remaining recipient sets up with a few IN queries.
+        Map<String, Long> found = new HashMap<>();
+        Set<String> missingSet = new LinkedHashSet<>();
+        for (int i = 0; i < recipientIds.length; i++) {
+            if (recipientIds[i] == null || found.containsKey(recipientIds[i])) {
+                continue;
+            }
+            Long cached = threadIdCache.get(recipientIds[i]);
+            if (cached != null) {
+                found.put(recipientIds[i], cached);
+            } else {
+                missingSet.add(recipientIds[i]);
+            }
+        }
+
+        final boolean[] created = new boolean[1];
+        if (!missingSet.isEmpty()) {
+            List<String> missing = new ArrayList<>(missingSet);
+            // Take the stripes getOrCreateThreadId() takes for each of these recipient sets, so
+            // that a concurrent lookup of the same set doesn't create a second thread.
+            runWithLockStripes(mThreadLocks, missing, () -> {
+                Map<String, Long> cached = new HashMap<>(found);
+                db.beginTransaction();
+                try {
+                    Map<String, Long> existing = new HashMap<>();
+                    for (int start = 0; start < missing.size(); start += MAX_THREAD_QUERY_ARGS) {
+                        List<String> chunk = missing.subList(start,
+                                Math.min(missing.size(), start + MAX_THREAD_QUERY_ARGS));
+                        queryThreadIds(db, chunk, existing);
+                    }
+                    for (int i = 0; i < recipientIds.length; i++) {
+                        String key = recipientIds[i];
+                        if (key == null || found.containsKey(key)) {
+                            continue;
+                        }
+                        Long threadId = existing.get(key);
+                        if (threadId == null) {
+                            threadId = insertThreadRow(key, numberOfRecipients[i]);
+                            created[0] = true;
+                        }
+                        if (threadId != -1L) {
+                            found.put(key, threadId);
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } catch (Throwable ex) {
+                    Log.e(LOG_TAG, ex.getMessage(), ex);
+                    TelephonyStatsLog.write(
+                        TelephonyStatsLog.MMS_SMS_PROVIDER_GET_THREAD_ID_FAILED,
+                        FAILURE_FIND_OR_CREATE_THREAD_ID_SQL);
+                    // Don't hand out the ids of threads that got rolled back.
+                    found.clear();
+                    found.putAll(cached);
+                    created[0] = false;
+                } finally {
+                    db.endTransaction();
+                }
+            });
+        }
+
+        for (int i = 0; i < recipientIds.length; i++) {
+            Long threadId = recipientIds[i] != null ? found.get(recipientIds[i]) : null;
+            if (threadId != null) {
+                threadIds[i] = threadId;
+                threadIdCache.put(recipientIds[i], threadId, cacheGeneration);
+            }
+        }
+        if (created[0]) {
+            getContext().getContentResolver().notifyChange(MmsSms.CONTENT_URI, null, true,
+                    UserHandle.USER_ALL);
+        }
+        return threadIds;
+    }
+
+    /**
+     * Find the threads with the given recipient ids and add them to {@code result}.
+     */
+    private static void queryThreadIds(SQLiteDatabase db, List<String> recipientIds,
+            Map<String, Long> result) {
+        StringBuilder sb = new StringBuilder("SELECT _id, recipient_ids FROM threads "
+                + "WHERE recipient_ids IN (");
+        for (int i = 0; i < recipientIds.size(); i++) {
+            sb.append(i == 0 ? "?" : ",?");
+        }
+        sb.append(") ORDER BY _id");
+        try (Cursor cursor = db.rawQuery(sb.toString(),
+                recipientIds.toArray(new String[recipientIds.size()]))) {
+            while (cursor.moveToNext()) {
+                String key = cursor.getString(1);
+                if (result.containsKey(key)) {
+                    Log.w(LOG_TAG, "getOrCreateThreadIds: multiple threads for a recipient set");
+                    TelephonyStatsLog.write(
+                        TelephonyStatsLog.MMS_SMS_PROVIDER_GET_THREAD_ID_FAILED,
+                        MULTIPLE_THREAD_IDS_FOUND);
+                    continue;
+                }
+                result.put(key, cursor.getLong(0));
+            }
+        }
+    }
+
     private static String concatSelections(String selection1, String selection2) {
         if (TextUtils.isEmpty(selection1)) {
             return selection2;
@@ -1371,7 +1809,8 @@ public class MmsSmsProvider extends ContentProvider {
         final long token = Binder.clearCallingIdentity();
         try {
             // Filter MMS/SMS based on subId
-            selectionBySubIds = ProviderUtil.getSelectionBySubIds(getContext(), callerUserHandle);
+            selectionBySubIds =
+                    mSelectionCache.getSelectionBySubIds(getContext(), callerUserHandle);
         } finally {
             Binder.restoreCallingIdentity(token);
         }
@@ -1413,18 +1852,25 @@ public class MmsSmsProvider extends ContentProvider {
                 }
                 selection = DatabaseUtils.concatenateWhere(selectionBySubIds, selection);
 
+                // Only the threads of the deleted messages need to be updated afterwards.
+                Set<Long> threadIds = getThreadIdsOfMessages(db, selection, selectionArgs);
                 affectedRows = MmsProvider.deleteMessages(context, db,
                                         selection, selectionArgs, uri)
                         + db.delete("sms", selection, selectionArgs);
                 // Intentionally don't pass the selection variable to updateThreads.
                 // When we pass in "locked=0" there, the thread will get excluded from
                 // the selection and not get updated.
-                MmsSmsDatabaseHelper.updateThreads(db, null, null);
+                if (affectedRows > 0) {
+                    MmsSmsDatabaseHelper.updateThreads(db, threadIds);
+                }
                 break;
             case URI_OBSOLETE_THREADS:
                 affectedRows = db.delete(TABLE_THREADS,
                         "_id NOT IN (SELECT DISTINCT thread_id FROM sms where thread_id NOT NULL " +
                         "UNION SELECT DISTINCT thread_id FROM pdu where thread_id NOT NULL)", null);
+                if (affectedRows > 0) {
+                    ThreadIdCache.invalidate(db);
+                }
                 break;
             default:
                 throw new UnsupportedOperationException(NO_DELETES_INSERTS_OR_UPDATES + uri);
@@ -1450,6 +1896,24 @@ public class MmsSmsProvider extends ContentProvider {
                 + db.delete("sms", finalSelection, selectionArgs);
     }
 
+    /**
+     * Return the IDs of the threads of the SMS and MMS matching the selection.
+     */
+    private static Set<Long> getThreadIdsOfMessages(SQLiteDatabase db, String selection,
+            String[] selectionArgs) {
+        Set<Long> threadIds = new HashSet<Long>();
+        for (String table : new String[] { "sms", MmsProvider.TABLE_PDU }) {
+            String where = DatabaseUtils.concatenateWhere(selection, "thread_id IS NOT NULL");
+            try (Cursor cursor = db.query(true, table, new String[] { "thread_id" }, where,
+                    selectionArgs, null, null, null, null)) {
+                while (cursor.moveToNext()) {
+                    threadIds.add(cursor.getLong(0));
+                }
+            }
+        }
+        return threadIds;
+    }
+
     @Override
     public Uri insert(Uri uri, ContentValues values) {
         final UserHandle callerUserHandle = Binder.getCallingUserHandle();
@@ -1493,6 +1957,7 @@ public class MmsSmsProvider extends ContentProvider {
             }
 
             long rowId = db.insert(TABLE_CANONICAL_ADDRESSES, null, values);
+            CanonicalAddressIndex.invalidate(db);
             return uri.buildUpon().appendPath(Long.toString(rowId)).build();
         }
         throw new UnsupportedOperationException(NO_DELETES_INSERTS_OR_UPDATES + uri);
@@ -1509,7 +1974,8 @@ public class MmsSmsProvider extends ContentProvider {
         final long token = Binder.clearCallingIdentity();
         try {
             // Filter MMS/SMS based on subId.
-            selectionBySubIds = ProviderUtil.getSelectionBySubIds(getContext(), callerUserHandle);
+            selectionBySubIds =
+                    mSelectionCache.getSelectionBySubIds(getContext(), callerUserHandle);
         } finally {
             Binder.restoreCallingIdentity(token);
         }
@@ -1558,6 +2024,9 @@ public class MmsSmsProvider extends ContentProvider {
                         ? extraSelection : extraSelection + " AND " + selection;
 
                 affectedRows = db.update(TABLE_CANONICAL_ADDRESSES, values, finalSelection, null);
+                if (affectedRows > 0) {
+                    CanonicalAddressIndex.invalidate(db);
+                }
                 break;
             }
 
@@ -1669,6 +2138,42 @@ public class MmsSmsProvider extends ContentProvider {
             boolean doDelete = TextUtils.equals(DO_DELETE, arg);
             MmsPartsCleanup.cleanupDanglingParts(getContext(), doDelete, result);
             return result;
+        } else if (METHOD_GET_OR_CREATE_THREAD_IDS.equals(method)) {
+            ArrayList<String> recipients =
+                    extras == null ? null : extras.getStringArrayList(RECIPIENTS_KEY);
+            int[] recipientCounts =
+                    extras == null ? null : extras.getIntArray(RECIPIENT_COUNTS_KEY);
+            if (recipients == null || recipientCounts == null) {
+                Log.e(LOG_TAG, "call: missing recipients for " + method);
+                return null;
+            }
+            int total = 0;
+            for (int count : recipientCounts) {
+                if (count <= 0) {
+                    Log.e(LOG_TAG, "call: empty recipient list for " + method);
+                    return null;
+                }
+                total += count;
+            }
+            if (total != recipients.size()) {
+                Log.e(LOG_TAG, "call: recipient counts don't match recipients for " + method);
+                return null;
+            }
+            Bundle result = new Bundle();
+            result.putLongArray(THREAD_IDS_KEY, getOrCreateThreadIds(recipients, recipientCounts));
+            return result;
+        } else if (METHOD_REINDEX_WORDS.equals(method)
+                || METHOD_GET_WORDS_REINDEX_PROGRESS.equals(method)) {
+            SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            if (METHOD_REINDEX_WORDS.equals(method)) {
+                WordsIndexRebuilder.startReindex(db);
+            }
+            if (mOpenHelper instanceof MmsSmsDatabaseHelper) {
+                ((MmsSmsDatabaseHelper) mOpenHelper).resumeWordsReindex();
+            }
+            Bundle result = new Bundle();
+            WordsIndexRebuilder.getProgress(db, result);
+            return result;
         }
         Log.w(LOG_TAG, "Ignored unsupported " + method + " call");
         return null;
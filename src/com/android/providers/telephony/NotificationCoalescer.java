@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.UserHandle;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Coalesces the change notifications of a provider, so that a burst of writes results in one
+ * notification per changed uri rather than one per write.
+ *
+ * Changes are collected for a window of time starting with the first one, then flushed at once:
+ * each distinct uri is notified to all users, and the default SMS app gets a single
+ * ACTION_EXTERNAL_PROVIDER_CHANGE per calling user and package. The default SMS app of the
+ * calling user is looked up when the first change is made, since that can't be done from the
+ * thread the notifications are flushed on. When too many distinct uris of the same
+ * authority are pending, they are merged into the root uri of the authority, which notifies the
+ * same observers. A window of 0 disables coalescing.
+ */
+public class NotificationCoalescer {
+    private static final String TAG = "NotificationCoalescer";
+
+    @VisibleForTesting
+    static final int MAX_URIS_PER_AUTHORITY = 8;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final long mWindowMs;
+    private final Runnable mFlushRunnable = this::flush;
+
+    // Authority -> pending uris of that authority, in the order they were first changed.
+    private final Map<String, Set<Uri>> mPendingUris = new LinkedHashMap<>();
+    // Calling user and package -> change to send to the default SMS app of that user on behalf
+    // of that package.
+    private final Map<String, ExternalChange> mPendingExternalChanges = new LinkedHashMap<>();
+    private boolean mFlushScheduled;
+
+    /**
+     * @param looper the looper to flush the notifications on
+     * @param windowMs how long to collect changes before notifying them
+     */
+    NotificationCoalescer(Context context, Looper looper, long windowMs) {
+        mContext = context;
+        mHandler = new Handler(looper);
+        mWindowMs = windowMs;
+    }
+
+    /**
+     * Schedules a change notification of the given uri, to all users.
+     */
+    void notifyChange(Uri uri) {
+        synchronized (this) {
+            if (mWindowMs > 0) {
+                addPendingUri(uri);
+                scheduleFlushLocked();
+                return;
+            }
+        }
+        mContext.getContentResolver().notifyChange(uri, null, true, UserHandle.USER_ALL);
+    }
+
+    // A change to send to the default SMS app of a user.
+    private static class ExternalChange {
+        // The receiver of the default SMS app, or null if it's not to be notified.
+        final ComponentName receiver;
+        Uri uri;
+
+        ExternalChange(ComponentName receiver, Uri uri) {
+            this.receiver = receiver;
+            this.uri = uri;
+        }
+    }
+
+    /**
+     * Schedules a notification of the default SMS app of a change of the given uri made by the
+     * given package, see {@link ProviderUtil#notifyIfNotDefaultSmsApp}. This has to be called on
+     * the binder thread of the change.
+     */
+    void notifyIfNotDefaultSmsApp(Uri uri, String callingPackage) {
+        if (mWindowMs <= 0) {
+            ProviderUtil.notifyIfNotDefaultSmsApp(uri, callingPackage, mContext);
+            return;
+        }
+        String key = getCallingUserHandle().getIdentifier() + ":" + callingPackage;
+        synchronized (this) {
+            ExternalChange pending = mPendingExternalChanges.get(key);
+            if (pending != null) {
+                if (!pending.uri.equals(uri)) {
+                    pending.uri = getRootUri(uri);
+                }
+                scheduleFlushLocked();
+                return;
+            }
+        }
+        // Looked up outside the lock, it's a binder call.
+        ComponentName receiver = getExternalProviderChangeReceiver(callingPackage);
+        synchronized (this) {
+            ExternalChange pending = mPendingExternalChanges.get(key);
+            if (pending == null) {
+                mPendingExternalChanges.put(key, new ExternalChange(receiver, uri));
+            } else if (!pending.uri.equals(uri)) {
+                pending.uri = getRootUri(uri);
+            }
+            scheduleFlushLocked();
+        }
+    }
+
+    @VisibleForTesting
+    UserHandle getCallingUserHandle() {
+        return Binder.getCallingUserHandle();
+    }
+
+    @VisibleForTesting
+    ComponentName getExternalProviderChangeReceiver(String callingPackage) {
+        return ProviderUtil.getExternalProviderChangeReceiver(callingPackage, mContext);
+    }
+
+    /**
+     * Sends all the pending notifications now, on the calling thread. Use this when observers
+     * have to see the changes made so far before the caller goes on.
+     */
+    void flush() {
+        List<Uri> uris = new ArrayList<>();
+        List<ExternalChange> externalChanges;
+        synchronized (this) {
+            if (mFlushScheduled) {
+                mHandler.removeCallbacks(mFlushRunnable);
+                mFlushScheduled = false;
+            }
+            for (Set<Uri> pending : mPendingUris.values()) {
+                uris.addAll(pending);
+            }
+            mPendingUris.clear();
+            externalChanges = new ArrayList<>(mPendingExternalChanges.values());
+            mPendingExternalChanges.clear();
+        }
+
+        for (Uri uri : uris) {
+            mContext.getContentResolver().notifyChange(uri, null, true, UserHandle.USER_ALL);
+        }
+        for (ExternalChange change : externalChanges) {
+            if (change.receiver != null) {
+                ProviderUtil.sendExternalProviderChange(change.uri, change.receiver, mContext);
+            }
+        }
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, "flush: " + uris.size() + " uris, " + externalChanges.size()
+                    + " external changes");
+        }
+    }
+
+    private void addPendingUri(Uri uri) {
+        String authority = uri.getAuthority();
+        Set<Uri> pending = mPendingUris.get(authority);
+        if (pending == null) {
+            pending = new LinkedHashSet<>();
+            mPendingUris.put(authority, pending);
+        }
+        Uri root = getRootUri(uri);
+        if (pending.contains(root)) {
+            // Already merged, the root uri covers this one.
+            return;
+        }
+        pending.add(uri);
+        if (pending.size() > MAX_URIS_PER_AUTHORITY) {
+            pending.clear();
+            pending.add(root);
+        }
+    }
+
+    private void scheduleFlushLocked() {
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlushRunnable, mWindowMs);
+        }
+    }
+
+    private static Uri getRootUri(Uri uri) {
+        return new Uri.Builder().scheme(uri.getScheme()).authority(uri.getAuthority()).build();
+    }
+}
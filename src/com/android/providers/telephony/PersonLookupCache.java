@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.util.Log;
+import android.util.LruCache;
+
+/**
+ * A bounded cache of the contacts person id of recently seen sender addresses, so that a burst
+ * of messages from the same sender only looks the sender up in the contacts provider once.
+ * Addresses that don't belong to any contact are cached too, as {@link #NO_PERSON}.
+ *
+ * The whole cache is dropped whenever the contacts provider notifies a change, which is why
+ * nothing is cached until {@link #register} has succeeded. A contact edited while its sender
+ * was being looked up may have been read before the edit; {@link #put} is given the generation
+ * read before the query, and doesn't cache the result if a change was notified meanwhile.
+ * Entries expire after a minute regardless.
+ */
+public class PersonLookupCache {
+    private static final String TAG = "PersonLookupCache";
+
+    /** Cached value of an address that doesn't match any contact. */
+    static final long NO_PERSON = 0;
+
+    private static final int MAX_SIZE = 128;
+    private static final long EXPIRY_MS = 60 * 1000;
+
+    private static class Entry {
+        final long personId;
+        final long expiryTime;
+
+        Entry(long personId, long expiryTime) {
+            this.personId = personId;
+            this.expiryTime = expiryTime;
+        }
+    }
+
+    private final LruCache<String, Entry> mCache = new LruCache<>(MAX_SIZE);
+    private long mGeneration;
+    private boolean mRegistered;
+
+    private final ContentObserver mContactsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidate();
+        }
+    };
+
+    /**
+     * Starts dropping the cache whenever the contacts change. Does nothing if already done.
+     */
+    synchronized void register(ContentResolver resolver) {
+        if (mRegistered) {
+            return;
+        }
+        try {
+            resolver.registerContentObserver(ContactsContract.AUTHORITY_URI, true,
+                    mContactsObserver);
+            mRegistered = true;
+        } catch (RuntimeException e) {
+            // Without the observer, the entries can't be trusted for longer than a lookup.
+            Log.e(TAG, "register: failed to observe contacts", e);
+        }
+    }
+
+    /**
+     * Returns the cached person id of the given address, {@link #NO_PERSON} if it's known not
+     * to match any contact, or null if it has to be looked up.
+     */
+    synchronized Long get(String address) {
+        if (!mRegistered) {
+            return null;
+        }
+        Entry entry = mCache.get(address);
+        if (entry == null) {
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() >= entry.expiryTime) {
+            mCache.remove(address);
+            return null;
+        }
+        return entry.personId;
+    }
+
+    /**
+     * Returns the current generation, to be passed to {@link #put} once the person id that is
+     * about to be looked up is known.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches the person id of the given address, {@link #NO_PERSON} if it doesn't match any
+     * contact, unless the cache was invalidated since {@code generation} was obtained.
+     */
+    synchronized void put(String address, long personId, long generation) {
+        if (mRegistered && generation == mGeneration) {
+            mCache.put(address, new Entry(personId, SystemClock.elapsedRealtime() + EXPIRY_MS));
+        }
+    }
+
+    /**
+     * Drops all the cached person ids.
+     */
+    synchronized void invalidate() {
+        mGeneration++;
+        mCache.evictAll();
+    }
+}
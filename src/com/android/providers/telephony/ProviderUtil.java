@@ -102,20 +102,48 @@ public class ProviderUtil {
      */
     public static void notifyIfNotDefaultSmsApp(final Uri uri, final String callingPackage,
             final Context context) {
+        ComponentName componentName = getExternalProviderChangeReceiver(callingPackage, context);
+        if (componentName != null) {
+            sendExternalProviderChange(uri, componentName, context);
+        }
+    }
+
+    /**
+     * Returns the receiver of ACTION_EXTERNAL_PROVIDER_CHANGE of the default SMS app of the
+     * calling user, or null if the change is being made by the default SMS app itself or if
+     * it doesn't have such a receiver. Both are looked up for the user of the binder caller,
+     * so this has to be called on the binder thread.
+     *
+     * @param callingPackage The package name of the provider caller
+     */
+    @Nullable
+    public static ComponentName getExternalProviderChangeReceiver(final String callingPackage,
+            final Context context) {
         if (TextUtils.equals(callingPackage, Telephony.Sms.getDefaultSmsPackage(context))) {
             if (Log.isLoggable(TAG, Log.VERBOSE)) {
                 Log.d(TAG, "notifyIfNotDefaultSmsApp - called from default sms app");
             }
-            return;
+            return null;
         }
         // Direct the intent to only the default SMS app, and only if the SMS app has a receiver
         // for the intent.
         ComponentName componentName =
                 SmsApplication.getDefaultExternalTelephonyProviderChangedApplication(context, true);
         if (componentName == null) {
-            return;     // the default sms app doesn't have a receiver for this intent
+            return null;     // the default sms app doesn't have a receiver for this intent
+        }
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.d(TAG, "notifyIfNotDefaultSmsApp - called from " + callingPackage + ", notifying");
         }
+        return componentName;
+    }
 
+    /**
+     * Sends ACTION_EXTERNAL_PROVIDER_CHANGE of the given uri to the given receiver, see
+     * {@link #getExternalProviderChangeReceiver}.
+     */
+    public static void sendExternalProviderChange(final Uri uri,
+            final ComponentName componentName, final Context context) {
         final Intent intent =
                 new Intent(Telephony.Sms.Intents.ACTION_EXTERNAL_PROVIDER_CHANGE);
         intent.setFlags(Intent.FLAG_RECEIVER_REPLACE_PENDING);
@@ -123,13 +151,27 @@ public class ProviderUtil {
         if (uri != null) {
             intent.setData(uri);
         }
-        if (Log.isLoggable(TAG, Log.VERBOSE)) {
-            Log.d(TAG, "notifyIfNotDefaultSmsApp - called from " + callingPackage + ", notifying");
-        }
         intent.setFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
         context.sendBroadcast(intent);
     }
 
+    /**
+     * Returns the value of the given query parameter, or -1 if it's missing or isn't a
+     * non-negative integer.
+     */
+    public static int getNonNegativeIntQueryParameter(Uri uri, String name) {
+        String value = uri.getQueryParameter(name);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Math.max(Integer.parseInt(value), -1);
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Invalid " + name + " query parameter: " + value);
+            return -1;
+        }
+    }
+
     public static Context getCredentialEncryptedContext(Context context) {
         if (context.isCredentialProtectedStorage()) {
             return context;
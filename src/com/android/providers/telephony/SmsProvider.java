@@ -20,7 +20,6 @@ import android.annotation.NonNull;
 import android.app.AppOpsManager;
 import android.content.BroadcastReceiver;
 import android.content.ContentProvider;
-import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
@@ -33,18 +32,23 @@ import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteTransactionListener;
 import android.net.Uri;
 import android.os.Binder;
+import android.os.Bundle;
+import android.os.HandlerThread;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.Contacts;
 import android.provider.Telephony;
+import android.provider.Telephony.Mms;
 import android.provider.Telephony.MmsSms;
 import android.provider.Telephony.Sms;
 import android.provider.Telephony.Threads;
 import android.telephony.SmsManager;
 import android.telephony.SmsMessage;
 import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -52,8 +56,12 @@ import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.TelephonyPermissions;
 import com.android.internal.telephony.util.TelephonyUtils;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 public class SmsProvider extends ContentProvider {
     /* No response constant from SmsResponse */
     static final int NO_ERROR_CODE = -1;
@@ -66,7 +74,6 @@ public class SmsProvider extends ContentProvider {
     static final String TABLE_ATTACHMENTS = "attachments";
     static final String TABLE_CANONICAL_ADDRESSES = "canonical_addresses";
     static final String TABLE_SR_PENDING = "sr_pending";
-    private static final String TABLE_WORDS = "words";
     static final String VIEW_SMS_RESTRICTED = "sms_restricted";
 
     private static final Integer ONE = Integer.valueOf(1);
@@ -100,6 +107,15 @@ public class SmsProvider extends ContentProvider {
         "error_code",                   // Always -1 (NO_ERROR_CODE), previously it was 0 always.
         "_id"
     };
+    private static final int ICC_INDEX_COLUMN = 6;
+    private static final int ICC_ID_COLUMN = 12;
+
+    // Query parameters of SMS_ALL_ICC and SMS_ALL_ICC_SUBID, to page through the messages.
+    private static final String ICC_LIMIT_PARAM = "limit";
+    private static final String ICC_OFFSET_PARAM = "offset";
+
+    // The messages read from the ICC of each subscription.
+    private final IccSnapshotCache mIccSnapshots = new IccSnapshotCache();
 
     @Override
     public boolean onCreate() {
@@ -116,6 +132,13 @@ public class SmsProvider extends ContentProvider {
         getContext().registerReceiver(mUserIntentReceiver, userIntentFilter,
                 Context.RECEIVER_NOT_EXPORTED);
 
+        // The messages on the ICCs have to be read again after a SIM change.
+        IntentFilter simIntentFilter =
+                new IntentFilter(TelephonyManager.ACTION_SIM_CARD_STATE_CHANGED);
+        simIntentFilter.addAction(TelephonyManager.ACTION_SIM_APPLICATION_STATE_CHANGED);
+        getContext().registerReceiver(mSimStateReceiver, simIntentFilter,
+                Context.RECEIVER_NOT_EXPORTED);
+
         return true;
     }
 
@@ -309,7 +332,9 @@ public class SmsProvider extends ContentProvider {
                     return emptyCursor;
                 }
 
-                Cursor ret = getAllMessagesFromIcc(subId);
+                Cursor ret = getAllMessagesFromIcc(subId,
+                        ProviderUtil.getNonNegativeIntQueryParameter(url, ICC_OFFSET_PARAM),
+                        ProviderUtil.getNonNegativeIntQueryParameter(url, ICC_LIMIT_PARAM));
                 ret.setNotificationUri(getContext().getContentResolver(),
                         match == SMS_ALL_ICC ? ICC_URI : ICC_SUBID_URI);
                 return ret;
@@ -353,10 +378,10 @@ public class SmsProvider extends ContentProvider {
         String selectionByEmergencyNumbers = null;
         try {
             // Filter SMS based on subId and emergency numbers.
-            selectionBySubIds = ProviderUtil.getSelectionBySubIds(getContext(),
+            selectionBySubIds = mSelectionCache.getSelectionBySubIds(getContext(),
                     callerUserHandle);
             if (hasCalling() && qb.getTables().equals(smsTable)) {
-                selectionByEmergencyNumbers = ProviderUtil
+                selectionByEmergencyNumbers = mSelectionCache
                         .getSelectionByEmergencyNumbers(getContext());
             }
         } finally {
@@ -479,16 +504,22 @@ public class SmsProvider extends ContentProvider {
     }
 
     /**
-     * Gets single message from the ICC for a subscription ID.
+     * Gets all the messages in the ICC for a subscription ID, as rows of ICC_COLUMNS, from the
+     * snapshot cache if possible.
      *
      * @param subId the subscription ID.
-     * @param messageIndex the message index of the messaage in the ICC (1-based index).
-     * @return a cursor containing just one message from the ICC for the subscription ID.
+     * @return the rows of all the messages in the ICC, which must not be modified.
      */
-    private Cursor getSingleMessageFromIcc(int subId, int messageIndex) {
+    private List<Object[]> getIccRows(int subId) {
         if (!SubscriptionManager.isValidSubscriptionId(subId)) {
             throw new IllegalArgumentException("Invalid Subscription ID " + subId);
         }
+        List<Object[]> rows = mIccSnapshots.get(subId);
+        if (rows != null) {
+            return rows;
+        }
+
+        long generation = mIccSnapshots.getGeneration();
         SmsManager smsManager = SmsManager.getSmsManagerForSubscriptionId(subId);
         List<SmsMessage> messages;
 
@@ -502,11 +533,31 @@ public class SmsProvider extends ContentProvider {
         }
 
         final int count = messages.size();
+        rows = new ArrayList<>(count);
         for (int i = 0; i < count; i++) {
             SmsMessage message = messages.get(i);
-            if (message != null && message.getIndexOnIcc() == messageIndex) {
+            if (message != null) {
+                rows.add(convertIccToSms(message, i));
+            }
+        }
+        mIccSnapshots.put(subId, rows, generation);
+        return rows;
+    }
+
+    /**
+     * Gets single message from the ICC for a subscription ID.
+     *
+     * @param subId the subscription ID.
+     * @param messageIndex the message index of the messaage in the ICC (1-based index).
+     * @return a cursor containing just one message from the ICC for the subscription ID.
+     */
+    private Cursor getSingleMessageFromIcc(int subId, int messageIndex) {
+        for (Object[] row : getIccRows(subId)) {
+            if (((Integer) row[ICC_INDEX_COLUMN]) == messageIndex) {
                 MatrixCursor cursor = new MatrixCursor(ICC_COLUMNS, 1);
-                cursor.addRow(convertIccToSms(message, 0));
+                Object[] single = row.clone();
+                single[ICC_ID_COLUMN] = 0;
+                cursor.addRow(single);
                 return cursor;
             }
         }
@@ -516,34 +567,20 @@ public class SmsProvider extends ContentProvider {
     }
 
     /**
-     * Gets all the messages in the ICC for a subscription ID.
+     * Gets the messages in the ICC for a subscription ID.
      *
      * @param subId the subscription ID.
-     * @return a cursor listing all the message in the ICC for the subscription ID.
+     * @param offset how many messages to skip, or -1 for none.
+     * @param limit the maximum number of messages to return, or -1 for all of them.
+     * @return a cursor listing the message in the ICC for the subscription ID.
      */
-    private Cursor getAllMessagesFromIcc(int subId) {
-        if (!SubscriptionManager.isValidSubscriptionId(subId)) {
-            throw new IllegalArgumentException("Invalid Subscription ID " + subId);
-        }
-        SmsManager smsManager = SmsManager.getSmsManagerForSubscriptionId(subId);
-        List<SmsMessage> messages;
-
-        // Use phone app permissions to avoid UID mismatch in AppOpsManager.noteOp() call
-        long token = Binder.clearCallingIdentity();
-        try {
-            // getMessagesFromIcc() returns a zero-based list of valid messages in the ICC.
-            messages = smsManager.getMessagesFromIcc();
-        } finally {
-            Binder.restoreCallingIdentity(token);
-        }
-
-        final int count = messages.size();
-        MatrixCursor cursor = new MatrixCursor(ICC_COLUMNS, count);
-        for (int i = 0; i < count; i++) {
-            SmsMessage message = messages.get(i);
-            if (message != null) {
-                cursor.addRow(convertIccToSms(message, i));
-            }
+    private Cursor getAllMessagesFromIcc(int subId, int offset, int limit) {
+        List<Object[]> rows = getIccRows(subId);
+        int from = Math.min(Math.max(offset, 0), rows.size());
+        int to = limit < 0 ? rows.size() : (int) Math.min((long) from + limit, rows.size());
+        MatrixCursor cursor = new MatrixCursor(ICC_COLUMNS, to - from);
+        for (Object[] row : rows.subList(from, to)) {
+            cursor.addRow(row);
         }
         return cursor;
     }
@@ -594,14 +631,61 @@ public class SmsProvider extends ContentProvider {
         final String callerPkg = getCallingPackage();
         long token = Binder.clearCallingIdentity();
         try {
+            final int match = sURLMatcher.match(url);
+            final SQLiteDatabase db = match == SMS_ALL_ICC || match == SMS_ALL_ICC_SUBID
+                    || match == UriMatcher.NO_MATCH ? null : getWritableDatabase(match);
+            // Resolve the thread, the person and the subscription of each distinct address
+            // once, rather than once per message, and before the transaction so that other
+            // writers aren't blocked on these binder calls.
+            InsertLookups lookups = new InsertLookups();
+            if (isSmsTable(match)) {
+                getOrCreateThreadIds(values, lookups);
+                getPersons(match, values, lookups);
+            }
+            if (db != null) {
+                checkSubscriptions(match, values, callerUserHandle, lookups);
+            }
+
+            // Insert all the messages in a single transaction, rather than one per message.
             int messagesInserted = 0;
-            for (ContentValues initialValues : values) {
-                Uri insertUri = insertInner(url, initialValues, callerUid, callerPkg,
-                        callerUserHandle);
-                if (insertUri != null) {
-                    messagesInserted++;
+            // A nested transaction that fails rolls this one back without an exception.
+            final boolean[] rolledBack = new boolean[1];
+            if (db != null) {
+                db.beginTransactionWithListener(new SQLiteTransactionListener() {
+                    @Override
+                    public void onBegin() {
+                    }
+
+                    @Override
+                    public void onCommit() {
+                    }
+
+                    @Override
+                    public void onRollback() {
+                        rolledBack[0] = true;
+                    }
+                });
+            }
+            try {
+                for (ContentValues initialValues : values) {
+                    Uri insertUri = insertInner(url, initialValues, callerUid, callerPkg,
+                            callerUserHandle, lookups);
+                    if (insertUri != null) {
+                        messagesInserted++;
+                    }
+                }
+                if (db != null) {
+                    db.setTransactionSuccessful();
+                }
+            } finally {
+                if (db != null) {
+                    db.endTransaction();
                 }
             }
+            if (rolledBack[0]) {
+                Log.e(TAG, "bulkInsert: rolled back " + messagesInserted + " messages");
+                return 0;
+            }
 
             // The raw table is used by the telephony layer for storing an sms before
             // sending out a notification that an sms has arrived. We don't want to notify
@@ -621,7 +705,8 @@ public class SmsProvider extends ContentProvider {
         final String callerPkg = getCallingPackage();
         long token = Binder.clearCallingIdentity();
         try {
-            Uri insertUri = insertInner(url, initialValues, callerUid, callerPkg, callerUserHandle);
+            Uri insertUri = insertInner(url, initialValues, callerUid, callerPkg, callerUserHandle,
+                    null);
 
             // Skip notifyChange() if insertUri is null
             if (insertUri != null) {
@@ -638,8 +723,235 @@ public class SmsProvider extends ContentProvider {
         }
     }
 
+    /**
+     * The results of the binder calls that insertInner makes for a message, which bulkInsert
+     * makes once for all its messages, before its transaction.
+     */
+    private static final class InsertLookups {
+        // Thread ids, keyed on address.
+        final Map<String, Long> threadIds = new HashMap<>();
+        // Contacts person ids, keyed on address.
+        final Map<String, Long> persons = new HashMap<>();
+        // Whether the caller's user may use a subscription, keyed on subId and address.
+        final Map<String, Boolean> associatedSubscriptions = new HashMap<>();
+        // The default sms subscription, or null if it's not looked up yet.
+        Integer defaultSubId;
+    }
+
+    /**
+     * Resolves the thread ids of the messages that don't have one, in a single call to
+     * MmsSmsProvider if there are several addresses, and adds them to the given lookups.
+     * Addresses that couldn't be resolved at once are resolved one by one.
+     */
+    private void getOrCreateThreadIds(ContentValues[] values, InsertLookups lookups) {
+        LinkedHashSet<String> addresses = new LinkedHashSet<>();
+        for (ContentValues initialValues : values) {
+            if (initialValues == null) {
+                continue;
+            }
+            Long threadId = initialValues.getAsLong(Sms.THREAD_ID);
+            String address = initialValues.getAsString(Sms.ADDRESS);
+            if (((threadId == null) || (threadId == 0)) && (!TextUtils.isEmpty(address))) {
+                addresses.add(address);
+            }
+        }
+        if (addresses.size() > 1) {
+            getOrCreateThreadIdsInBulk(addresses, lookups.threadIds);
+        }
+        for (String address : addresses) {
+            getOrCreateThreadId(address, lookups);
+        }
+    }
+
+    private void getOrCreateThreadIdsInBulk(LinkedHashSet<String> addresses,
+            Map<String, Long> threadIds) {
+        ArrayList<String> recipients = new ArrayList<>(addresses.size());
+        for (String address : addresses) {
+            // Same as Telephony.Threads.getOrCreateThreadId().
+            recipients.add(Mms.isEmailAddress(address) ? Mms.extractAddrSpec(address) : address);
+        }
+        int[] recipientCounts = new int[recipients.size()];
+        Arrays.fill(recipientCounts, 1);
+        Bundle extras = new Bundle();
+        extras.putStringArrayList(MmsSmsProvider.RECIPIENTS_KEY, recipients);
+        extras.putIntArray(MmsSmsProvider.RECIPIENT_COUNTS_KEY, recipientCounts);
+
+        long[] result = null;
+        try {
+            Bundle bundle = getContext().getContentResolver().call(MmsSms.CONTENT_URI,
+                    MmsSmsProvider.METHOD_GET_OR_CREATE_THREAD_IDS, null, extras);
+            result = bundle == null ? null : bundle.getLongArray(MmsSmsProvider.THREAD_IDS_KEY);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "getOrCreateThreadIds: failed to get threads in bulk", e);
+        }
+        if (result == null || result.length != recipients.size()) {
+            return;
+        }
+        int i = 0;
+        for (String address : addresses) {
+            if (result[i] > 0) {
+                threadIds.put(address, result[i]);
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Looks up the person of each inbox message that doesn't have one, and adds it to the given
+     * lookups, like insertInner would.
+     */
+    private void getPersons(int match, ContentValues[] values, InsertLookups lookups) {
+        for (ContentValues initialValues : values) {
+            if (initialValues == null) {
+                continue;
+            }
+            Integer type = initialValues.getAsInteger(Sms.TYPE);
+            boolean inbox = match == SMS_INBOX || (match == SMS_ALL
+                    && (type == null || type == Sms.MESSAGE_TYPE_INBOX));
+            String address = initialValues.getAsString(Sms.ADDRESS);
+            if (inbox && initialValues.getAsLong(Sms.PERSON) == null
+                    && !TextUtils.isEmpty(address)) {
+                getPerson(address, lookups);
+            }
+        }
+    }
+
+    /**
+     * Looks up the subscription of each message that insertInner would check, and whether the
+     * caller's user may use it, like insertInner would.
+     */
+    private void checkSubscriptions(int match, ContentValues[] values,
+            UserHandle callerUserHandle, InsertLookups lookups) {
+        for (ContentValues initialValues : values) {
+            Integer subId = initialValues == null
+                    ? null : initialValues.getAsInteger(Telephony.Sms.SUBSCRIPTION_ID);
+            if (subId == null) {
+                subId = getDefaultSmsSubscriptionId(lookups);
+            }
+            if (isSmsTable(match) && subId != SubscriptionManager.INVALID_SUBSCRIPTION_ID) {
+                String address = initialValues != null && initialValues.containsKey(Sms.ADDRESS)
+                        ? initialValues.getAsString(Sms.ADDRESS) : "";
+                isSubscriptionAssociatedWithUser(subId, callerUserHandle, address, lookups);
+            }
+        }
+    }
+
+    private long getOrCreateThreadId(String address, InsertLookups lookups) {
+        Long threadId = lookups == null ? null : lookups.threadIds.get(address);
+        if (threadId == null) {
+            threadId = Threads.getOrCreateThreadId(getContext(), address);
+            if (lookups != null) {
+                lookups.threadIds.put(address, threadId);
+            }
+        }
+        return threadId;
+    }
+
+    private long getPerson(String address, InsertLookups lookups) {
+        Long person = lookups == null ? null : lookups.persons.get(address);
+        if (person == null) {
+            person = getPerson(address);
+            if (lookups != null) {
+                lookups.persons.put(address, person);
+            }
+        }
+        return person;
+    }
+
+    private int getDefaultSmsSubscriptionId(InsertLookups lookups) {
+        if (lookups == null) {
+            return getDefaultSmsSubscriptionId();
+        }
+        if (lookups.defaultSubId == null) {
+            lookups.defaultSubId = getDefaultSmsSubscriptionId();
+        }
+        return lookups.defaultSubId;
+    }
+
+    private boolean isSubscriptionAssociatedWithUser(int subId, UserHandle callerUserHandle,
+            String address, InsertLookups lookups) {
+        if (lookups == null) {
+            return isSubscriptionAssociatedWithUser(subId, callerUserHandle, address);
+        }
+        final String key = subId + ":" + address;
+        Boolean associated = lookups.associatedSubscriptions.get(key);
+        if (associated == null) {
+            associated = isSubscriptionAssociatedWithUser(subId, callerUserHandle, address);
+            lookups.associatedSubscriptions.put(key, associated);
+        }
+        return associated;
+    }
+
+    @VisibleForTesting
+    int getDefaultSmsSubscriptionId() {
+        return SmsManager.getDefaultSmsSubscriptionId();
+    }
+
+    @VisibleForTesting
+    boolean isSubscriptionAssociatedWithUser(int subId, UserHandle callerUserHandle,
+            String address) {
+        return TelephonyPermissions.checkSubscriptionAssociatedWithUser(getContext(), subId,
+                callerUserHandle, address);
+    }
+
+    /**
+     * Returns the contacts person id of the given address, or PersonLookupCache.NO_PERSON if it
+     * doesn't match any contact or can't be looked up.
+     */
+    private long getPerson(String address) {
+        mPersonCache.register(getContext().getContentResolver());
+        Long cached = mPersonCache.get(address);
+        if (cached != null) {
+            return cached;
+        }
+
+        long generation = mPersonCache.getGeneration();
+        Cursor cursor = null;
+        Uri uri = Uri.withAppendedPath(Contacts.Phones.CONTENT_FILTER_URL,
+                Uri.encode(address));
+        try {
+            cursor = getContext().getContentResolver().query(
+                    uri,
+                    CONTACT_QUERY_PROJECTION,
+                    null, null, null);
+
+            if (cursor != null) {
+                long person = cursor.moveToFirst()
+                        ? cursor.getLong(PERSON_ID_COLUMN) : PersonLookupCache.NO_PERSON;
+                mPersonCache.put(address, person, generation);
+                return person;
+            }
+        } catch (Exception ex) {
+            Log.e(TAG, "insert: query contact uri " + uri + " caught ", ex);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return PersonLookupCache.NO_PERSON;
+    }
+
+    private static boolean isSmsTable(int match) {
+        switch (match) {
+            case SMS_ALL:
+            case SMS_INBOX:
+            case SMS_FAILED:
+            case SMS_QUEUED:
+            case SMS_SENT:
+            case SMS_DRAFT:
+            case SMS_OUTBOX:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param lookups what's already looked up for the messages of a bulkInsert, or null; new
+     *                lookups are added to it
+     */
     private Uri insertInner(Uri url, ContentValues initialValues, int callerUid, String callerPkg,
-            UserHandle callerUserHandle) {
+            UserHandle callerUserHandle, InsertLookups lookups) {
         ContentValues values;
         long rowID;
         int type = Sms.MESSAGE_TYPE_ALL;
@@ -792,8 +1104,7 @@ public class SmsProvider extends ContentProvider {
             String address = values.getAsString(Sms.ADDRESS);
 
             if (((threadId == null) || (threadId == 0)) && (!TextUtils.isEmpty(address))) {
-                values.put(Sms.THREAD_ID, Threads.getOrCreateThreadId(
-                                   getContext(), address));
+                values.put(Sms.THREAD_ID, getOrCreateThreadId(address, lookups));
             }
 
             // If this message is going in as a draft, it should replace any
@@ -810,25 +1121,9 @@ public class SmsProvider extends ContentProvider {
             if (type == Sms.MESSAGE_TYPE_INBOX) {
                 // Look up the person if not already filled in.
                 if ((values.getAsLong(Sms.PERSON) == null) && (!TextUtils.isEmpty(address))) {
-                    Cursor cursor = null;
-                    Uri uri = Uri.withAppendedPath(Contacts.Phones.CONTENT_FILTER_URL,
-                            Uri.encode(address));
-                    try {
-                        cursor = getContext().getContentResolver().query(
-                                uri,
-                                CONTACT_QUERY_PROJECTION,
-                                null, null, null);
-
-                        if (cursor != null && cursor.moveToFirst()) {
-                            Long id = Long.valueOf(cursor.getLong(PERSON_ID_COLUMN));
-                            values.put(Sms.PERSON, id);
-                        }
-                    } catch (Exception ex) {
-                        Log.e(TAG, "insert: query contact uri " + uri + " caught ", ex);
-                    } finally {
-                        if (cursor != null) {
-                            cursor.close();
-                        }
+                    long person = getPerson(address, lookups);
+                    if (person != PersonLookupCache.NO_PERSON) {
+                        values.put(Sms.PERSON, person);
                     }
                 }
             } else {
@@ -857,7 +1152,7 @@ public class SmsProvider extends ContentProvider {
         } else {
             // TODO (b/256992531): Currently, one sim card is set as default sms subId in work
             //  profile. Default sms subId should be updated based on user pref.
-            subId = SmsManager.getDefaultSmsSubscriptionId();
+            subId = getDefaultSmsSubscriptionId(lookups);
             if (SubscriptionManager.isValidSubscriptionId(subId)) {
                 values.put(Telephony.Sms.SUBSCRIPTION_ID, subId);
             }
@@ -872,8 +1167,8 @@ public class SmsProvider extends ContentProvider {
             }
 
             if (subId != SubscriptionManager.INVALID_SUBSCRIPTION_ID
-                    && !TelephonyPermissions.checkSubscriptionAssociatedWithUser(getContext(),
-                    subId, callerUserHandle, address)) {
+                    && !isSubscriptionAssociatedWithUser(subId, callerUserHandle, address,
+                            lookups)) {
                 TelephonyUtils.showSwitchToManagedProfileDialogIfAppropriate(getContext(),
                         subId, callerUid, callerPkg);
                 return null;
@@ -881,22 +1176,12 @@ public class SmsProvider extends ContentProvider {
         }
 
         rowID = db.insert(table, "body", values);
-
-        // Don't use a trigger for updating the words table because of a bug
-        // in FTS3.  The bug is such that the call to get the last inserted
-        // row is incorrect.
-        if (table == TABLE_SMS) {
-            // Update the words table with a corresponding row.  The words table
-            // allows us to search for words quickly, without scanning the whole
-            // table;
-            ContentValues cv = new ContentValues();
-            cv.put(Telephony.MmsSms.WordsTable.ID, rowID);
-            cv.put(Telephony.MmsSms.WordsTable.INDEXED_TEXT, values.getAsString("body"));
-            cv.put(Telephony.MmsSms.WordsTable.SOURCE_ROW_ID, rowID);
-            cv.put(Telephony.MmsSms.WordsTable.TABLE_ID, 1);
-            cv.put(MmsSms.WordsTable.SUBSCRIPTION_ID, subId);
-            db.insert(TABLE_WORDS, Telephony.MmsSms.WordsTable.INDEXED_TEXT, cv);
+        if (match == SMS_NEW_THREAD_ID && rowID > 0) {
+            // Canonical addresses inserted behind MmsSmsProvider's back.
+            CanonicalAddressIndex.invalidate(db);
         }
+
+        // The words table is updated by a trigger.
         if (rowID > 0) {
             Uri uri = null;
             if (table == TABLE_SMS) {
@@ -971,6 +1256,8 @@ public class SmsProvider extends ContentProvider {
             return smsManager.copyMessageToIcc(
                     smsPdu.encodedScAddress, smsPdu.encodedMessage, status);
         } finally {
+            // Invalidate after the write, so a concurrent read of the old messages isn't cached.
+            mIccSnapshots.invalidate(subId);
             Binder.restoreCallingIdentity(token);
         }
     }
@@ -985,10 +1272,10 @@ public class SmsProvider extends ContentProvider {
         String selectionByEmergencyNumbers = null;
         try {
             // Filter SMS based on subId and emergency numbers.
-            selectionBySubIds = ProviderUtil.getSelectionBySubIds(getContext(),
+            selectionBySubIds = mSelectionCache.getSelectionBySubIds(getContext(),
                     callerUserHandle);
             if (hasCalling()) {
-                selectionByEmergencyNumbers = ProviderUtil
+                selectionByEmergencyNumbers = mSelectionCache
                         .getSelectionByEmergencyNumbers(getContext());
             }
         } finally {
@@ -1188,6 +1475,7 @@ public class SmsProvider extends ContentProvider {
         try {
             return smsManager.deleteMessageFromIcc(messageIndex);
         } finally {
+            mIccSnapshots.invalidate(subId);
             Binder.restoreCallingIdentity(token);
         }
     }
@@ -1220,6 +1508,7 @@ public class SmsProvider extends ContentProvider {
             }
             return deletedCnt;
         } finally {
+            mIccSnapshots.invalidate(subId);
             Binder.restoreCallingIdentity(token);
         }
     }
@@ -1307,10 +1596,10 @@ public class SmsProvider extends ContentProvider {
         String selectionByEmergencyNumbers = null;
         try {
             // Filter SMS based on subId and emergency numbers.
-            selectionBySubIds = ProviderUtil.getSelectionBySubIds(getContext(),
+            selectionBySubIds = mSelectionCache.getSelectionBySubIds(getContext(),
                     callerUserHandle);
             if (table.equals(TABLE_SMS)) {
-                selectionByEmergencyNumbers = ProviderUtil
+                selectionByEmergencyNumbers = mSelectionCache
                         .getSelectionByEmergencyNumbers(getContext());
             }
         } finally {
@@ -1352,15 +1641,46 @@ public class SmsProvider extends ContentProvider {
     }
 
     private void notifyChange(boolean notifyIfNotDefault, Uri uri, final String callingPackage) {
-        final Context context = getContext();
-        ContentResolver cr = context.getContentResolver();
-        cr.notifyChange(uri, null, true, UserHandle.USER_ALL);
-        cr.notifyChange(MmsSms.CONTENT_URI, null, true, UserHandle.USER_ALL);
-        cr.notifyChange(Uri.parse("content://mms-sms/conversations/"), null, true,
-                UserHandle.USER_ALL);
+        NotificationCoalescer notifier = getNotifier();
+        notifier.notifyChange(uri);
+        notifier.notifyChange(MmsSms.CONTENT_URI);
+        notifier.notifyChange(CONVERSATIONS_URI);
         if (notifyIfNotDefault) {
-            ProviderUtil.notifyIfNotDefaultSmsApp(uri, callingPackage, context);
+            notifier.notifyIfNotDefaultSmsApp(uri, callingPackage);
+        }
+    }
+
+    private synchronized NotificationCoalescer getNotifier() {
+        if (mNotifier == null) {
+            HandlerThread thread = new HandlerThread(TAG + "Notifier");
+            thread.start();
+            mNotifier = new NotificationCoalescer(getContext(), thread.getLooper(),
+                    getContext().getResources().getInteger(R.integer.sms_notify_window_ms));
+        }
+        return mNotifier;
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (METHOD_FLUSH_NOTIFICATIONS.equals(method)) {
+            // The notifications are sent to all users, as the provider.
+            long token = Binder.clearCallingIdentity();
+            try {
+                getNotifier().flush();
+            } finally {
+                Binder.restoreCallingIdentity(token);
+            }
+            return new Bundle();
         }
+        Log.w(TAG, "Ignored unsupported " + method + " call");
+        return null;
+    }
+
+    @Override
+    public void shutdown() {
+        // Don't lose the pending notifications.
+        getNotifier().flush();
+        super.shutdown();
     }
 
     // Db open helper for tables stored in CE(Credential Encrypted) storage.
@@ -1372,6 +1692,18 @@ public class SmsProvider extends ContentProvider {
     public SQLiteOpenHelper mDeOpenHelper;
 
     private final static String TAG = "SmsProvider";
+
+    private static final Uri CONVERSATIONS_URI = Uri.parse("content://mms-sms/conversations/");
+    // Call() method that sends the change notifications pending in the coalescing window right
+    // away, for callers whose observers have to see their changes before they go on.
+    static final String METHOD_FLUSH_NOTIFICATIONS = "flush_notifications";
+    // A burst of incoming messages results in a single notification per uri, see
+    // R.integer.sms_notify_window_ms.
+    private NotificationCoalescer mNotifier;
+    // Sender address -> contacts person id, for inbox messages.
+    private final PersonLookupCache mPersonCache = new PersonLookupCache();
+    // The selections restricting the messages visible to each user.
+    private final SubscriptionSelectionCache mSelectionCache = new SubscriptionSelectionCache();
     private final static String VND_ANDROID_SMS = "vnd.android.cursor.item/sms";
     private final static String VND_ANDROID_SMSCHAT =
             "vnd.android.cursor.item/sms-chat";
@@ -1458,6 +1790,13 @@ public class SmsProvider extends ContentProvider {
         return  getDBOpenHelper(match).getWritableDatabase();
     }
 
+    private final BroadcastReceiver mSimStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mIccSnapshots.invalidateAll();
+        }
+    };
+
     private BroadcastReceiver mUserIntentReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.Context;
+import android.os.UserHandle;
+import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyCallback;
+import android.telephony.TelephonyManager;
+import android.telephony.emergency.EmergencyNumber;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * A cache of the selections that restrict the messages visible to a user, as built by
+ * {@link ProviderUtil#getSelectionBySubIds} and
+ * {@link ProviderUtil#getSelectionByEmergencyNumbers}, so that every query doesn't have to ask
+ * the subscription manager and the telephony manager for them again.
+ *
+ * The cache is dropped whenever the subscriptions or the emergency numbers change, so it's only
+ * used once listeners for those changes are registered, on first use. Building a selection
+ * asks other processes, during which a SIM may be inserted; the generation is read before and
+ * checked again after, and a selection that might predate the change is returned uncached.
+ */
+public class SubscriptionSelectionCache {
+    private static final String TAG = "SubscriptionSelectionCache";
+
+    // Selections may be null, which is cached as an empty Optional.
+    private final Map<UserHandle, Optional<String>> mSelectionsBySubIds = new HashMap<>();
+    private Optional<String> mSelectionByEmergencyNumbers;
+    private long mGeneration;
+    private boolean mRegisterAttempted;
+    private boolean mRegistered;
+
+    private final SubscriptionManager.OnSubscriptionsChangedListener mSubscriptionsListener =
+            new SubscriptionManager.OnSubscriptionsChangedListener() {
+                @Override
+                public void onSubscriptionsChanged() {
+                    invalidate();
+                }
+            };
+
+    private class EmergencyNumberListener extends TelephonyCallback
+            implements TelephonyCallback.EmergencyNumberListListener {
+        @Override
+        public void onEmergencyNumberListChanged(
+                @NonNull Map<Integer, List<EmergencyNumber>> emergencyNumberList) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Same as {@link ProviderUtil#getSelectionBySubIds}, from the cache if possible.
+     */
+    @Nullable
+    String getSelectionBySubIds(Context context, @NonNull UserHandle userHandle) {
+        long generation;
+        synchronized (this) {
+            register(context);
+            Optional<String> selection = mSelectionsBySubIds.get(userHandle);
+            if (selection != null) {
+                return selection.orElse(null);
+            }
+            generation = mGeneration;
+        }
+        String selection = ProviderUtil.getSelectionBySubIds(context, userHandle);
+        synchronized (this) {
+            if (mRegistered && generation == mGeneration) {
+                mSelectionsBySubIds.put(userHandle, Optional.ofNullable(selection));
+            }
+        }
+        return selection;
+    }
+
+    /**
+     * Same as {@link ProviderUtil#getSelectionByEmergencyNumbers}, from the cache if possible.
+     */
+    @Nullable
+    String getSelectionByEmergencyNumbers(@NonNull Context context) {
+        long generation;
+        synchronized (this) {
+            register(context);
+            if (mSelectionByEmergencyNumbers != null) {
+                return mSelectionByEmergencyNumbers.orElse(null);
+            }
+            generation = mGeneration;
+        }
+        String selection = ProviderUtil.getSelectionByEmergencyNumbers(context);
+        synchronized (this) {
+            if (mRegistered && generation == mGeneration) {
+                mSelectionByEmergencyNumbers = Optional.ofNullable(selection);
+            }
+        }
+        return selection;
+    }
+
+    /**
+     * Drops all the cached selections.
+     */
+    synchronized void invalidate() {
+        mGeneration++;
+        mSelectionsBySubIds.clear();
+        mSelectionByEmergencyNumbers = null;
+    }
+
+    private void register(Context context) {
+        if (mRegisterAttempted) {
+            return;
+        }
+        mRegisterAttempted = true;
+        SubscriptionManager subManager = context.getSystemService(SubscriptionManager.class);
+        TelephonyManager tm = context.getSystemService(TelephonyManager.class);
+        if (subManager == null || tm == null) {
+            return;
+        }
+        try {
+            subManager.addOnSubscriptionsChangedListener(Runnable::run, mSubscriptionsListener);
+            tm.registerTelephonyCallback(Runnable::run, new EmergencyNumberListener());
+            mRegistered = true;
+        } catch (RuntimeException e) {
+            // Without the listeners, the selections can't be cached.
+            Log.e(TAG, "register: failed to listen to subscription changes", e);
+            subManager.removeOnSubscriptionsChangedListener(mSubscriptionsListener);
+        }
+    }
+}
@@ -27,19 +27,21 @@ import android.app.backup.BackupManager;
 import android.app.backup.BackupRestoreEventLogger;
 import android.app.backup.FullBackupDataOutput;
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 import android.os.PowerManager;
 import android.os.UserHandle;
 import android.preference.PreferenceManager;
 import android.provider.BaseColumns;
+import android.provider.DeviceConfig;
 import android.provider.Telephony;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.SubscriptionInfo;
@@ -58,6 +60,8 @@ import com.android.internal.telephony.PhoneFactory;
 import com.google.android.mms.ContentType;
 import com.google.android.mms.pdu.CharacterSets;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileDescriptor;
@@ -66,14 +70,22 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.InflaterInputStream;
@@ -178,9 +190,17 @@ public class TelephonyBackupAgent extends BackupAgent {
     private static final String SMS_BACKUP_FILE_SUFFIX = "_sms_backup";
     private static final String MMS_BACKUP_FILE_SUFFIX = "_mms_backup";
 
+    // File names suffixes of the compact format, see BackupFormat.
+    private static final String SMS_COMPACT_BACKUP_FILE_SUFFIX = "_sms_backup_compact";
+    private static final String MMS_COMPACT_BACKUP_FILE_SUFFIX = "_mms_backup_compact";
+
     // File name formats for backup. It looks like 000000_sms_backup, 000001_sms_backup, etc.
     private static final String SMS_BACKUP_FILE_FORMAT = "%06d"+SMS_BACKUP_FILE_SUFFIX;
     private static final String MMS_BACKUP_FILE_FORMAT = "%06d"+MMS_BACKUP_FILE_SUFFIX;
+    private static final String SMS_COMPACT_BACKUP_FILE_FORMAT =
+            "%06d" + SMS_COMPACT_BACKUP_FILE_SUFFIX;
+    private static final String MMS_COMPACT_BACKUP_FILE_FORMAT =
+            "%06d" + MMS_COMPACT_BACKUP_FILE_SUFFIX;
 
     // Charset being used for reading/writing backup files.
     private static final String CHARSET_UTF8 = "UTF-8";
@@ -245,10 +265,15 @@ public class TelephonyBackupAgent extends BackupAgent {
     // for MMS message.
     @VisibleForTesting
     static final String[] MMS_ADDR_PROJECTION = new String[] {
+            Telephony.Mms.Addr.MSG_ID,
             Telephony.Mms.Addr.TYPE,
             Telephony.Mms.Addr.ADDRESS,
             Telephony.Mms.Addr.CHARSET
     };
+    static final int MMS_ADDR_MSG_ID_IDX = 0;
+    static final int MMS_ADDR_TYPE_IDX = 1;
+    static final int MMS_ADDR_ADDRESS_IDX = 2;
+    static final int MMS_ADDR_CHARSET_IDX = 3;
 
     // Columns from part database for backup/restore. This database is used for fetching body text
     // and charset for MMS message.
@@ -260,6 +285,27 @@ public class TelephonyBackupAgent extends BackupAgent {
     static final int MMS_TEXT_IDX = 0;
     static final int MMS_TEXT_CHARSET_IDX = 1;
 
+    // Same as MMS_TEXT_PROJECTION, for the parts of many messages at once.
+    @VisibleForTesting
+    static final String[] MMS_BATCH_TEXT_PROJECTION = new String[] {
+            Telephony.Mms.Part.MSG_ID,
+            Telephony.Mms.Part.TEXT,
+            Telephony.Mms.Part.CHARSET
+    };
+    static final int MMS_BATCH_TEXT_MSG_ID_IDX = 0;
+    static final int MMS_BATCH_TEXT_IDX = 1;
+    static final int MMS_BATCH_TEXT_CHARSET_IDX = 2;
+
+    @VisibleForTesting
+    static final Uri MMS_ALL_PARTS_URI = Uri.withAppendedPath(Telephony.Mms.CONTENT_URI, "part");
+    @VisibleForTesting
+    static final Uri MMS_ALL_ADDRS_URI = Uri.withAppendedPath(Telephony.Mms.CONTENT_URI, "addr");
+
+    // Number of messages whose bodies, addresses and thread recipients are fetched at once
+    // during backup.
+    @VisibleForTesting
+    static final int BACKUP_BATCH_SIZE = 200;
+
     // Buffer size for Json writer.
     public static final int WRITER_BUFFER_SIZE = 32*1024; //32Kb
 
@@ -273,6 +319,19 @@ public class TelephonyBackupAgent extends BackupAgent {
     @VisibleForTesting
     int mMaxMsgPerFile = 1000;
 
+    // Whether onFullBackup reads the messages on the calling thread while other threads encode
+    // and compress the chunks already read, see BackupPipeline.
+    @VisibleForTesting
+    boolean mPipelinedBackup = true;
+    private static final int MAX_BACKUP_THREADS = 4;
+
+    // DeviceConfig flag, in the telephony namespace, that makes onFullBackup write the compact
+    // format rather than JSON. Both formats are restored. But restoreAnyVersion lets builds
+    // without the compact reader restore the backups, and they would skip the compact files. So
+    // the flag is only to be turned on for devices whose backups can't reach such builds any
+    // more, once every build that the population rolled out to restores onto reads the format.
+    private static final String COMPACT_BACKUP_FLAG = "compact_sms_backup";
+
     // Default values for SMS, MMS, Addresses restore.
     private static ContentValues sDefaultValuesSms = new ContentValues(5);
     private static ContentValues sDefaultValuesMms = new ContentValues(6);
@@ -333,6 +392,8 @@ public class TelephonyBackupAgent extends BackupAgent {
     // Cache threadId by list of recipients. Used during restore.
     @VisibleForTesting
     Map<Set<String>, Long> mCacheGetOrCreateThreadId = null;
+    // Restored SMS whose thread is still to be resolved, see resolvePendingSmsThreads().
+    private final List<PendingSmsThread> mPendingSmsThreads = new ArrayList<>();
 
     /**
      * BackupRestoreEventLogger Dependencies for unit testing.
@@ -473,29 +534,41 @@ public class TelephonyBackupAgent extends BackupAgent {
             // messages, otherwise 1000 MMS messages. Repeat until out of SMS's or MMS's.
             // It ensures backups are incremental.
             int fileNum = 0;
+            final boolean compactBackup = isCompactBackupEnabled();
+            final String smsFileFormat =
+                    compactBackup ? SMS_COMPACT_BACKUP_FILE_FORMAT : SMS_BACKUP_FILE_FORMAT;
+            final String mmsFileFormat =
+                    compactBackup ? MMS_COMPACT_BACKUP_FILE_FORMAT : MMS_BACKUP_FILE_FORMAT;
             mSmsCount = 0;
             mMmsCount = 0;
-            while (smsCursor != null && !smsCursor.isAfterLast() &&
-                    mmsCursor != null && !mmsCursor.isAfterLast()) {
-                final long smsDate = TimeUnit.MILLISECONDS.toSeconds(getMessageDate(smsCursor));
-                final long mmsDate = getMessageDate(mmsCursor);
-                if (smsDate < mmsDate) {
-                    backupAll(data, smsCursor,
-                            String.format(Locale.US, SMS_BACKUP_FILE_FORMAT, fileNum++));
-                } else {
-                    backupAll(data, mmsCursor, String.format(Locale.US,
-                            MMS_BACKUP_FILE_FORMAT, fileNum++));
+            try (BackupPipeline pipeline = mPipelinedBackup ? new BackupPipeline(data) : null) {
+                while (smsCursor != null && !smsCursor.isAfterLast() &&
+                        mmsCursor != null && !mmsCursor.isAfterLast()) {
+                    final long smsDate =
+                            TimeUnit.MILLISECONDS.toSeconds(getMessageDate(smsCursor));
+                    final long mmsDate = getMessageDate(mmsCursor);
+                    if (smsDate < mmsDate) {
+                        backupAll(pipeline, data, smsCursor,
+                                String.format(Locale.US, smsFileFormat, fileNum++));
+                    } else {
+                        backupAll(pipeline, data, mmsCursor,
+                                String.format(Locale.US, mmsFileFormat, fileNum++));
+                    }
                 }
-            }
 
-            while (smsCursor != null && !smsCursor.isAfterLast()) {
-                backupAll(data, smsCursor,
-                        String.format(Locale.US, SMS_BACKUP_FILE_FORMAT, fileNum++));
-            }
+                while (smsCursor != null && !smsCursor.isAfterLast()) {
+                    backupAll(pipeline, data, smsCursor,
+                            String.format(Locale.US, smsFileFormat, fileNum++));
+                }
 
-            while (mmsCursor != null && !mmsCursor.isAfterLast()) {
-                backupAll(data, mmsCursor,
-                        String.format(Locale.US, MMS_BACKUP_FILE_FORMAT, fileNum++));
+                while (mmsCursor != null && !mmsCursor.isAfterLast()) {
+                    backupAll(pipeline, data, mmsCursor,
+                            String.format(Locale.US, mmsFileFormat, fileNum++));
+                }
+
+                if (pipeline != null) {
+                    pipeline.finish();
+                }
             }
 
             if (mSmsCount > 0) {
@@ -508,6 +581,8 @@ public class TelephonyBackupAgent extends BackupAgent {
         }
 
         mThreadArchived = new HashMap<>();
+        mSmsBatch = null;
+        mMmsBatch = null;
     }
 
     @VisibleForTesting
@@ -539,24 +614,28 @@ public class TelephonyBackupAgent extends BackupAgent {
                 .apply();
     }
 
-    private void backupAll(FullBackupDataOutput data, Cursor cursor, String fileName)
-            throws IOException {
+    private void backupAll(BackupPipeline pipeline, FullBackupDataOutput data, Cursor cursor,
+            String fileName) throws IOException {
         Log.d(TAG, "backupAll()");
         if (cursor == null || cursor.isAfterLast()) {
             Log.d(TAG, "backupAll(): cursor is null return");
             return;
         }
+        if (pipeline != null) {
+            pipeline.submit(cursor, fileName);
+            return;
+        }
 
         // Backups consist of multiple chunks; each chunk consists of a set of messages
         // of the same type in a chronological order.
         BackupChunkInformation chunk;
-        try (JsonWriter jsonWriter = getJsonWriter(fileName)) {
-            if (fileName.endsWith(SMS_BACKUP_FILE_SUFFIX)) {
-                chunk = putSmsMessagesToJson(cursor, jsonWriter);
+        try (BackupFormat.Writer jsonWriter = getBackupWriter(fileName)) {
+            if (isSmsBackupFile(fileName)) {
+                chunk = putSmsMessagesToJson(cursor, jsonWriter, null);
                 mSmsCount = chunk.count;
                 Log.d(TAG, "backupAll: Wrote SMS messages to Json. mSmsCount=" + mSmsCount);
             } else {
-                chunk = putMmsMessagesToJson(cursor, jsonWriter);
+                chunk = putMmsMessagesToJson(cursor, jsonWriter, null);
                 mMmsCount = chunk.count;
                 Log.d(TAG, "backupAll: Wrote MMS messages to Json. mMmsCount=" + mMmsCount);
             }
@@ -565,15 +644,179 @@ public class TelephonyBackupAgent extends BackupAgent {
         backupFile(chunk, fileName, data);
     }
 
+    /**
+     * Runs a full backup in stages. The messages of each chunk, and whatever they need from other
+     * tables, are read on the calling thread. A pool of threads then encodes and compresses the
+     * chunks to their files, while the calling thread reads the next ones. The files are handed
+     * to the backup on the calling thread, in the order the chunks were read, which is the
+     * chronological order the restore relies on. At most twice as many chunks as threads are
+     * held in memory at once.
+     */
+    private final class BackupPipeline implements AutoCloseable {
+        private final FullBackupDataOutput mData;
+        private final ExecutorService mExecutor;
+        private final int mMaxPendingChunks;
+        private final ArrayDeque<PendingChunk> mPendingChunks = new ArrayDeque<>();
+
+        BackupPipeline(FullBackupDataOutput data) {
+            mData = data;
+            int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+                    MAX_BACKUP_THREADS));
+            mExecutor = Executors.newFixedThreadPool(threads);
+            mMaxPendingChunks = 2 * threads;
+        }
+
+        /**
+         * Reads the next chunk of messages from the cursor, and schedules writing it to the
+         * given file.
+         */
+        void submit(Cursor cursor, String fileName) throws IOException {
+            final boolean isSms = isSmsBackupFile(fileName);
+            final BackupSnapshot snapshot = readSnapshot(cursor, isSms);
+            Future<BackupChunkInformation> future = mExecutor.submit(() -> {
+                try (BackupFormat.Writer jsonWriter = getBackupWriter(fileName)) {
+                    snapshot.rows.moveToFirst();
+                    return isSms
+                            ? putSmsMessagesToJson(snapshot.rows, jsonWriter, snapshot.extras)
+                            : putMmsMessagesToJson(snapshot.rows, jsonWriter, snapshot.extras);
+                }
+            });
+            mPendingChunks.add(new PendingChunk(fileName, isSms, future));
+            while (mPendingChunks.size() > mMaxPendingChunks) {
+                backupNextChunk();
+            }
+        }
+
+        /**
+         * Hands all the remaining chunks to the backup.
+         */
+        void finish() throws IOException {
+            while (!mPendingChunks.isEmpty()) {
+                backupNextChunk();
+            }
+        }
+
+        private void backupNextChunk() throws IOException {
+            PendingChunk pending = mPendingChunks.peek();
+            BackupChunkInformation chunk;
+            try {
+                chunk = pending.future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing " + pending.fileName, e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Failed to write " + pending.fileName, e.getCause());
+            }
+            mPendingChunks.remove();
+            if (pending.isSms) {
+                mSmsCount = chunk.count;
+                Log.d(TAG, "backupAll: Wrote SMS messages to Json. mSmsCount=" + mSmsCount);
+            } else {
+                mMmsCount = chunk.count;
+                Log.d(TAG, "backupAll: Wrote MMS messages to Json. mMmsCount=" + mMmsCount);
+            }
+            backupFile(chunk, pending.fileName, mData);
+        }
+
+        /**
+         * Stops the threads. On failure, also deletes the files of the chunks that weren't
+         * handed to the backup.
+         */
+        @Override
+        public void close() {
+            mExecutor.shutdownNow();
+            if (mPendingChunks.isEmpty()) {
+                return;
+            }
+            try {
+                mExecutor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (PendingChunk pending : mPendingChunks) {
+                new File(getFilesDir(), pending.fileName).delete();
+            }
+            mPendingChunks.clear();
+        }
+    }
+
+    private static final class PendingChunk {
+        final String fileName;
+        final boolean isSms;
+        final Future<BackupChunkInformation> future;
+
+        PendingChunk(String fileName, boolean isSms, Future<BackupChunkInformation> future) {
+            this.fileName = fileName;
+            this.isSms = isSms;
+            this.future = future;
+        }
+    }
+
+    /**
+     * A chunk of messages read ahead of writing them: a copy of their rows, and their extras in
+     * the same order.
+     */
+    private static final class BackupSnapshot {
+        final MatrixCursor rows;
+        final List<BackupExtras> extras;
+
+        BackupSnapshot(MatrixCursor rows, List<BackupExtras> extras) {
+            this.rows = rows;
+            this.extras = extras;
+        }
+    }
+
+    /**
+     * Reads the next chunk of messages from the cursor, the way putSmsMessagesToJson() or
+     * putMmsMessagesToJson() would write them, leaving out the MMS that aren't backed up.
+     */
+    private BackupSnapshot readSnapshot(Cursor cursor, boolean isSms) {
+        final int columnCount = cursor.getColumnCount();
+        final String[] columnNames = new String[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            columnNames[i] = cursor.getColumnName(i);
+        }
+        MatrixCursor rows = new MatrixCursor(columnNames, mMaxMsgPerFile);
+        List<BackupExtras> extras = new ArrayList<>();
+        for (; extras.size() < mMaxMsgPerFile && !cursor.isAfterLast(); cursor.moveToNext()) {
+            BackupExtras messageExtras = isSms ? getSmsExtras(cursor) : getMmsExtras(cursor);
+            if (messageExtras == null) {
+                continue;
+            }
+            // The writers read every column as a string first, and the message columns are all
+            // text or integers, so the strings are enough to write the same thing.
+            Object[] row = new Object[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                row[i] = cursor.getString(i);
+            }
+            rows.addRow(row);
+            extras.add(messageExtras);
+        }
+        return new BackupSnapshot(rows, extras);
+    }
+
     @VisibleForTesting
     @NonNull
     BackupChunkInformation putMmsMessagesToJson(Cursor cursor,
                              JsonWriter jsonWriter) throws IOException {
+        return putMmsMessagesToJson(cursor, BackupFormat.json(jsonWriter), null);
+    }
+
+    /**
+     * @param extras the extras of each row of the cursor, or null to read them as needed
+     */
+    private BackupChunkInformation putMmsMessagesToJson(Cursor cursor,
+            BackupFormat.Writer jsonWriter,
+            List<BackupExtras> extras) throws IOException {
         BackupChunkInformation results = new BackupChunkInformation();
         jsonWriter.beginArray();
         for (; results.count < mMaxMsgPerFile && !cursor.isAfterLast();
                 cursor.moveToNext()) {
-            writeMmsToWriter(jsonWriter, cursor, results);
+            writeMmsToWriter(jsonWriter, cursor, extras == null
+                    ? getMmsExtras(cursor) : extras.get(cursor.getPosition()), results);
         }
         jsonWriter.endArray();
         return results;
@@ -583,11 +826,21 @@ public class TelephonyBackupAgent extends BackupAgent {
     @NonNull
     BackupChunkInformation putSmsMessagesToJson(Cursor cursor, JsonWriter jsonWriter)
       throws IOException {
+        return putSmsMessagesToJson(cursor, BackupFormat.json(jsonWriter), null);
+    }
+
+    /**
+     * @param extras the extras of each row of the cursor, or null to read them as needed
+     */
+    private BackupChunkInformation putSmsMessagesToJson(Cursor cursor,
+            BackupFormat.Writer jsonWriter,
+            List<BackupExtras> extras) throws IOException {
         BackupChunkInformation results = new BackupChunkInformation();
         jsonWriter.beginArray();
         for (; results.count < mMaxMsgPerFile && !cursor.isAfterLast();
                 ++results.count, cursor.moveToNext()) {
-            writeSmsToWriter(jsonWriter, cursor, results);
+            writeSmsToWriter(jsonWriter, cursor, extras == null
+                    ? getSmsExtras(cursor) : extras.get(cursor.getPosition()), results);
         }
         jsonWriter.endArray();
         return results;
@@ -746,8 +999,8 @@ public class TelephonyBackupAgent extends BackupAgent {
             return context.getFilesDir().listFiles(new FileFilter() {
                 @Override
                 public boolean accept(File file) {
-                    return file.getName().endsWith(SMS_BACKUP_FILE_SUFFIX) ||
-                            file.getName().endsWith(MMS_BACKUP_FILE_SUFFIX);
+                    return isSmsBackupFile(file.getName()) ||
+                            isMmsBackupFile(file.getName());
                 }
             });
         }
@@ -762,11 +1015,11 @@ public class TelephonyBackupAgent extends BackupAgent {
     private void doRestoreFile(String fileName, FileDescriptor fd) throws IOException {
         Log.d(TAG, "Restoring file " + fileName);
 
-        try (JsonReader jsonReader = getJsonReader(fd)) {
-            if (fileName.endsWith(SMS_BACKUP_FILE_SUFFIX)) {
+        try (BackupFormat.Reader jsonReader = getBackupReader(fileName, fd)) {
+            if (isSmsBackupFile(fileName)) {
                 Log.d(TAG, "Restoring SMS");
                 putSmsMessagesToProvider(jsonReader);
-            } else if (fileName.endsWith(MMS_BACKUP_FILE_SUFFIX)) {
+            } else if (isMmsBackupFile(fileName)) {
                 Log.d(TAG, "Restoring text MMS");
                 putMmsMessagesToProvider(jsonReader);
             } else {
@@ -777,12 +1030,18 @@ public class TelephonyBackupAgent extends BackupAgent {
 
     @VisibleForTesting
     void putSmsMessagesToProvider(JsonReader jsonReader) throws IOException {
+        putSmsMessagesToProvider(BackupFormat.json(jsonReader));
+    }
+
+    @VisibleForTesting
+    void putSmsMessagesToProvider(BackupFormat.Reader jsonReader) throws IOException {
         jsonReader.beginArray();
         int msgCount = 0;
         int numExceptions = 0;
         final int bulkInsertSize = mMaxMsgPerFile;
         Log.d(TAG, "putSmsMessagesToProvider: bulkInsertSize=" + bulkInsertSize);
         ContentValues[] values = new ContentValues[bulkInsertSize];
+        mPendingSmsThreads.clear();
         while (jsonReader.hasNext()) {
             ContentValues cv = readSmsValuesFromReader(jsonReader);
             try {
@@ -790,7 +1049,11 @@ public class TelephonyBackupAgent extends BackupAgent {
                     continue;
                 }
                 values[(msgCount++) % bulkInsertSize] = cv;
+                if (mSmsRestoreFilter != null) {
+                    mSmsRestoreFilter.add(getSmsRestoreKey(cv));
+                }
                 if (msgCount % bulkInsertSize == 0) {
+                    resolvePendingSmsThreads();
                     mContentResolver.bulkInsert(Telephony.Sms.CONTENT_URI, values);
                     Log.d(TAG, "putSmsMessagesToProvider: msgCount:" + msgCount);
                 }
@@ -800,6 +1063,7 @@ public class TelephonyBackupAgent extends BackupAgent {
                 numExceptions++;
             }
         }
+        resolvePendingSmsThreads();
         if (msgCount % bulkInsertSize > 0) {
             mContentResolver.bulkInsert(Telephony.Sms.CONTENT_URI,
                     Arrays.copyOf(values, msgCount % bulkInsertSize));
@@ -844,16 +1108,29 @@ public class TelephonyBackupAgent extends BackupAgent {
 
     @VisibleForTesting
     void putMmsMessagesToProvider(JsonReader jsonReader) throws IOException {
+        putMmsMessagesToProvider(BackupFormat.json(jsonReader));
+    }
+
+    // Maximum number of MMS, and of characters of their text, inserted with a single call to
+    // the provider, to stay well below the binder transaction limit.
+    @VisibleForTesting
+    static final int MMS_RESTORE_BATCH_SIZE = 50;
+    private static final int MMS_RESTORE_BATCH_CHARS = 128 * 1024;
+
+    @VisibleForTesting
+    void putMmsMessagesToProvider(BackupFormat.Reader jsonReader) throws IOException {
         jsonReader.beginArray();
-        int total = 0;
-        int numExceptions = 0;
-        final int notifyAfterCount = mMaxMsgPerFile;
+        MmsRestoreBatch batch = new MmsRestoreBatch();
         while (jsonReader.hasNext()) {
             final Mms mms = readMmsFromReader(jsonReader);
             if (DEBUG) {
                 Log.d(TAG, "putMmsMessagesToProvider " + mms);
             }
             try {
+                if (!batch.messages.isEmpty() && mightMmsExist(mms)) {
+                    // It might be a duplicate of a message that isn't inserted yet.
+                    batch.flush();
+                }
                 if (doesMmsExist(mms)) {
                     if (DEBUG) {
                         Log.e(TAG, String.format("Mms: %s already exists", mms.toString()));
@@ -862,23 +1139,21 @@ public class TelephonyBackupAgent extends BackupAgent {
                     }
                     continue;
                 }
-                total++;
                 mms.values.put(NOTIFY, false);
-                addMmsMessage(mms);
-                // notifying every 1000 messages to follow sms restore pattern
-                if (total % notifyAfterCount == 0) {
-                    notifyBulkMmsChange();
-                }
+                batch.add(mms);
             } catch (Exception e) {
                 Log.e(TAG, "putMmsMessagesToProvider", e);
-                numExceptions++;
+                batch.numExceptions++;
                 DeferredSmsMmsRestoreService.localLog("putMmsMessagesToProvider: Exception " + e);
             }
         }
+        batch.flush();
         // notifying for any remaining messages
-        if (total % notifyAfterCount > 0) {
+        if (batch.unnotified > 0) {
             notifyBulkMmsChange();
         }
+        final int total = batch.total;
+        final int numExceptions = batch.numExceptions;
         Log.d(TAG, "putMmsMessagesToProvider handled " + total + " new messages.");
         incremenentSharedPref(false, total, numExceptions);
         if (total > 0) {
@@ -893,6 +1168,84 @@ public class TelephonyBackupAgent extends BackupAgent {
         reportDelayedRestoreResult();
     }
 
+    /**
+     * The MMS being restored, inserted into the provider a batch at a time.
+     */
+    private class MmsRestoreBatch {
+        final ArrayList<Mms> messages = new ArrayList<>();
+        int chars;
+        // Number of inserted messages, failed messages and inserted messages since the last
+        // notification.
+        int total;
+        int numExceptions;
+        int unnotified;
+
+        void add(Mms mms) {
+            messages.add(mms);
+            chars += getMmsTextLength(mms);
+            if (messages.size() >= MMS_RESTORE_BATCH_SIZE || chars >= MMS_RESTORE_BATCH_CHARS) {
+                flush();
+            }
+        }
+
+        void flush() {
+            if (messages.isEmpty()) {
+                return;
+            }
+            if (messages.size() > 1 && insert(messages)) {
+                for (Mms mms : messages) {
+                    added(mms);
+                }
+            } else {
+                // Insert them one by one, so that a message that can't be inserted doesn't
+                // prevent the others from being restored.
+                for (Mms mms : messages) {
+                    if (insert(Collections.singletonList(mms))) {
+                        added(mms);
+                    } else {
+                        numExceptions++;
+                    }
+                }
+            }
+            messages.clear();
+            chars = 0;
+        }
+
+        private boolean insert(List<Mms> batch) {
+            try {
+                return addMmsMessages(batch);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "putMmsMessagesToProvider", e);
+                DeferredSmsMmsRestoreService.localLog("putMmsMessagesToProvider: Exception " + e);
+                return false;
+            }
+        }
+
+        private void added(Mms mms) {
+            total++;
+            final Long date = mms.values.getAsLong(Telephony.Mms.DATE);
+            if (mMmsRestoreFilter != null && date != null) {
+                mMmsRestoreFilter.add(date);
+            }
+            // notifying every 1000 messages to follow sms restore pattern
+            if (++unnotified >= mMaxMsgPerFile) {
+                notifyBulkMmsChange();
+                unnotified = 0;
+            }
+        }
+    }
+
+    private static int getMmsTextLength(Mms mms) {
+        int length = 0;
+        if (mms.body != null && mms.body.text != null) {
+            length += mms.body.text.length();
+        }
+        if (mms.smil != null) {
+            length += mms.smil.length();
+        }
+        return length;
+    }
+
     private void notifyBulkMmsChange() {
         mContentResolver.notifyChange(Telephony.MmsSms.CONTENT_URI, null,
                 ContentResolver.NOTIFY_SYNC_TO_NETWORK, UserHandle.USER_ALL);
@@ -923,6 +1276,9 @@ public class TelephonyBackupAgent extends BackupAgent {
     private SmsProviderQuery mSmsProviderQuery = new SmsProviderQuery() {
         @Override
         public boolean doesSmsExist(ContentValues smsValues) {
+            if (!getSmsRestoreFilter().contains(getSmsRestoreKey(smsValues))) {
+                return false;
+            }
             // The SMS body might contain '\0' characters (U+0000) such as in the case of
             // http://b/160801497 . SQLite does not allow '\0' in String literals, but as of SQLite
             // version 3.32.2 2020-06-04, it does allow them as selectionArgs; therefore, we're
@@ -951,7 +1307,82 @@ public class TelephonyBackupAgent extends BackupAgent {
         return result;
     }
 
+    // Hashes of the date and body of the SMS in the provider, and dates of the MMS in the
+    // provider. Read once on the first restored message, then updated as messages are restored,
+    // so that the provider only has to be queried for the messages that might be duplicates.
+    private Set<Long> mSmsRestoreFilter;
+    private Set<Long> mMmsRestoreFilter;
+
+    private static final String[] SMS_RESTORE_FILTER_PROJECTION = {
+            Telephony.Sms.DATE,
+            Telephony.Sms.BODY
+    };
+    private static final String[] MMS_RESTORE_FILTER_PROJECTION = {Telephony.Mms.DATE};
+
+    private Set<Long> getSmsRestoreFilter() {
+        if (mSmsRestoreFilter == null) {
+            mSmsRestoreFilter = new HashSet<>();
+            try (Cursor cursor = mContentResolver.query(Telephony.Sms.CONTENT_URI,
+                    SMS_RESTORE_FILTER_PROJECTION, null, null, null)) {
+                if (cursor != null && cursor.moveToFirst()) {
+                    do {
+                        mSmsRestoreFilter.add(getSmsRestoreKey(cursor.getString(0),
+                                cursor.getString(1)));
+                    } while (cursor.moveToNext());
+                }
+            }
+        }
+        return mSmsRestoreFilter;
+    }
+
+    private Set<Long> getMmsRestoreFilter() {
+        if (mMmsRestoreFilter == null) {
+            mMmsRestoreFilter = new HashSet<>();
+            try (Cursor cursor = mContentResolver.query(Telephony.Mms.CONTENT_URI,
+                    MMS_RESTORE_FILTER_PROJECTION, null, null, null)) {
+                if (cursor != null && cursor.moveToFirst()) {
+                    do {
+                        if (cursor.getString(0) != null) {
+                            mMmsRestoreFilter.add(cursor.getLong(0));
+                        }
+                    } while (cursor.moveToNext());
+                }
+            }
+        }
+        return mMmsRestoreFilter;
+    }
+
+    private static long getSmsRestoreKey(ContentValues smsValues) {
+        return getSmsRestoreKey(smsValues.getAsString(Telephony.Sms.DATE),
+                smsValues.getAsString(Telephony.Sms.BODY));
+    }
+
+    /**
+     * Returns a 64-bit FNV-1a hash of the date and body of an SMS.
+     */
+    @VisibleForTesting
+    static long getSmsRestoreKey(String date, String body) {
+        long hash = 0xcbf29ce484222325L;
+        final String key = date + '\0' + body;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Returns false if the MMS is not in the provider, or true if it might be.
+     */
+    private boolean mightMmsExist(Mms mms) {
+        final Long date = mms.values.getAsLong(Telephony.Mms.DATE);
+        return date != null && getMmsRestoreFilter().contains(date);
+    }
+
     private boolean doesMmsExist(Mms mms) {
+        if (!mightMmsExist(mms)) {
+            return false;
+        }
         final String where = String.format(Locale.US, "%s = %d",
                 Telephony.Sms.DATE, mms.values.getAsLong(Telephony.Mms.DATE));
         try (Cursor cursor = mContentResolver.query(Telephony.Mms.CONTENT_URI, PROJECTION_ID, where,
@@ -984,8 +1415,8 @@ public class TelephonyBackupAgent extends BackupAgent {
         }
     }
 
-    private void writeSmsToWriter(JsonWriter jsonWriter, Cursor cursor,
-            BackupChunkInformation chunk) throws IOException {
+    private void writeSmsToWriter(BackupFormat.Writer jsonWriter, Cursor cursor,
+            BackupExtras extras, BackupChunkInformation chunk) throws IOException {
         jsonWriter.beginObject();
 
         for (int i=0; i<cursor.getColumnCount(); ++i) {
@@ -1003,8 +1434,7 @@ public class TelephonyBackupAgent extends BackupAgent {
                     }
                     break;
                 case Telephony.Sms.THREAD_ID:
-                    final long threadId = cursor.getLong(i);
-                    handleThreadId(jsonWriter, threadId);
+                    writeThreadExtras(jsonWriter, extras);
                     break;
                 case Telephony.Sms._ID:
                     break;
@@ -1036,22 +1466,134 @@ public class TelephonyBackupAgent extends BackupAgent {
 
     }
 
-    private void handleThreadId(JsonWriter jsonWriter, long threadId) throws IOException {
+    /**
+     * What a message needs from other tables to be backed up: the recipients of its thread, and
+     * for MMS its text and addresses. Read on the thread reading the messages, so that they can
+     * be written on another one.
+     */
+    private static final class BackupExtras {
+        List<String> recipients;
+        // Whether to write that the thread is archived, only done for its first message.
+        boolean archived;
+        MmsBody body;
+        List<ContentValues> addresses;
+    }
+
+    /**
+     * What's fetched ahead for the next messages of a cursor: the ids of the messages, and for
+     * MMS their bodies and addresses. The recipients of their threads go to
+     * mCacheRecipientsByThread.
+     */
+    private static final class BackupBatch {
+        final Cursor cursor;
+        final Set<Integer> messageIds = new HashSet<>();
+        final Map<Integer, MmsBody> bodies = new HashMap<>();
+        final Map<Integer, List<ContentValues>> addresses = new HashMap<>();
+
+        BackupBatch(Cursor cursor) {
+            this.cursor = cursor;
+        }
+    }
+
+    // The batches of the messages being backed up.
+    private BackupBatch mSmsBatch;
+    private BackupBatch mMmsBatch;
+
+    /**
+     * Returns the batch of the current message of the cursor. If it's not in the last batch,
+     * fetches the next batch, for the next BACKUP_BATCH_SIZE messages of the cursor, with one
+     * query per table.
+     */
+    private BackupBatch getBackupBatch(Cursor cursor, boolean isSms) {
+        BackupBatch batch = isSms ? mSmsBatch : mMmsBatch;
+        if (batch != null && batch.cursor == cursor
+                && batch.messageIds.contains(cursor.getInt(ID_IDX))) {
+            return batch;
+        }
+
+        batch = new BackupBatch(cursor);
+        final int threadIdIndex = cursor.getColumnIndex(
+                isSms ? Telephony.Sms.THREAD_ID : Telephony.Mms.THREAD_ID);
+        Set<Long> threadIds = new HashSet<>();
+        final int position = cursor.getPosition();
+        for (int i = 0; i < BACKUP_BATCH_SIZE && !cursor.isAfterLast(); i++, cursor.moveToNext()) {
+            batch.messageIds.add(cursor.getInt(ID_IDX));
+            if (threadIdIndex >= 0 && cursor.getString(threadIdIndex) != null) {
+                threadIds.add(cursor.getLong(threadIdIndex));
+            }
+        }
+        cursor.moveToPosition(position);
+
+        cacheRecipientsByThreads(threadIds);
+        if (!isSms) {
+            final String ids = TextUtils.join(",", batch.messageIds);
+            getMmsBodies(ids, batch.bodies);
+            getMmsAddresses(ids, batch.addresses);
+        }
+        if (isSms) {
+            mSmsBatch = batch;
+        } else {
+            mMmsBatch = batch;
+        }
+        return batch;
+    }
+
+    private BackupExtras getSmsExtras(Cursor cursor) {
+        getBackupBatch(cursor, true);
+        BackupExtras extras = new BackupExtras();
+        getThreadExtras(cursor, Telephony.Sms.THREAD_ID, extras);
+        return extras;
+    }
+
+    /**
+     * Returns the extras of the MMS, or null if it isn't backed up.
+     */
+    private BackupExtras getMmsExtras(Cursor cursor) {
+        final int mmsId = cursor.getInt(ID_IDX);
+        final BackupBatch batch = getBackupBatch(cursor, false);
+        final MmsBody body = batch.bodies.get(mmsId);
+        // We backup any message that contains text, but only backup the text part.
+        if (body == null || body.text == null) {
+            return null;
+        }
+        BackupExtras extras = new BackupExtras();
+        extras.body = body;
+        getThreadExtras(cursor, Telephony.Mms.THREAD_ID, extras);
+        final List<ContentValues> addresses = batch.addresses.get(mmsId);
+        extras.addresses = addresses != null ? addresses : new ArrayList<>();
+        return extras;
+    }
+
+    private void getThreadExtras(Cursor cursor, String threadIdColumn, BackupExtras extras) {
+        final int index = cursor.getColumnIndex(threadIdColumn);
+        if (index < 0 || cursor.getString(index) == null) {
+            return;
+        }
+        final long threadId = cursor.getLong(index);
         final List<String> recipients = getRecipientsByThread(threadId);
         if (recipients == null || recipients.isEmpty()) {
             return;
         }
 
-        writeRecipientsToWriter(jsonWriter.name(RECIPIENTS), recipients);
+        extras.recipients = recipients;
         if (!mThreadArchived.containsKey(threadId)) {
             boolean isArchived = isThreadArchived(threadId);
-            if (isArchived) {
-                jsonWriter.name(Telephony.Threads.ARCHIVED).value(true);
-            }
+            extras.archived = isArchived;
             mThreadArchived.put(threadId, isArchived);
         }
     }
 
+    private static void writeThreadExtras(BackupFormat.Writer jsonWriter, BackupExtras extras)
+            throws IOException {
+        if (extras.recipients == null) {
+            return;
+        }
+        writeRecipientsToWriter(jsonWriter.name(RECIPIENTS), extras.recipients);
+        if (extras.archived) {
+            jsonWriter.name(Telephony.Threads.ARCHIVED).value(true);
+        }
+    }
+
     private static String[] THREAD_ARCHIVED_PROJECTION =
             new String[] { Telephony.Threads.ARCHIVED };
     private static int THREAD_ARCHIVED_IDX = 0;
@@ -1070,8 +1612,8 @@ public class TelephonyBackupAgent extends BackupAgent {
         return false;
     }
 
-    private static void writeRecipientsToWriter(JsonWriter jsonWriter, List<String> recipients)
-            throws IOException {
+    private static void writeRecipientsToWriter(BackupFormat.Writer jsonWriter,
+            List<String> recipients) throws IOException {
         jsonWriter.beginArray();
         if (recipients != null) {
             for (String s : recipients) {
@@ -1081,11 +1623,11 @@ public class TelephonyBackupAgent extends BackupAgent {
         jsonWriter.endArray();
     }
 
-    private ContentValues readSmsValuesFromReader(JsonReader jsonReader)
+    private ContentValues readSmsValuesFromReader(BackupFormat.Reader jsonReader)
             throws IOException {
         ContentValues values = new ContentValues(6+sDefaultValuesSms.size());
         values.putAll(sDefaultValuesSms);
-        long threadId = -1;
+        Set<String> recipients = null;
         boolean isArchived = false;
         jsonReader.beginObject();
         while (jsonReader.hasNext()) {
@@ -1102,8 +1644,7 @@ public class TelephonyBackupAgent extends BackupAgent {
                     values.put(name, jsonReader.nextString());
                     break;
                 case RECIPIENTS:
-                    threadId = getOrCreateThreadId(getRecipients(jsonReader));
-                    values.put(Telephony.Sms.THREAD_ID, threadId);
+                    recipients = getRecipients(jsonReader);
                     break;
                 case Telephony.Threads.ARCHIVED:
                     isArchived = jsonReader.nextBoolean();
@@ -1125,11 +1666,54 @@ public class TelephonyBackupAgent extends BackupAgent {
             }
         }
         jsonReader.endObject();
-        archiveThread(threadId, isArchived);
+        if (recipients != null) {
+            // The thread is resolved together with the rest of the batch before it's inserted.
+            mPendingSmsThreads.add(new PendingSmsThread(values, recipients, isArchived));
+        }
         return values;
     }
 
-    private static Set<String> getRecipients(JsonReader jsonReader) throws IOException {
+    /**
+     * A restored SMS waiting for its thread id.
+     */
+    private static class PendingSmsThread {
+        final ContentValues values;
+        final Set<String> recipients;
+        final boolean isArchived;
+
+        PendingSmsThread(ContentValues values, Set<String> recipients, boolean isArchived) {
+            this.values = values;
+            this.recipients = recipients;
+            this.isArchived = isArchived;
+        }
+    }
+
+    /**
+     * Sets the thread id of the SMS read since the last call, getting or creating the threads of
+     * all their new recipient sets with a single provider call.
+     */
+    private void resolvePendingSmsThreads() {
+        List<Set<String>> uncached = new ArrayList<>();
+        Set<Set<String>> seen = new ArraySet<>();
+        for (PendingSmsThread pending : mPendingSmsThreads) {
+            Set<String> recipients = normalizeRecipients(pending.recipients);
+            if ((mCacheGetOrCreateThreadId == null
+                    || !mCacheGetOrCreateThreadId.containsKey(recipients))
+                    && seen.add(recipients)) {
+                uncached.add(recipients);
+            }
+        }
+        getOrCreateThreadIds(uncached);
+
+        for (PendingSmsThread pending : mPendingSmsThreads) {
+            long threadId = getOrCreateThreadId(pending.recipients);
+            pending.values.put(Telephony.Sms.THREAD_ID, threadId);
+            archiveThread(threadId, pending.isArchived);
+        }
+        mPendingSmsThreads.clear();
+    }
+
+    private static Set<String> getRecipients(BackupFormat.Reader jsonReader) throws IOException {
         Set<String> recipients = new ArraySet<String>();
         jsonReader.beginArray();
         while (jsonReader.hasNext()) {
@@ -1139,14 +1723,13 @@ public class TelephonyBackupAgent extends BackupAgent {
         return recipients;
     }
 
-    private void writeMmsToWriter(JsonWriter jsonWriter, Cursor cursor,
-            BackupChunkInformation chunk) throws IOException {
-        final int mmsId = cursor.getInt(ID_IDX);
-        final MmsBody body = getMmsBody(mmsId);
-        // We backup any message that contains text, but only backup the text part.
-        if (body == null || body.text == null) {
+    private void writeMmsToWriter(BackupFormat.Writer jsonWriter, Cursor cursor,
+            BackupExtras extras, BackupChunkInformation chunk) throws IOException {
+        // Null for the messages that aren't backed up, see getMmsExtras().
+        if (extras == null) {
             return;
         }
+        final MmsBody body = extras.body;
 
         boolean subjectNull = true;
         jsonWriter.beginObject();
@@ -1168,8 +1751,7 @@ public class TelephonyBackupAgent extends BackupAgent {
                     }
                     break;
                 case Telephony.Mms.THREAD_ID:
-                    final long threadId = cursor.getLong(i);
-                    handleThreadId(jsonWriter, threadId);
+                    writeThreadExtras(jsonWriter, extras);
                     break;
                 case Telephony.Mms._ID:
                 case Telephony.Mms.SUBJECT_CHARSET:
@@ -1187,7 +1769,7 @@ public class TelephonyBackupAgent extends BackupAgent {
             }
         }
         // Addresses.
-        writeMmsAddresses(jsonWriter.name(MMS_ADDRESSES_KEY), mmsId);
+        writeMmsAddresses(jsonWriter.name(MMS_ADDRESSES_KEY), extras.addresses);
         // Body (text of the message).
         jsonWriter.name(MMS_BODY_KEY).value(body.text);
         // Charset of the body text.
@@ -1201,7 +1783,7 @@ public class TelephonyBackupAgent extends BackupAgent {
         chunk.count++;
     }
 
-    private Mms readMmsFromReader(JsonReader jsonReader) throws IOException {
+    private Mms readMmsFromReader(BackupFormat.Reader jsonReader) throws IOException {
         Mms mms = new Mms();
         mms.values = new ContentValues(5+sDefaultValuesMms.size());
         mms.values.putAll(sDefaultValuesMms);
@@ -1322,31 +1904,79 @@ public class TelephonyBackupAgent extends BackupAgent {
         return (body == null ? null : new MmsBody(body, charSet));
     }
 
-    private void writeMmsAddresses(JsonWriter jsonWriter, int mmsId) throws IOException {
-        Uri.Builder builder = Telephony.Mms.CONTENT_URI.buildUpon();
-        builder.appendPath(String.valueOf(mmsId)).appendPath("addr");
-        Uri uriAddrPart = builder.build();
+    /**
+     * Gets the bodies of the MMS with the given comma separated ids, like getMmsBody() does for
+     * one MMS.
+     */
+    private void getMmsBodies(String mmsIds, Map<Integer, MmsBody> bodies) {
+        try (Cursor cursor = mContentResolver.query(MMS_ALL_PARTS_URI, MMS_BATCH_TEXT_PROJECTION,
+                Telephony.Mms.Part.MSG_ID + " IN (" + mmsIds + ") AND "
+                        + Telephony.Mms.Part.CONTENT_TYPE + "=?",
+                new String[]{ContentType.TEXT_PLAIN}, ORDER_BY_ID)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                do {
+                    String text = cursor.getString(MMS_BATCH_TEXT_IDX);
+                    if (text != null) {
+                        final int mmsId = cursor.getInt(MMS_BATCH_TEXT_MSG_ID_IDX);
+                        final MmsBody body = bodies.get(mmsId);
+                        bodies.put(mmsId, new MmsBody(body == null ? text : body.text.concat(text),
+                                cursor.getInt(MMS_BATCH_TEXT_CHARSET_IDX)));
+                    }
+                } while (cursor.moveToNext());
+            }
+        }
+    }
 
-        jsonWriter.beginArray();
-        try (Cursor cursor = mContentResolver.query(uriAddrPart, MMS_ADDR_PROJECTION,
-                null/*selection*/, null/*selectionArgs*/, ORDER_BY_ID)) {
+    /**
+     * Gets the non null addresses of the MMS with the given comma separated ids.
+     */
+    private void getMmsAddresses(String mmsIds, Map<Integer, List<ContentValues>> addresses) {
+        try (Cursor cursor = mContentResolver.query(MMS_ALL_ADDRS_URI, MMS_ADDR_PROJECTION,
+                Telephony.Mms.Addr.MSG_ID + " IN (" + mmsIds + ")", null/*selectionArgs*/,
+                ORDER_BY_ID)) {
             if (cursor != null && cursor.moveToFirst()) {
                 do {
-                    if (cursor.getString(cursor.getColumnIndex(Telephony.Mms.Addr.ADDRESS))
-                            != null) {
-                        jsonWriter.beginObject();
-                        writeIntToWriter(jsonWriter, cursor, Telephony.Mms.Addr.TYPE);
-                        writeStringToWriter(jsonWriter, cursor, Telephony.Mms.Addr.ADDRESS);
-                        writeIntToWriter(jsonWriter, cursor, Telephony.Mms.Addr.CHARSET);
-                        jsonWriter.endObject();
+                    final String address = cursor.getString(MMS_ADDR_ADDRESS_IDX);
+                    if (address != null) {
+                        ContentValues values = new ContentValues(3);
+                        values.put(Telephony.Mms.Addr.TYPE, cursor.getInt(MMS_ADDR_TYPE_IDX));
+                        values.put(Telephony.Mms.Addr.ADDRESS, address);
+                        values.put(Telephony.Mms.Addr.CHARSET,
+                                cursor.getInt(MMS_ADDR_CHARSET_IDX));
+                        final int mmsId = cursor.getInt(MMS_ADDR_MSG_ID_IDX);
+                        List<ContentValues> messageAddresses = addresses.get(mmsId);
+                        if (messageAddresses == null) {
+                            messageAddresses = new ArrayList<>();
+                            addresses.put(mmsId, messageAddresses);
+                        }
+                        messageAddresses.add(values);
                     }
                 } while (cursor.moveToNext());
             }
         }
+    }
+
+    private static void writeMmsAddresses(BackupFormat.Writer jsonWriter,
+            List<ContentValues> addresses) throws IOException {
+        jsonWriter.beginArray();
+        for (ContentValues values : addresses) {
+            jsonWriter.beginObject();
+            final int type = values.getAsInteger(Telephony.Mms.Addr.TYPE);
+            if (type != 0) {
+                jsonWriter.name(Telephony.Mms.Addr.TYPE).value(type);
+            }
+            jsonWriter.name(Telephony.Mms.Addr.ADDRESS)
+                    .value(values.getAsString(Telephony.Mms.Addr.ADDRESS));
+            final int charset = values.getAsInteger(Telephony.Mms.Addr.CHARSET);
+            if (charset != 0) {
+                jsonWriter.name(Telephony.Mms.Addr.CHARSET).value(charset);
+            }
+            jsonWriter.endObject();
+        }
         jsonWriter.endArray();
     }
 
-    private static void getMmsAddressesFromReader(JsonReader jsonReader, Mms mms)
+    private static void getMmsAddressesFromReader(BackupFormat.Reader jsonReader, Mms mms)
             throws IOException {
         mms.addresses = new ArrayList<ContentValues>();
         jsonReader.beginArray();
@@ -1377,7 +2007,7 @@ public class TelephonyBackupAgent extends BackupAgent {
         jsonReader.endArray();
     }
 
-    private static void getMmsAttachmentsFromReader(JsonReader jsonReader, Mms mms)
+    private static void getMmsAttachmentsFromReader(BackupFormat.Reader jsonReader, Mms mms)
             throws IOException {
         if (DEBUG) {
             Log.d(TAG, "Add getMmsAttachmentsFromReader");
@@ -1410,36 +2040,59 @@ public class TelephonyBackupAgent extends BackupAgent {
         jsonReader.endArray();
     }
 
-    private void addMmsMessage(Mms mms) {
-        if (DEBUG) {
-            Log.d(TAG, "Add mms:\n" + mms);
-        }
-        final long placeholderId = System.currentTimeMillis(); // Placeholder ID of the msg.
-        final Uri partUri = Telephony.Mms.CONTENT_URI.buildUpon()
-                .appendPath(String.valueOf(placeholderId)).appendPath("part").build();
+    /**
+     * Inserts the MMS with their parts and addresses, with a single call to the provider.
+     *
+     * @return true if all of them were inserted, false if none was
+     */
+    private boolean addMmsMessages(List<Mms> messages) {
+        ArrayList<Bundle> bundles = new ArrayList<>(messages.size());
+        for (Mms mms : messages) {
+            if (DEBUG) {
+                Log.d(TAG, "Add mms:\n" + mms);
+            }
+            Bundle message = new Bundle();
+            message.putParcelable(MmsProvider.PDU_KEY, mms.values);
+            message.putParcelableArrayList(MmsProvider.PARTS_KEY, getMmsParts(mms));
+            message.putParcelableArrayList(MmsProvider.ADDRS_KEY,
+                    new ArrayList<>(mms.addresses));
+            bundles.add(message);
+        }
+        Bundle extras = new Bundle();
+        extras.putParcelableArrayList(MmsProvider.MESSAGES_KEY, bundles);
+
+        Bundle result = mContentResolver.call(Telephony.Mms.CONTENT_URI,
+                MmsProvider.METHOD_BULK_INSERT, null, extras);
+        long[] mmsIds = result == null ? null : result.getLongArray(MmsProvider.MMS_IDS_KEY);
+        if (mmsIds == null || mmsIds.length != messages.size()) {
+            Log.e(TAG, "Could not insert " + messages.size() + " mms");
+            return false;
+        }
+        return true;
+    }
 
+    /**
+     * Returns the parts of the MMS: SMIL, body and attachments.
+     */
+    private ArrayList<ContentValues> getMmsParts(Mms mms) {
+        ArrayList<ContentValues> parts = new ArrayList<>();
         final String srcName = String.format(Locale.US, "text.%06d.txt", 0);
-        { // Insert SMIL part.
+        { // SMIL part.
             final String smilBody = String.format(sSmilTextPart, srcName);
             final String smil = TextUtils.isEmpty(mms.smil) ?
                     String.format(sSmilTextOnly, smilBody) : mms.smil;
-            final ContentValues values = new ContentValues(7);
-            values.put(Telephony.Mms.Part.MSG_ID, placeholderId);
+            final ContentValues values = new ContentValues(6);
             values.put(Telephony.Mms.Part.SEQ, -1);
             values.put(Telephony.Mms.Part.CONTENT_TYPE, ContentType.APP_SMIL);
             values.put(Telephony.Mms.Part.NAME, "smil.xml");
             values.put(Telephony.Mms.Part.CONTENT_ID, "<smil>");
             values.put(Telephony.Mms.Part.CONTENT_LOCATION, "smil.xml");
             values.put(Telephony.Mms.Part.TEXT, smil);
-            if (mContentResolver.insert(partUri, values) == null) {
-                Log.e(TAG, "Could not insert SMIL part");
-                return;
-            }
+            parts.add(values);
         }
 
-        { // Insert body part.
-            final ContentValues values = new ContentValues(8);
-            values.put(Telephony.Mms.Part.MSG_ID, placeholderId);
+        { // Body part.
+            final ContentValues values = new ContentValues(7);
             values.put(Telephony.Mms.Part.SEQ, 0);
             values.put(Telephony.Mms.Part.CONTENT_TYPE, ContentType.TEXT_PLAIN);
             values.put(Telephony.Mms.Part.NAME, srcName);
@@ -1450,18 +2103,13 @@ public class TelephonyBackupAgent extends BackupAgent {
                     Telephony.Mms.Part.CHARSET,
                     mms.body == null ? CharacterSets.DEFAULT_CHARSET : mms.body.charSet);
             values.put(Telephony.Mms.Part.TEXT, mms.body == null ? "" : mms.body.text);
-
-            if (mContentResolver.insert(partUri, values) == null) {
-                Log.e(TAG, "Could not insert body part");
-                return;
-            }
+            parts.add(values);
         }
 
         if (mms.attachments != null) {
-            // Insert the attachment parts.
+            // Attachment parts.
             for (ContentValues mmsAttachment : mms.attachments) {
-                final ContentValues values = new ContentValues(6);
-                values.put(Telephony.Mms.Part.MSG_ID, placeholderId);
+                final ContentValues values = new ContentValues(5);
                 values.put(Telephony.Mms.Part.SEQ, 0);
                 values.put(Telephony.Mms.Part.CONTENT_TYPE,
                         mmsAttachment.getAsString(MMS_MIME_TYPE));
@@ -1470,36 +2118,10 @@ public class TelephonyBackupAgent extends BackupAgent {
                 values.put(Telephony.Mms.Part.CONTENT_LOCATION, filename);
                 values.put(Telephony.Mms.Part._DATA,
                         getDataDir() + ATTACHMENT_DATA_PATH + filename);
-                Uri newPartUri = mContentResolver.insert(partUri, values);
-                if (newPartUri == null) {
-                    Log.e(TAG, "Could not insert attachment part");
-                    return;
-                }
-            }
-        }
-
-        // Insert mms.
-        final Uri mmsUri = mContentResolver.insert(Telephony.Mms.CONTENT_URI, mms.values);
-        if (mmsUri == null) {
-            Log.e(TAG, "Could not insert mms");
-            return;
-        }
-
-        final long mmsId = ContentUris.parseId(mmsUri);
-        { // Update parts with the right mms id.
-            ContentValues values = new ContentValues(1);
-            values.put(Telephony.Mms.Part.MSG_ID, mmsId);
-            mContentResolver.update(partUri, values, null, null);
-        }
-
-        { // Insert addresses into "addr".
-            final Uri addrUri = Uri.withAppendedPath(mmsUri, "addr");
-            for (ContentValues mmsAddress : mms.addresses) {
-                ContentValues values = new ContentValues(mmsAddress);
-                values.put(Telephony.Mms.Addr.MSG_ID, mmsId);
-                mContentResolver.insert(addrUri, values);
+                parts.add(values);
             }
         }
+        return parts;
     }
 
     private static final class MmsBody {
@@ -1540,34 +2162,56 @@ public class TelephonyBackupAgent extends BackupAgent {
         }
     }
 
-    private JsonWriter getJsonWriter(final String fileName) throws IOException {
-        return new JsonWriter(new BufferedWriter(new OutputStreamWriter(new DeflaterOutputStream(
-                openFileOutput(fileName, MODE_PRIVATE)), CHARSET_UTF8), WRITER_BUFFER_SIZE));
+    @VisibleForTesting
+    boolean isCompactBackupEnabled() {
+        return DeviceConfig.getBoolean(DeviceConfig.NAMESPACE_TELEPHONY, COMPACT_BACKUP_FLAG,
+                false);
     }
 
-    private static JsonReader getJsonReader(final FileDescriptor fileDescriptor)
-            throws IOException {
-        return new JsonReader(new InputStreamReader(new InflaterInputStream(
-                new FileInputStream(fileDescriptor)), CHARSET_UTF8));
+    private static boolean isSmsBackupFile(String fileName) {
+        return fileName.endsWith(SMS_BACKUP_FILE_SUFFIX)
+                || fileName.endsWith(SMS_COMPACT_BACKUP_FILE_SUFFIX);
     }
 
-    private static void writeStringToWriter(JsonWriter jsonWriter, Cursor cursor, String name)
-            throws IOException {
-        final String value = cursor.getString(cursor.getColumnIndex(name));
-        if (value != null) {
-            jsonWriter.name(name).value(value);
+    private static boolean isMmsBackupFile(String fileName) {
+        return fileName.endsWith(MMS_BACKUP_FILE_SUFFIX)
+                || fileName.endsWith(MMS_COMPACT_BACKUP_FILE_SUFFIX);
+    }
+
+    private static boolean isCompactBackupFile(String fileName) {
+        return fileName.endsWith(SMS_COMPACT_BACKUP_FILE_SUFFIX)
+                || fileName.endsWith(MMS_COMPACT_BACKUP_FILE_SUFFIX);
+    }
+
+    private BackupFormat.Writer getBackupWriter(final String fileName) throws IOException {
+        if (isCompactBackupFile(fileName)) {
+            return BackupFormat.compact(new BufferedOutputStream(new DeflaterOutputStream(
+                    openFileOutput(fileName, MODE_PRIVATE)), WRITER_BUFFER_SIZE));
         }
+        return BackupFormat.json(new JsonWriter(new BufferedWriter(new OutputStreamWriter(
+                new DeflaterOutputStream(openFileOutput(fileName, MODE_PRIVATE)), CHARSET_UTF8),
+                WRITER_BUFFER_SIZE)));
     }
 
-    private static void writeIntToWriter(JsonWriter jsonWriter, Cursor cursor, String name)
-            throws IOException {
-        final int value = cursor.getInt(cursor.getColumnIndex(name));
-        if (value != 0) {
+    private static BackupFormat.Reader getBackupReader(final String fileName,
+            final FileDescriptor fileDescriptor) throws IOException {
+        if (isCompactBackupFile(fileName)) {
+            return BackupFormat.compact(new BufferedInputStream(new InflaterInputStream(
+                    new FileInputStream(fileDescriptor))));
+        }
+        return BackupFormat.json(new JsonReader(new InputStreamReader(new InflaterInputStream(
+                new FileInputStream(fileDescriptor)), CHARSET_UTF8)));
+    }
+
+    private static void writeStringToWriter(BackupFormat.Writer jsonWriter, Cursor cursor,
+            String name) throws IOException {
+        final String value = cursor.getString(cursor.getColumnIndex(name));
+        if (value != null) {
             jsonWriter.name(name).value(value);
         }
     }
 
-    private long getOrCreateThreadId(Set<String> recipients) {
+    private static Set<String> normalizeRecipients(Set<String> recipients) {
         if (recipients == null) {
             recipients = new ArraySet<String>();
         }
@@ -1575,6 +2219,60 @@ public class TelephonyBackupAgent extends BackupAgent {
         if (recipients.isEmpty()) {
             recipients.add(UNKNOWN_SENDER);
         }
+        return recipients;
+    }
+
+    /**
+     * Gets or creates the threads of these recipient sets in bulk and caches their ids in
+     * {@link #mCacheGetOrCreateThreadId}. Sets that couldn't be resolved are left out of the
+     * cache, for {@link #getOrCreateThreadId} to retry one by one.
+     */
+    private void getOrCreateThreadIds(List<Set<String>> recipientSets) {
+        if (recipientSets.size() <= 1) {
+            // Nothing to gain over a single lookup.
+            return;
+        }
+        ArrayList<String> recipients = new ArrayList<>();
+        int[] recipientCounts = new int[recipientSets.size()];
+        for (int i = 0; i < recipientSets.size(); i++) {
+            for (String recipient : recipientSets.get(i)) {
+                // Same as Telephony.Threads.getOrCreateThreadId().
+                if (Telephony.Mms.isEmailAddress(recipient)) {
+                    recipient = Telephony.Mms.extractAddrSpec(recipient);
+                }
+                recipients.add(recipient);
+            }
+            recipientCounts[i] = recipientSets.get(i).size();
+        }
+        Bundle extras = new Bundle();
+        extras.putStringArrayList(MmsSmsProvider.RECIPIENTS_KEY, recipients);
+        extras.putIntArray(MmsSmsProvider.RECIPIENT_COUNTS_KEY, recipientCounts);
+
+        long[] threadIds = null;
+        try {
+            Bundle result = mContentResolver.call(Telephony.MmsSms.CONTENT_URI,
+                    MmsSmsProvider.METHOD_GET_OR_CREATE_THREAD_IDS, null, extras);
+            threadIds = result == null
+                    ? null : result.getLongArray(MmsSmsProvider.THREAD_IDS_KEY);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Problem obtaining threads in bulk.", e);
+        }
+        if (threadIds == null || threadIds.length != recipientSets.size()) {
+            return;
+        }
+
+        if (mCacheGetOrCreateThreadId == null) {
+            mCacheGetOrCreateThreadId = new HashMap<>();
+        }
+        for (int i = 0; i < threadIds.length; i++) {
+            if (threadIds[i] > 0) {
+                mCacheGetOrCreateThreadId.put(recipientSets.get(i), threadIds[i]);
+            }
+        }
+    }
+
+    private long getOrCreateThreadId(Set<String> recipients) {
+        recipients = normalizeRecipients(recipients);
 
         if (mCacheGetOrCreateThreadId == null) {
             mCacheGetOrCreateThreadId = new HashMap<>();
@@ -1597,21 +2295,8 @@ public class TelephonyBackupAgent extends BackupAgent {
     @VisibleForTesting
     static final Uri THREAD_ID_CONTENT_URI = Uri.parse("content://mms-sms/threadID");
 
-    // Mostly copied from packages/apps/Messaging/src/com/android/messaging/sms/MmsUtils.java.
     private List<String> getRecipientsByThread(final long threadId) {
-        if (mCacheRecipientsByThread == null) {
-            mCacheRecipientsByThread = new HashMap<>();
-        }
-
-        if (!mCacheRecipientsByThread.containsKey(threadId)) {
-            final String spaceSepIds = getRawRecipientIdsForThread(threadId);
-            if (!TextUtils.isEmpty(spaceSepIds)) {
-                mCacheRecipientsByThread.put(threadId, getAddresses(spaceSepIds));
-            } else {
-                mCacheRecipientsByThread.put(threadId, new ArrayList<String>());
-            }
-        }
-
+        cacheRecipientsByThreads(Collections.singleton(threadId));
         return mCacheRecipientsByThread.get(threadId);
     }
 
@@ -1619,84 +2304,126 @@ public class TelephonyBackupAgent extends BackupAgent {
     static final Uri ALL_THREADS_URI =
             Telephony.Threads.CONTENT_URI.buildUpon().
                     appendQueryParameter("simple", "true").build();
+    private static final int THREAD_ID_IDX = 0;
     private static final int RECIPIENT_IDS  = 1;
 
-    // Copied from packages/apps/Messaging/src/com/android/messaging/sms/MmsUtils.java.
+    /**
+     * Caches the recipients of the given threads that aren't cached yet, with one query for the
+     * threads and one for the addresses of all their recipients.
+     */
+    // Mostly copied from packages/apps/Messaging/src/com/android/messaging/sms/MmsUtils.java.
     // NOTE: There are phones on which you can't get the recipients from the thread id for SMS
     // until you have a message in the conversation!
-    private String getRawRecipientIdsForThread(final long threadId) {
-        if (threadId <= 0) {
-            return null;
+    private void cacheRecipientsByThreads(Collection<Long> threadIds) {
+        if (mCacheRecipientsByThread == null) {
+            mCacheRecipientsByThread = new HashMap<>();
         }
-        final Cursor thread = mContentResolver.query(
-                ALL_THREADS_URI,
-                SMS_RECIPIENTS_PROJECTION, "_id=?", new String[]{String.valueOf(threadId)}, null);
-        if (thread != null) {
-            try {
-                if (thread.moveToFirst()) {
-                    // recipientIds will be a space-separated list of ids into the
-                    // canonical addresses table.
-                    return thread.getString(RECIPIENT_IDS);
+
+        List<Long> uncached = new ArrayList<>();
+        for (long threadId : threadIds) {
+            if (!mCacheRecipientsByThread.containsKey(threadId)) {
+                // Stays empty if the thread isn't found.
+                mCacheRecipientsByThread.put(threadId, new ArrayList<String>());
+                if (threadId > 0) {
+                    uncached.add(threadId);
                 }
-            } finally {
-                thread.close();
             }
         }
-        return null;
-    }
-
-    @VisibleForTesting
-    static final Uri SINGLE_CANONICAL_ADDRESS_URI =
-            Uri.parse("content://mms-sms/canonical-address");
+        if (uncached.isEmpty()) {
+            return;
+        }
 
-    // Copied from packages/apps/Messaging/src/com/android/messaging/sms/MmsUtils.java.
-    private List<String> getAddresses(final String spaceSepIds) {
-        final List<String> numbers = new ArrayList<String>();
-        final String[] ids = spaceSepIds.split(" ");
-        for (final String id : ids) {
-            long longId;
+        // Thread id -> ids into the canonical addresses table.
+        Map<Long, List<Long>> recipientIdsByThread = new HashMap<>();
+        Set<Long> recipientIds = new HashSet<>();
+        try (Cursor thread = mContentResolver.query(ALL_THREADS_URI, SMS_RECIPIENTS_PROJECTION,
+                Telephony.Threads._ID + " IN (" + TextUtils.join(",", uncached) + ")", null,
+                null)) {
+            if (thread != null && thread.moveToFirst()) {
+                do {
+                    final String spaceSepIds = thread.getString(RECIPIENT_IDS);
+                    if (TextUtils.isEmpty(spaceSepIds)) {
+                        continue;
+                    }
+                    // recipientIds will be a space-separated list of ids into the
+                    // canonical addresses table.
+                    List<Long> ids = new ArrayList<>();
+                    for (final String id : spaceSepIds.split(" ")) {
+                        final long recipientId = parseRecipientId(id);
+                        if (recipientId >= 0) {
+                            ids.add(recipientId);
+                        }
+                    }
+                    recipientIdsByThread.put(thread.getLong(THREAD_ID_IDX), ids);
+                    recipientIds.addAll(ids);
+                } while (thread.moveToNext());
+            }
+        }
 
-            try {
-                longId = Long.parseLong(id);
-                if (longId < 0) {
-                    Log.e(TAG, "getAddresses: invalid id " + longId);
-                    continue;
+        final Map<Long, String> addresses = getCanonicalAddresses(recipientIds);
+        for (Map.Entry<Long, List<Long>> entry : recipientIdsByThread.entrySet()) {
+            final List<String> numbers = mCacheRecipientsByThread.get(entry.getKey());
+            for (final long recipientId : entry.getValue()) {
+                final String number = addresses.get(recipientId);
+                if (!TextUtils.isEmpty(number)) {
+                    numbers.add(number);
+                } else {
+                    Log.d(TAG, "Canonical MMS/SMS address is empty for id: " + recipientId);
                 }
-            } catch (final NumberFormatException ex) {
-                Log.e(TAG, "getAddresses: invalid id " + ex, ex);
-                // skip this id
-                continue;
             }
-
-            // TODO: build a single query where we get all the addresses at once.
-            Cursor c = null;
-            try {
-                c = mContentResolver.query(
-                        ContentUris.withAppendedId(SINGLE_CANONICAL_ADDRESS_URI, longId),
-                        null, null, null, null);
-            } catch (final Exception e) {
-                Log.e(TAG, "getAddresses: query failed for id " + longId, e);
+            if (numbers.isEmpty()) {
+                Log.d(TAG, "No MMS addresses found from ids string ["
+                        + TextUtils.join(" ", entry.getValue()) + "]");
             }
+        }
+    }
 
-            if (c != null) {
-                try {
-                    if (c.moveToFirst()) {
-                        final String number = c.getString(0);
-                        if (!TextUtils.isEmpty(number)) {
-                            numbers.add(number);
-                        } else {
-                            Log.d(TAG, "Canonical MMS/SMS address is empty for id: " + longId);
-                        }
-                    }
-                } finally {
-                    c.close();
-                }
+    private static long parseRecipientId(String id) {
+        try {
+            final long longId = Long.parseLong(id);
+            if (longId < 0) {
+                Log.e(TAG, "getAddresses: invalid id " + longId);
             }
+            return longId;
+        } catch (final NumberFormatException ex) {
+            Log.e(TAG, "getAddresses: invalid id " + ex, ex);
+            // skip this id
+            return -1;
         }
-        if (numbers.isEmpty()) {
-            Log.d(TAG, "No MMS addresses found from ids string [" + spaceSepIds + "]");
+    }
+
+    @VisibleForTesting
+    static final Uri CANONICAL_ADDRESSES_URI =
+            Uri.parse("content://mms-sms/canonical-addresses");
+    private static final String[] CANONICAL_ADDRESSES_PROJECTION = {
+            Telephony.CanonicalAddressesColumns._ID,
+            Telephony.CanonicalAddressesColumns.ADDRESS
+    };
+    private static final int CANONICAL_ADDRESS_ID_IDX = 0;
+    private static final int CANONICAL_ADDRESS_IDX = 1;
+
+    /**
+     * Returns the canonical addresses with the given ids, by id.
+     */
+    private Map<Long, String> getCanonicalAddresses(Set<Long> ids) {
+        Map<Long, String> addresses = new HashMap<>();
+        if (ids.isEmpty()) {
+            return addresses;
+        }
+        try (Cursor c = mContentResolver.query(CANONICAL_ADDRESSES_URI,
+                CANONICAL_ADDRESSES_PROJECTION,
+                Telephony.CanonicalAddressesColumns._ID + " IN (" + TextUtils.join(",", ids) + ")",
+                null, null)) {
+            if (c != null && c.moveToFirst()) {
+                do {
+                    addresses.put(c.getLong(CANONICAL_ADDRESS_ID_IDX),
+                            c.getString(CANONICAL_ADDRESS_IDX));
+                } while (c.moveToNext());
+            }
+        } catch (final RuntimeException e) {
+            Log.e(TAG, "getAddresses: query failed for ids " + ids, e);
         }
-        return numbers;
+        return addresses;
     }
 
     @Override
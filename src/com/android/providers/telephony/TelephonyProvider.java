@@ -93,12 +93,14 @@ import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.content.res.XmlResourceParser;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Bundle;
@@ -133,6 +135,8 @@ import com.android.internal.telephony.TelephonyStatsLog;
 import com.android.internal.telephony.flags.Flags;
 import com.android.internal.util.XmlUtils;
 
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
@@ -148,13 +152,19 @@ import java.io.InputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
 import java.util.zip.CRC32;
 import java.util.zip.CheckedInputStream;
@@ -206,6 +216,10 @@ public class TelephonyProvider extends ContentProvider
     private static final String CARRIERS_TABLE_TMP = "carriers_tmp";
     private static final String SIMINFO_TABLE = "siminfo";
     private static final String SIMINFO_TABLE_TMP = "siminfo_tmp";
+    // The APNs last loaded from xml, see DatabaseHelper#updateDatabaseIncrementally.
+    private static final String APN_CONF_ENTRIES_TABLE = "apn_conf_entries";
+    private static final String APN_CONF_ENTRY_UNIQUE_FIELDS = "unique_fields";
+    private static final String APN_CONF_ENTRY_HASH = "hash";
 
     private static final String PREF_FILE_APN = "preferred-apn";
     private static final String COLUMN_APN_ID = "apn_id";
@@ -287,18 +301,35 @@ public class TelephonyProvider extends ContentProvider
     private IApnSourceService mIApnSourceService;
     private Injector mInjector;
 
-    private boolean mManagedApnEnforced;
+    /**
+     * Locks of the carriers and siminfo tables. Writes to a table hold its write lock, so that a
+     * write to one table doesn't wait for a write to the other. Plain queries don't lock, they read
+     * a consistent snapshot thanks to write-ahead logging; only reads that have to stay
+     * consistent with the writes, such as the APN list matching the SIM, hold the read lock.
+     * If both are needed, the carriers lock is taken first.
+     * External APIs that may call back into this provider, such as SubscriptionManager, must
+     * still be called before taking either lock.
+     */
+    @VisibleForTesting
+    final ReadWriteLock mCarriersLock = new ReentrantReadWriteLock();
+    private final ReadWriteLock mSimInfoLock = new ReentrantReadWriteLock();
+
+    private volatile boolean mManagedApnEnforced;
 
     /**
      * Lazy tracking SubscriptionManager#getDefaultSubscriptionId for db operation to prevent race
      * condition.
-     * Make sure the call is outside of instance synchronization to prevent dead lock between
+     * Make sure the call is outside of the table locks to prevent dead lock between
      * SubscriptionManager lock and telephony provider lock.
      */
     private int mDefaultSubId = SubscriptionManager.getDefaultSubscriptionId();
 
     private final LocalLog mLocalLog = new LocalLog(128);
 
+    // The APNs matching the SIM of each subscription.
+    @VisibleForTesting
+    final ApnMatchCache mApnMatchCache = new ApnMatchCache();
+
     /**
      * Mobile country codes where there is a high likelyhood that the MNC has 3 digits
      * and need one more prefix zero to set correct mobile network code value.
@@ -789,7 +820,8 @@ public class TelephonyProvider extends ContentProvider
             mContext = context;
             // Memory optimization - close idle connections after 30s of inactivity
             setIdleConnectionTimeout(IDLE_CONNECTION_TIMEOUT_MS);
-            setWriteAheadLoggingEnabled(false);
+            // Queries run without the table locks, concurrently with the writes.
+            setWriteAheadLoggingEnabled(true);
         }
 
         @Override
@@ -797,6 +829,7 @@ public class TelephonyProvider extends ContentProvider
             if (DBG) log("dbh.onCreate:+ db=" + db);
             createSimInfoTable(db, SIMINFO_TABLE);
             createCarriersTable(db, CARRIERS_TABLE);
+            createApnConfEntriesTable(db);
             // if CarrierSettings app is installed, we expect it to do the initializiation instead
             if (apnSourceServiceExists(mContext)) {
                 log("dbh.onCreate: Skipping apply APNs from xml.");
@@ -832,6 +865,7 @@ public class TelephonyProvider extends ContentProvider
                     createCarriersTable(db, CARRIERS_TABLE);
                 }
             }
+            createApnConfEntriesTable(db);
             if (VDBG) log("dbh.onOpen:- db=" + db);
         }
 
@@ -848,6 +882,12 @@ public class TelephonyProvider extends ContentProvider
             if (DBG) log("dbh.createCarriersTable:-");
         }
 
+        private void createApnConfEntriesTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + APN_CONF_ENTRIES_TABLE + "("
+                    + APN_CONF_ENTRY_UNIQUE_FIELDS + " TEXT NOT NULL,"
+                    + APN_CONF_ENTRY_HASH + " INTEGER NOT NULL);");
+        }
+
         private long getChecksum(File file) {
             CRC32 checkSummer = new CRC32();
             long checkSum = -1;
@@ -935,8 +975,11 @@ public class TelephonyProvider extends ContentProvider
          *  This function adds APNs from xml file(s) to db. The db may or may not be empty to begin
          *  with.
          */
-        private void initDatabase(SQLiteDatabase db) {
+        @VisibleForTesting
+        void initDatabase(SQLiteDatabase db) {
             if (VDBG) log("dbh.initDatabase:+ db=" + db);
+            // The APNs actually loaded, see updateDatabaseIncrementally()
+            List<ApnConfEntry> loaded = new ArrayList<>();
             // Read internal APNS data
             Resources r = mContext.getResources();
             int publicversion = -1;
@@ -945,7 +988,7 @@ public class TelephonyProvider extends ContentProvider
                 try {
                     XmlUtils.beginDocument(parser, "apns");
                     publicversion = Integer.parseInt(parser.getAttributeValue(null, "version"));
-                    loadApns(db, parser, true);
+                    loadApns(db, parser, true, loaded);
                 } catch (Exception e) {
                     loge("Got exception while loading APN database." + e);
                 } finally {
@@ -975,7 +1018,7 @@ public class TelephonyProvider extends ContentProvider
                             + confFile.getAbsolutePath());
                 }
 
-                loadApns(db, confparser, false);
+                loadApns(db, confparser, false, loaded);
             } catch (FileNotFoundException e) {
                 // It's ok if the file isn't found. It means there isn't a confidential file
                 // Log.e(TAG, "File not found: '" + confFile.getAbsolutePath() + "'");
@@ -1011,6 +1054,12 @@ public class TelephonyProvider extends ContentProvider
                     }
                 }
 
+                try {
+                    recordApnConfEntries(db, loaded);
+                } catch (SQLException e) {
+                    loge("initDatabase: got exception when recording the loaded apns: " + e);
+                }
+
                 // Update the stored checksum
                 setApnConfChecksum(getChecksum(confFile));
             }
@@ -1056,6 +1105,10 @@ public class TelephonyProvider extends ContentProvider
 
             deletePreferredApnId(mContext);
 
+            // The carriers table may be recreated below, so the next update of the APNs from xml
+            // has to reload all of them. onOpen() creates the table again.
+            db.execSQL("DROP TABLE IF EXISTS " + APN_CONF_ENTRIES_TABLE);
+
             if (oldVersion < (5 << 16 | 6)) {
                 // 5 << 16 is the Database version and 6 in the xml version.
 
@@ -2941,21 +2994,22 @@ public class TelephonyProvider extends ContentProvider
          * @param db the sqlite database to write to
          * @param parser the xml parser
          * @param isOverlay, if we are parsing an xml in an overlay
+         * @param loaded the list to add the apns to, if they could all be loaded
          */
-        private void loadApns(SQLiteDatabase db, XmlPullParser parser, boolean isOverlay) {
+        private void loadApns(SQLiteDatabase db, XmlPullParser parser, boolean isOverlay,
+                List<ApnConfEntry> loaded) {
             if (parser != null) {
+                ApnLoader loader = null;
                 try {
                     db.beginTransaction();
-                    XmlUtils.nextElement(parser);
-                    while (parser.getEventType() != XmlPullParser.END_DOCUMENT) {
-                        ContentValues row = getRow(parser, isOverlay);
-                        if (row == null) {
-                            throw new XmlPullParserException("Expected 'apn' tag", parser, null);
-                        }
-                        insertAddingDefaults(db, row);
-                        XmlUtils.nextElement(parser);
+                    loader = new ApnLoader(db);
+                    List<ApnConfEntry> entries = new ArrayList<>();
+                    readApnConfEntries(parser, isOverlay, entries);
+                    for (ApnConfEntry entry : entries) {
+                        loader.insertAddingDefaults(entry.row);
                     }
                     db.setTransactionSuccessful();
+                    loaded.addAll(entries);
                 } catch (XmlPullParserException e) {
                     loge("Got XmlPullParserException while loading apns." + e);
                 } catch (IOException e) {
@@ -2963,25 +3017,75 @@ public class TelephonyProvider extends ContentProvider
                 } catch (SQLException e) {
                     loge("Got SQLException while loading apns." + e);
                 } finally {
+                    if (loader != null) {
+                        loader.close();
+                    }
                     db.endTransaction();
                 }
             }
         }
 
-        private void insertAddingDefaults(SQLiteDatabase db, ContentValues row) {
-            row = setDefaultValue(row);
-            try {
-                db.insertWithOnConflict(CARRIERS_TABLE, null, row, SQLiteDatabase.CONFLICT_ABORT);
-                if (VDBG) log("dbh.insertAddingDefaults: db.insert returned >= 0; insert " +
-                        "successful for cv " + row);
-            } catch (SQLException e) {
-                if (VDBG) log("dbh.insertAddingDefaults: exception " + e);
-                // Insertion failed which could be due to a conflict. Check if that is the case and
-                // update edited field accordingly.
-                // Search for the exact same entry and update edited field.
+        /**
+         * Inserts the APNs loaded from xml into the carriers table through compiled statements.
+         *
+         * Whether an APN conflicts with an existing row, and has to be merged into it instead, is
+         * decided from an index of the unique fields of the rows in the table, built once up
+         * front. Only if the index misses a conflict, e.g. with a row that merging a previous APN
+         * added, does the insert fail and fall back to looking up the conflicting row.
+         */
+        private class ApnLoader {
+            private final SQLiteDatabase mDb;
+            // Row ids by the values of CARRIERS_UNIQUE_FIELDS, as in selectConflictingRow.
+            private final Map<List<String>, Long> mIdsByUniqueFields = new HashMap<>();
+            // Insert statements by the columns they set.
+            private final Map<String, SQLiteStatement> mInsertStatements = new HashMap<>();
+
+            ApnLoader(SQLiteDatabase db) {
+                mDb = db;
+                String[] columns = new String[CARRIERS_UNIQUE_FIELDS.size() + 1];
+                columns[0] = _ID;
+                for (int i = 0; i < CARRIERS_UNIQUE_FIELDS.size(); i++) {
+                    columns[i + 1] = CARRIERS_UNIQUE_FIELDS.get(i);
+                }
+                try (Cursor c = db.query(CARRIERS_TABLE, columns, null, null, null, null, null)) {
+                    while (c.moveToNext()) {
+                        List<String> key = new ArrayList<>(CARRIERS_UNIQUE_FIELDS.size());
+                        for (int i = 1; i < columns.length; i++) {
+                            key.add(c.getString(i));
+                        }
+                        // A null never matches in selectConflictingRow either.
+                        if (!key.contains(null)) {
+                            mIdsByUniqueFields.put(key, c.getLong(0));
+                        }
+                    }
+                }
+            }
+
+            void insertAddingDefaults(ContentValues row) {
+                row = setDefaultValue(row);
+                List<String> key = getUniqueFieldValues(row);
+                Long id = key != null ? mIdsByUniqueFields.get(key) : null;
+                if (id == null) {
+                    try {
+                        long rowId = insert(row);
+                        if (key != null && rowId != -1) {
+                            mIdsByUniqueFields.put(key, rowId);
+                        }
+                        if (VDBG) log("dbh.insertAddingDefaults: db.insert returned >= 0; " +
+                                "insert successful for cv " + row);
+                        return;
+                    } catch (SQLException e) {
+                        if (VDBG) log("dbh.insertAddingDefaults: exception " + e);
+                    }
+                }
+
+                // The APN conflicts with an existing row, update its edited field accordingly.
                 // If it is USER_EDITED/CARRIER_EDITED change it to UNEDITED,
                 // and if USER/CARRIER_DELETED change it to USER/CARRIER_DELETED_BUT_PRESENT_IN_XML.
-                Cursor oldRow = selectConflictingRow(db, CARRIERS_TABLE, row);
+                Cursor oldRow = id != null ? selectRowById(id) : null;
+                if (oldRow == null) {
+                    oldRow = selectConflictingRow(mDb, CARRIERS_TABLE, row);
+                }
                 if (oldRow != null) {
                     // Update the row
                     ContentValues mergedValues = new ContentValues();
@@ -3000,7 +3104,7 @@ public class TelephonyProvider extends ContentProvider
                         mergedValues.put(EDITED_STATUS, edited);
                     }
 
-                    mergeFieldsAndUpdateDb(db, CARRIERS_TABLE, oldRow, row, mergedValues, false,
+                    mergeFieldsAndUpdateDb(mDb, CARRIERS_TABLE, oldRow, row, mergedValues, false,
                             mContext);
 
                     if (VDBG) log("dbh.insertAddingDefaults: old edited = " + old_edited
@@ -3009,7 +3113,306 @@ public class TelephonyProvider extends ContentProvider
                     oldRow.close();
                 }
             }
+
+            void close() {
+                for (SQLiteStatement statement : mInsertStatements.values()) {
+                    statement.close();
+                }
+                mInsertStatements.clear();
+            }
+
+            private long insert(ContentValues row) {
+                Set<String> columns = row.keySet();
+                String columnList = TextUtils.join(",", columns);
+                SQLiteStatement statement = mInsertStatements.get(columnList);
+                if (statement == null) {
+                    String[] placeholders = new String[columns.size()];
+                    Arrays.fill(placeholders, "?");
+                    statement = mDb.compileStatement("INSERT INTO " + CARRIERS_TABLE + " ("
+                            + columnList + ") VALUES (" + TextUtils.join(",", placeholders)
+                            + ")");
+                    mInsertStatements.put(columnList, statement);
+                }
+                int index = 1;
+                for (String column : columns) {
+                    DatabaseUtils.bindObjectToProgram(statement, index++, row.get(column));
+                }
+                return statement.executeInsert();
+            }
+
+            private Cursor selectRowById(long id) {
+                Cursor c = mDb.query(CARRIERS_TABLE, CONFLICTING_ROW_COLUMNS, _ID + "=?",
+                        new String[] { Long.toString(id) }, null, null, null);
+                if (c != null && c.moveToFirst()) {
+                    return c;
+                }
+                // Replaced since the index was built.
+                if (c != null) {
+                    c.close();
+                }
+                return null;
+            }
+        }
+
+        /**
+         * An APN read from xml.
+         */
+        private class ApnConfEntry {
+            final ContentValues row;
+            // The values of CARRIERS_UNIQUE_FIELDS as a JSON array, or null if any is null.
+            final String uniqueFields;
+            // A hash of all the attributes, to tell whether the APN changed.
+            final long hash;
+
+            ApnConfEntry(ContentValues row, boolean isOverlay) {
+                this.row = row;
+                List<String> values = getUniqueFieldValues(row);
+                uniqueFields = values != null ? new JSONArray(values).toString() : null;
+                hash = getApnConfEntryHash(row, isOverlay);
+            }
+        }
+
+        private void readApnConfEntries(XmlPullParser parser, boolean isOverlay,
+                List<ApnConfEntry> entries) throws XmlPullParserException, IOException {
+            XmlUtils.nextElement(parser);
+            while (parser.getEventType() != XmlPullParser.END_DOCUMENT) {
+                ContentValues row = getRow(parser, isOverlay);
+                if (row == null) {
+                    throw new XmlPullParserException("Expected 'apn' tag", parser, null);
+                }
+                entries.add(new ApnConfEntry(row, isOverlay));
+                XmlUtils.nextElement(parser);
+            }
+        }
+
+        /**
+         * Reads the APNs from the same xml files as initDatabase, in the same order.
+         *
+         * @return the APNs, or null if a file can't be parsed
+         */
+        private List<ApnConfEntry> readApnConfEntries() {
+            List<ApnConfEntry> entries = new ArrayList<>();
+            Resources r = mContext.getResources();
+            if (r == null) {
+                loge("readApnConfEntries: resources=null");
+                return null;
+            }
+            int publicversion;
+            XmlResourceParser parser = r.getXml(com.android.internal.R.xml.apns);
+            try {
+                XmlUtils.beginDocument(parser, "apns");
+                publicversion = Integer.parseInt(parser.getAttributeValue(null, "version"));
+                readApnConfEntries(parser, true, entries);
+            } catch (Exception e) {
+                loge("readApnConfEntries: Exception while parsing internal apns " + e);
+                return null;
+            } finally {
+                parser.close();
+            }
+
+            File confFile = getApnConfFile();
+            try (FileReader confreader = new FileReader(confFile)) {
+                XmlPullParser confparser = Xml.newPullParser();
+                confparser.setInput(confreader);
+                XmlUtils.beginDocument(confparser, "apns");
+                int confversion = Integer.parseInt(confparser.getAttributeValue(null, "version"));
+                if (publicversion != confversion) {
+                    // initDatabase doesn't load the file either.
+                    log("readApnConfEntries: version mismatch, skipping " + confFile);
+                    return entries;
+                }
+                readApnConfEntries(confparser, false, entries);
+            } catch (FileNotFoundException e) {
+                // It's ok if the file isn't found, as in initDatabase.
+            } catch (Exception e) {
+                loge("readApnConfEntries: Exception while parsing '"
+                        + confFile.getAbsolutePath() + "'" + e);
+                return null;
+            }
+            return entries;
+        }
+
+        /**
+         * Records the APNs loaded from xml, replacing the ones previously recorded.
+         */
+        private void recordApnConfEntries(SQLiteDatabase db, List<ApnConfEntry> entries) {
+            db.beginTransaction();
+            try {
+                db.delete(APN_CONF_ENTRIES_TABLE, null, null);
+                try (SQLiteStatement statement = db.compileStatement("INSERT INTO "
+                        + APN_CONF_ENTRIES_TABLE + " (" + APN_CONF_ENTRY_UNIQUE_FIELDS + ","
+                        + APN_CONF_ENTRY_HASH + ") VALUES (?,?)")) {
+                    for (ApnConfEntry entry : entries) {
+                        if (entry.uniqueFields == null) {
+                            // Can't be compared, so the next update has to reload everything.
+                            db.delete(APN_CONF_ENTRIES_TABLE, null, null);
+                            break;
+                        }
+                        statement.bindString(1, entry.uniqueFields);
+                        statement.bindLong(2, entry.hash);
+                        statement.executeInsert();
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+
+        /**
+         * Applies the changes to the APNs in the xml files since they were last loaded, instead
+         * of deleting the unedited rows and loading every APN again.
+         *
+         * APNs are grouped by their unique fields, since those with the same ones are merged into
+         * the same row. Only the groups in which an APN was added, removed or changed are reloaded,
+         * the same way as updateApnDb does for all of them: their unedited rows are deleted, their
+         * APNs loaded again, and their rows still deleted by the user or carrier but no longer in
+         * xml are dropped.
+         *
+         * @return true if the APNs were updated, false if they have to be reloaded fully instead,
+         * in which case nothing was changed
+         */
+        boolean updateDatabaseIncrementally(SQLiteDatabase db) {
+            Map<String, List<Long>> oldGroups = new HashMap<>();
+            try (Cursor c = db.query(APN_CONF_ENTRIES_TABLE, new String[] {
+                    APN_CONF_ENTRY_UNIQUE_FIELDS, APN_CONF_ENTRY_HASH }, null, null, null, null,
+                    "rowid")) {
+                while (c.moveToNext()) {
+                    oldGroups.computeIfAbsent(c.getString(0), k -> new ArrayList<>())
+                            .add(c.getLong(1));
+                }
+            } catch (SQLException e) {
+                loge("updateDatabaseIncrementally: got exception " + e);
+                return false;
+            }
+            if (oldGroups.isEmpty()) {
+                log("updateDatabaseIncrementally: no APNs recorded");
+                return false;
+            }
+            List<ApnConfEntry> entries = readApnConfEntries();
+            if (entries == null) {
+                return false;
+            }
+
+            Map<String, List<ApnConfEntry>> newGroups = new LinkedHashMap<>();
+            for (ApnConfEntry entry : entries) {
+                if (entry.uniqueFields == null) {
+                    return false;
+                }
+                newGroups.computeIfAbsent(entry.uniqueFields, k -> new ArrayList<>()).add(entry);
+            }
+            Set<String> changed = new LinkedHashSet<>();
+            for (Map.Entry<String, List<ApnConfEntry>> group : newGroups.entrySet()) {
+                List<Long> hashes = new ArrayList<>();
+                for (ApnConfEntry entry : group.getValue()) {
+                    hashes.add(entry.hash);
+                }
+                if (!hashes.equals(oldGroups.get(group.getKey()))) {
+                    changed.add(group.getKey());
+                }
+            }
+            for (String uniqueFields : oldGroups.keySet()) {
+                if (!newGroups.containsKey(uniqueFields)) {
+                    changed.add(uniqueFields);
+                }
+            }
+            log("updateDatabaseIncrementally: " + changed.size() + " of " + newGroups.size()
+                    + " APNs changed");
+
+            String selection = TextUtils.join("=? AND ", CARRIERS_UNIQUE_FIELDS) + "=?";
+            db.beginTransaction();
+            try {
+                for (String uniqueFields : changed) {
+                    db.delete(CARRIERS_TABLE, "(" + selection + ") and " + IS_UNEDITED + " and "
+                            + IS_NOT_OWNED_BY_DPC, toSelectionArgs(uniqueFields));
+                }
+                ApnLoader loader = new ApnLoader(db);
+                try {
+                    for (String uniqueFields : changed) {
+                        List<ApnConfEntry> group = newGroups.get(uniqueFields);
+                        if (group == null) {
+                            continue;
+                        }
+                        for (ApnConfEntry entry : group) {
+                            loader.insertAddingDefaults(entry.row);
+                        }
+                    }
+                } finally {
+                    loader.close();
+                }
+                for (String uniqueFields : changed) {
+                    db.delete(CARRIERS_TABLE, "(" + selection + ") and (" + IS_USER_DELETED
+                            + " or " + IS_CARRIER_DELETED + ")", toSelectionArgs(uniqueFields));
+                }
+
+                ContentValues cv = new ContentValues();
+                cv.put(EDITED_STATUS, USER_DELETED);
+                db.update(CARRIERS_TABLE, cv, IS_USER_DELETED_BUT_PRESENT_IN_XML, null);
+                cv = new ContentValues();
+                cv.put(EDITED_STATUS, CARRIER_DELETED);
+                db.update(CARRIERS_TABLE, cv, IS_CARRIER_DELETED_BUT_PRESENT_IN_XML, null);
+
+                recordApnConfEntries(db, entries);
+                db.setTransactionSuccessful();
+            } catch (SQLException | JSONException e) {
+                loge("updateDatabaseIncrementally: got exception " + e);
+                return false;
+            } finally {
+                db.endTransaction();
+            }
+            setApnConfChecksum(getChecksum(getApnConfFile()));
+            return true;
+        }
+
+        private String[] toSelectionArgs(String uniqueFields) throws JSONException {
+            JSONArray values = new JSONArray(uniqueFields);
+            String[] selectionArgs = new String[values.length()];
+            for (int i = 0; i < selectionArgs.length; i++) {
+                selectionArgs[i] = values.getString(i);
+            }
+            return selectionArgs;
+        }
+    }
+
+    /**
+     * Returns the values of CARRIERS_UNIQUE_FIELDS of the given row, with the same defaults as
+     * selectConflictingRow, or null if any is null.
+     */
+    private static List<String> getUniqueFieldValues(ContentValues row) {
+        List<String> key = new ArrayList<>(CARRIERS_UNIQUE_FIELDS.size());
+        for (String field : CARRIERS_UNIQUE_FIELDS) {
+            String value;
+            if (!row.containsKey(field)) {
+                value = CARRIERS_UNIQUE_FIELDS_DEFAULTS.get(field);
+            } else if (CARRIERS_BOOLEAN_FIELDS.contains(field)) {
+                value = convertStringToIntString(row.getAsString(field));
+            } else {
+                value = row.getAsString(field);
+            }
+            if (value == null) {
+                return null;
+            }
+            key.add(value);
         }
+        return key;
+    }
+
+    /**
+     * Returns a 64-bit FNV-1a hash of the attributes of an APN read from xml.
+     */
+    private static long getApnConfEntryHash(ContentValues row, boolean isOverlay) {
+        List<String> keys = new ArrayList<>(row.keySet());
+        Collections.sort(keys);
+        StringBuilder sb = new StringBuilder(isOverlay ? "overlay" : "conf");
+        for (String key : keys) {
+            sb.append('\0').append(key).append('=').append(row.get(key));
+        }
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < sb.length(); i++) {
+            hash ^= sb.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
     }
 
     public static void mergeFieldsAndUpdateDb(SQLiteDatabase db, String table, Cursor oldRow,
@@ -3214,6 +3617,14 @@ public class TelephonyProvider extends ContentProvider
         return false;
     }
 
+    // The columns of the conflicting row that mergeFieldsAndUpdateDb needs.
+    private static final String[] CONFLICTING_ROW_COLUMNS = { "_id",
+            TYPE,
+            EDITED_STATUS,
+            BEARER_BITMASK,
+            NETWORK_TYPE_BITMASK,
+            PROFILE_ID };
+
     public static Cursor selectConflictingRow(SQLiteDatabase db, String table,
             ContentValues row) {
         // Conflict is possible only when numeric, mcc, mnc (fields without any default value)
@@ -3223,12 +3634,6 @@ public class TelephonyProvider extends ContentProvider
             return null;
         }
 
-        String[] columns = { "_id",
-                TYPE,
-                EDITED_STATUS,
-                BEARER_BITMASK,
-                NETWORK_TYPE_BITMASK,
-                PROFILE_ID };
         String selection = TextUtils.join("=? AND ", CARRIERS_UNIQUE_FIELDS) + "=?";
         int i = 0;
         String[] selectionArgs = new String[CARRIERS_UNIQUE_FIELDS.size()];
@@ -3246,7 +3651,8 @@ public class TelephonyProvider extends ContentProvider
             }
         }
 
-        Cursor c = db.query(table, columns, selection, selectionArgs, null, null, null);
+        Cursor c = db.query(table, CONFLICTING_ROW_COLUMNS, selection, selectionArgs, null, null,
+                null);
 
         if (c != null) {
             if (c.getCount() == 1) {
@@ -3301,6 +3707,9 @@ public class TelephonyProvider extends ContentProvider
     void initDatabaseWithDatabaseHelper(SQLiteDatabase db) {
         mOpenHelper.initDatabase(db);
     }
+    boolean updateDatabaseIncrementallyWithDatabaseHelper(SQLiteDatabase db) {
+        return mOpenHelper.updateDatabaseIncrementally(db);
+    }
     boolean needApnDbUpdate() {
         return mOpenHelper.apnDbUpdateNeeded();
     }
@@ -3391,7 +3800,7 @@ public class TelephonyProvider extends ContentProvider
                         ContentValues[] values = mIApnSourceService.getApns(subId);
                         if (values != null) {
                             // we use the unsynchronized insert because this function is called
-                            // within the syncrhonized function delete()
+                            // within delete(), with the carriers write lock held
                             unsynchronizedBulkInsert(CONTENT_URI, values);
                             log("restoreApnsWithService: restored");
                         }
@@ -3493,7 +3902,7 @@ public class TelephonyProvider extends ContentProvider
         mLocalLog.log(logMsg);
     }
 
-    private synchronized boolean isManagedApnEnforced() {
+    private boolean isManagedApnEnforced() {
         return mManagedApnEnforced;
     }
 
@@ -3503,9 +3912,7 @@ public class TelephonyProvider extends ContentProvider
         SharedPreferences.Editor editor = sp.edit();
         editor.putBoolean(ENFORCED_KEY, enforced);
         editor.apply();
-        synchronized (this) {
-            mManagedApnEnforced = enforced;
-        }
+        mManagedApnEnforced = enforced;
     }
 
     private void setPreferredApnId(Long id, int subId, boolean saveApn) {
@@ -3664,20 +4071,23 @@ public class TelephonyProvider extends ContentProvider
     }
 
     @Override
-    public synchronized Bundle call(String method, @Nullable String args, @Nullable Bundle bundle) {
+    public Bundle call(String method, @Nullable String args, @Nullable Bundle bundle) {
         if (SubscriptionManager.GET_SIM_SPECIFIC_SETTINGS_METHOD_NAME.equals(method)) {
             getContext().enforceCallingOrSelfPermission(
                     android.Manifest.permission.READ_PRIVILEGED_PHONE_STATE, TAG);
             final long identity = Binder.clearCallingIdentity();
+            mSimInfoLock.readLock().lock();
             try {
                 return retrieveSimSpecificSettings();
             } finally {
+                mSimInfoLock.readLock().unlock();
                 Binder.restoreCallingIdentity(identity);
             }
         } else if (SubscriptionManager.RESTORE_SIM_SPECIFIC_SETTINGS_METHOD_NAME.equals(method)) {
             getContext().enforceCallingOrSelfPermission(
                     android.Manifest.permission.MODIFY_PHONE_STATE, TAG);
             final long identity = Binder.clearCallingIdentity();
+            mSimInfoLock.writeLock().lock();
             try {
                 Bundle resultBundle = new Bundle();
                 boolean changed = restoreSimSpecificSettings(bundle, args);
@@ -3690,6 +4100,7 @@ public class TelephonyProvider extends ContentProvider
                         changed);
                 return resultBundle;
             } finally {
+                mSimInfoLock.writeLock().unlock();
                 Binder.restoreCallingIdentity(identity);
             }
         } else {
@@ -4396,8 +4807,8 @@ public class TelephonyProvider extends ContentProvider
      * Internally queries the database.
      *
      * Things to keep in mind when writing code for this function:
-     *   - Must be wrapped in synchronized before quering database.
-     *   - Please call external APIs, that use locks, outside of synchronized.
+     *   - Plain queries don't take the table locks, see {@link #mCarriersLock}.
+     *   - Please call external APIs, that use locks, outside of the table locks.
      */
     private Cursor queryInternal(Uri url, String[] projectionIn, String selection,
             String[] selectionArgs, String sort) {
@@ -4603,32 +5014,31 @@ public class TelephonyProvider extends ContentProvider
             qb.appendWhere(TextUtils.join(" AND ", constraints));
         }
 
-        synchronized (this) {
-            SQLiteDatabase db = getReadableDatabase();
-            Cursor ret = null;
-            try {
-                // Exclude entries marked deleted
-                if (CARRIERS_TABLE.equals(qb.getTables())) {
-                    if (TextUtils.isEmpty(selection)) {
-                        selection = "";
-                    } else {
-                        selection += " and ";
-                    }
-                    selection += IS_NOT_USER_DELETED + " and "
-                            + IS_NOT_USER_DELETED_BUT_PRESENT_IN_XML + " and "
-                            + IS_NOT_CARRIER_DELETED + " and "
-                            + IS_NOT_CARRIER_DELETED_BUT_PRESENT_IN_XML;
-                    if (VDBG) log("query: selection modified to " + selection);
+        // Runs without the table locks, see mCarriersLock.
+        SQLiteDatabase db = getReadableDatabase();
+        Cursor ret = null;
+        try {
+            // Exclude entries marked deleted
+            if (CARRIERS_TABLE.equals(qb.getTables())) {
+                if (TextUtils.isEmpty(selection)) {
+                    selection = "";
+                } else {
+                    selection += " and ";
                 }
-                ret = qb.query(db, projectionIn, selection, selectionArgs, null, null, sort);
-            } catch (SQLException e) {
-                loge("got exception when querying: " + e);
-            }
-            if (ret != null) {
-                ret.setNotificationUri(getContext().getContentResolver(), url);
+                selection += IS_NOT_USER_DELETED + " and "
+                        + IS_NOT_USER_DELETED_BUT_PRESENT_IN_XML + " and "
+                        + IS_NOT_CARRIER_DELETED + " and "
+                        + IS_NOT_CARRIER_DELETED_BUT_PRESENT_IN_XML;
+                if (VDBG) log("query: selection modified to " + selection);
             }
-            return ret;
+            ret = qb.query(db, projectionIn, selection, selectionArgs, null, null, sort);
+        } catch (SQLException e) {
+            loge("got exception when querying: " + e);
+        }
+        if (ret != null) {
+            ret.setNotificationUri(getContext().getContentResolver(), url);
         }
+        return ret;
     }
 
     /**
@@ -4670,18 +5080,25 @@ public class TelephonyProvider extends ContentProvider
         Context context = getContext();
 
         // The SubscriptionManager can use the lock to query tables such as sim_info again, so
-        // calling subscriptionManager should be performed outside of synchronized.
+        // calling subscriptionManager should be performed outside of the table locks.
         final SubscriptionManager subscriptionManager = (SubscriptionManager) context
                 .getSystemService(Context.TELEPHONY_SUBSCRIPTION_SERVICE);
         if (!subscriptionManager.isActiveSubscriptionId(subId)) {
             return null;
         }
+        mApnMatchCache.register(context);
 
-        return getSubscriptionMatchingAPNListSynchronized(qb, projectionIn, selection,
-                selectionArgs, sort, subId);
+        // Keeps the classified rows, and the cache, consistent with the writes to carriers.
+        mCarriersLock.readLock().lock();
+        try {
+            return getSubscriptionMatchingAPNListLocked(qb, projectionIn, selection,
+                    selectionArgs, sort, subId);
+        } finally {
+            mCarriersLock.readLock().unlock();
+        }
     }
 
-    private synchronized Cursor getSubscriptionMatchingAPNListSynchronized(
+    private Cursor getSubscriptionMatchingAPNListLocked(
             SQLiteQueryBuilder qb, String[] projectionIn, String selection, String[] selectionArgs,
             String sort, int subId) {
         Cursor ret;
@@ -4704,6 +5121,20 @@ public class TelephonyProvider extends ContentProvider
         qb.appendWhereStandalone(NUMERIC + " = '" + mccmnc + "' OR " +
                 CARRIER_ID + " = '" + carrierId + "'");
 
+        // The query includes the MCC/MNC and carrier id of the SIM, see ApnMatchCache.
+        final String mvnoMatchKey = getMvnoMatchKey(tm);
+        final String cacheKey = mvnoMatchKey == null ? null
+                : qb.buildQuery(null, selection, null, null, sort, null)
+                        + "\n" + Arrays.toString(selectionArgs)
+                        + "\n" + Arrays.toString(projectionIn) + "\n" + subId
+                        + "\n" + mvnoMatchKey;
+        ApnMatchCache.Result cached = cacheKey == null ? null : mApnMatchCache.get(cacheKey);
+        if (cached != null) {
+            if (DBG) log("subId:" + subId + " match current APN from cache");
+            return cached.toCursor();
+        }
+        final long generation = mApnMatchCache.getGeneration();
+
         ret = qb.query(db, null, selection, selectionArgs, null, null, sort);
         if (ret == null) {
             loge("subId:" + subId + " query current APN but cursor is null.");
@@ -4714,21 +5145,25 @@ public class TelephonyProvider extends ContentProvider
                 ", match current APN size:  " + ret.getCount());
 
         String[] columnNames = projectionIn != null ? projectionIn : ret.getColumnNames();
-        MatrixCursor currentCursor = new MatrixCursor(columnNames);
-        MatrixCursor parentCursor = new MatrixCursor(columnNames);
-        MatrixCursor carrierIdCursor = new MatrixCursor(columnNames);
-        MatrixCursor carrierIdNonMatchingMNOCursor = new MatrixCursor(columnNames);
+        List<Object[]> currentRows = new ArrayList<>();
+        List<Object[]> parentRows = new ArrayList<>();
+        List<Object[]> carrierIdRows = new ArrayList<>();
+        List<Object[]> carrierIdNonMatchingMNORows = new ArrayList<>();
 
         int numericIndex = ret.getColumnIndex(NUMERIC);
         int mvnoIndex = ret.getColumnIndex(MVNO_TYPE);
         int mvnoDataIndex = ret.getColumnIndex(MVNO_MATCH_DATA);
         int carrierIdIndex = ret.getColumnIndex(CARRIER_ID);
+        int[] columnIndexes = new int[columnNames.length];
+        for (int i = 0; i < columnNames.length; i++) {
+            columnIndexes[i] = ret.getColumnIndex(columnNames[i]);
+        }
 
-        // Separate the result into MatrixCursor
+        // Separate the result into lists of rows
         while (ret.moveToNext()) {
-            List<String> data = new ArrayList<>();
-            for (String column : columnNames) {
-                data.add(ret.getString(ret.getColumnIndex(column)));
+            Object[] data = new Object[columnNames.length];
+            for (int i = 0; i < columnNames.length; i++) {
+                data[i] = ret.getString(columnIndexes[i]);
             }
 
             boolean isCurrentSimOperator = false;
@@ -4755,63 +5190,62 @@ public class TelephonyProvider extends ContentProvider
 
             if (isMVNOAPN) {
                 // 1. The APN that query based on legacy SIM MCC/MCC and MVNO
-                currentCursor.addRow(data);
+                currentRows.add(data);
             } else if (isMNOAPN) {
                 // 2. The APN that query based on SIM MCC/MNC
-                parentCursor.addRow(data);
+                parentRows.add(data);
             } else if (isCarrierIdAPN) {
                 // The APN that query based on carrier Id (not include the MVNO or MNO APN)
                 if (TextUtils.isEmpty(ret.getString(numericIndex))) {
-                    carrierIdCursor.addRow(data);
+                    carrierIdRows.add(data);
                 } else {
-                    carrierIdNonMatchingMNOCursor.addRow(data);
+                    carrierIdNonMatchingMNORows.add(data);
                 }
             }
         }
         ret.close();
 
-        MatrixCursor result;
-        if (currentCursor.getCount() > 0) {
-            if (DBG) log("match MVNO APN: " + currentCursor.getCount());
-            result = currentCursor;
-        } else if (parentCursor.getCount() > 0) {
-            if (DBG) log("match MNO APN: " + parentCursor.getCount());
-            result = parentCursor;
+        List<Object[]> result;
+        if (currentRows.size() > 0) {
+            if (DBG) log("match MVNO APN: " + currentRows.size());
+            result = currentRows;
+        } else if (parentRows.size() > 0) {
+            if (DBG) log("match MNO APN: " + parentRows.size());
+            result = parentRows;
         } else {
             if (DBG) {
                 log("No MVNO, MNO and no MCC/MNC match, but we have match/matches with the " +
-                        "same carrier id, count: " + carrierIdNonMatchingMNOCursor.getCount());
+                        "same carrier id, count: " + carrierIdNonMatchingMNORows.size());
             }
-            result = carrierIdNonMatchingMNOCursor;
+            result = carrierIdNonMatchingMNORows;
         }
 
-        if (DBG) log("match carrier id APN: " + carrierIdCursor.getCount());
-        appendCursorData(result, carrierIdCursor);
-        return result;
+        if (DBG) log("match carrier id APN: " + carrierIdRows.size());
+        result.addAll(carrierIdRows);
+        ApnMatchCache.Result matching = new ApnMatchCache.Result(columnNames, result);
+        if (cacheKey != null) {
+            mApnMatchCache.put(cacheKey, matching, generation);
+        }
+        return matching.toCursor();
     }
 
-    private static void appendCursorData(@NonNull MatrixCursor from, @NonNull MatrixCursor to) {
-        while (to.moveToNext()) {
-            List<Object> data = new ArrayList<>();
-            for (String column : to.getColumnNames()) {
-                int index = to.getColumnIndex(column);
-                switch (to.getType(index)) {
-                    case Cursor.FIELD_TYPE_INTEGER:
-                        data.add(to.getInt(index));
-                        break;
-                    case Cursor.FIELD_TYPE_FLOAT:
-                        data.add(to.getFloat(index));
-                        break;
-                    case Cursor.FIELD_TYPE_BLOB:
-                        data.add(to.getBlob(index));
-                        break;
-                    case Cursor.FIELD_TYPE_STRING:
-                    case Cursor.FIELD_TYPE_NULL:
-                        data.add(to.getString(index));
-                        break;
-                }
-            }
-            from.addRow(data);
+    /**
+     * Returns the SIM records that matchesCurrentSimOperator matches MVNO APNs against: the
+     * IMSI, GID1, SPN and ICCID. These load after the subscription becomes active, and no
+     * subscription change has to follow, so they're part of the key of the cached list.
+     *
+     * @return the records, or null if they can't be read, in which case the list isn't cached
+     */
+    private static String getMvnoMatchKey(TelephonyManager tm) {
+        final long identity = Binder.clearCallingIdentity();
+        try {
+            return tm.getSubscriberId() + "\n" + tm.getGroupIdLevel1() + "\n"
+                    + tm.getSimOperatorName() + "\n" + tm.getSimSerialNumber();
+        } catch (SecurityException e) {
+            loge("getMvnoMatchKey: " + e);
+            return null;
+        } finally {
+            Binder.restoreCallingIdentity(identity);
         }
     }
 
@@ -4847,14 +5281,18 @@ public class TelephonyProvider extends ContentProvider
     @Override
     public int bulkInsert(Uri url, ContentValues[] values) {
         mDefaultSubId = SubscriptionManager.getDefaultSubscriptionId();
-        synchronized (this) {
+        Lock lock = getTableLock(url).writeLock();
+        lock.lock();
+        try {
             return unsynchronizedBulkInsert(url, values);
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
-     * Do a bulk insert while inside a synchronized function. This is typically not safe and should
-     * only be done when you are sure there will be no conflict.
+     * Do a bulk insert with the write lock of the table already held. This is typically not safe
+     * and should only be done when you are sure there will be no conflict.
      */
     private int unsynchronizedBulkInsert(Uri url, ContentValues[] values) {
         int count = 0;
@@ -4868,6 +5306,7 @@ public class TelephonyProvider extends ContentProvider
                 notify = true;
             }
         }
+        mApnMatchCache.invalidate();
         if (notify) {
             getContext().getContentResolver().notifyChange(CONTENT_URI, null,
                     true, UserHandle.USER_ALL);
@@ -4878,11 +5317,18 @@ public class TelephonyProvider extends ContentProvider
     @Override
     public Uri insert(Uri url, ContentValues initialValues) {
         mDefaultSubId = SubscriptionManager.getDefaultSubscriptionId();
-        return insertSynchronized(url, initialValues);
+        Lock lock = getTableLock(url).writeLock();
+        lock.lock();
+        try {
+            return insertLocked(url, initialValues);
+        } finally {
+            lock.unlock();
+        }
     }
 
-    private synchronized Uri insertSynchronized(Uri url, ContentValues initialValues) {
+    private Uri insertLocked(Uri url, ContentValues initialValues) {
         Pair<Uri, Boolean> rowAndNotify = insertSingleRow(url, initialValues);
+        mApnMatchCache.invalidate();
         if (rowAndNotify.second) {
             getContext().getContentResolver().notifyChange(CONTENT_URI, null,
                     true, UserHandle.USER_ALL);
@@ -5057,10 +5503,17 @@ public class TelephonyProvider extends ContentProvider
     @Override
     public int delete(Uri url, String where, String[] whereArgs) {
         mDefaultSubId = SubscriptionManager.getDefaultSubscriptionId();
-        return deleteSynchronized(url, where, whereArgs);
+        Lock lock = getTableLock(url).writeLock();
+        lock.lock();
+        try {
+            return deleteLocked(url, where, whereArgs);
+        } finally {
+            lock.unlock();
+        }
     }
 
-    private synchronized int deleteSynchronized(Uri url, String where, String[] whereArgs) {
+    private int deleteLocked(Uri url, String where, String[] whereArgs) {
+        mApnMatchCache.invalidate();
         int count = 0;
         int subId = mDefaultSubId;
         String userOrCarrierEdited = ") and (" +
@@ -5214,11 +5667,18 @@ public class TelephonyProvider extends ContentProvider
     public int update(Uri url, ContentValues values, String where, String[] whereArgs)
     {
         mDefaultSubId = SubscriptionManager.getDefaultSubscriptionId();
-        return updateSynchronized(url, values, where, whereArgs);
+        Lock lock = getTableLock(url).writeLock();
+        lock.lock();
+        try {
+            return updateLocked(url, values, where, whereArgs);
+        } finally {
+            lock.unlock();
+        }
     }
 
-    private synchronized int updateSynchronized(Uri url, ContentValues values, String where,
+    private int updateLocked(Uri url, ContentValues values, String where,
             String[] whereArgs) {
+        mApnMatchCache.invalidate();
         int count = 0;
         int uriType = URL_UNKNOWN;
         int subId = mDefaultSubId;
@@ -5523,6 +5983,21 @@ public class TelephonyProvider extends ContentProvider
         return (usingSubId) ? Uri.withAppendedPath(uri, "" + subId) : uri;
     }
 
+    /**
+     * Returns the lock of the table the given URL refers to, see {@link #mCarriersLock}.
+     */
+    private ReadWriteLock getTableLock(Uri url) {
+        switch (s_urlMatcher.match(url)) {
+            case URL_SIMINFO:
+            case URL_SIMINFO_USING_SUBID:
+            case URL_SIMINFO_SUW_RESTORE:
+            case URL_SIMINFO_SIM_INSERTED_RESTORE:
+                return mSimInfoLock;
+            default:
+                return mCarriersLock;
+        }
+    }
+
     /**
      * Checks permission to query or insert/update/delete the database. The permissions required
      * for APN DB and SIMINFO DB are different:
@@ -5713,7 +6188,17 @@ public class TelephonyProvider extends ContentProvider
         return where;
     }
 
-    private synchronized void updateApnDb() {
+    private void updateApnDb() {
+        mCarriersLock.writeLock().lock();
+        try {
+            updateApnDbLocked();
+        } finally {
+            mCarriersLock.writeLock().unlock();
+        }
+    }
+
+    private void updateApnDbLocked() {
+        mApnMatchCache.invalidate();
         if (apnSourceServiceExists(getContext())) {
             loge("called updateApnDb when apn source service exists");
             return;
@@ -5732,6 +6217,13 @@ public class TelephonyProvider extends ContentProvider
         // Delete preferred APN for all subIds
         deletePreferredApnId(getContext());
 
+        // Usually only a few APNs changed, so try to update just those first.
+        if (updateDatabaseIncrementallyWithDatabaseHelper(db)) {
+            getContext().getContentResolver().notifyChange(
+                    CONTENT_URI, null, true, UserHandle.USER_ALL);
+            return;
+        }
+
         // Delete entries in db
         try {
             if (VDBG) log("updateApnDb: deleting edited=UNEDITED entries");
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.util.LruCache;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A bounded LRU cache of the thread ids of recently used recipient sets, keyed on the sorted,
+ * space-separated canonical address ids stored in threads.recipient_ids, so that sending to or
+ * receiving from the same recipients again doesn't query the threads table.
+ *
+ * There is one cache per database. A thread keeps its id for as long as it exists, so the only
+ * way an entry goes stale is its thread being deleted once its last message is: call
+ * {@link #invalidate} whenever rows are deleted from the threads table. A lookup that races with
+ * such a deletion passes the generation it started with to {@link #put}, which then drops it.
+ */
+public class ThreadIdCache {
+    private static final int MAX_SIZE = 256;
+
+    private static final Map<SQLiteDatabase, ThreadIdCache> sCaches = new WeakHashMap<>();
+
+    private final LruCache<String, Long> mCache = new LruCache<>(MAX_SIZE);
+    private long mGeneration;
+
+    private ThreadIdCache() {
+    }
+
+    /**
+     * Returns the cache for the threads table of the given database, creating it if needed.
+     */
+    static synchronized ThreadIdCache getInstance(SQLiteDatabase db) {
+        ThreadIdCache cache = sCaches.get(db);
+        if (cache == null) {
+            cache = new ThreadIdCache();
+            sCaches.put(db, cache);
+        }
+        return cache;
+    }
+
+    /**
+     * Drops all the cached thread ids of the given database, if any. Call this after deleting
+     * rows from the threads table.
+     */
+    static void invalidate(SQLiteDatabase db) {
+        ThreadIdCache cache;
+        synchronized (ThreadIdCache.class) {
+            cache = sCaches.get(db);
+        }
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Returns the cached thread id for the given recipient ids, or null if there is none.
+     */
+    Long get(String recipientIds) {
+        return mCache.get(recipientIds);
+    }
+
+    /**
+     * Returns the current generation, to be passed to {@link #put} once the thread id that is
+     * about to be looked up is known.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches the thread id of the given recipient ids, unless the cache was invalidated since
+     * {@code generation} was obtained.
+     */
+    synchronized void put(String recipientIds, long threadId, long generation) {
+        if (generation == mGeneration) {
+            mCache.put(recipientIds, threadId);
+        }
+    }
+
+    private synchronized void clear() {
+        mGeneration++;
+        mCache.evictAll();
+    }
+}
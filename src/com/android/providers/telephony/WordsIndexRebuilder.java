@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Rebuilds the words full text search index in small batches, in the background.
+ *
+ * A rebuild empties the index and records, for the sms and the part tables, a checkpoint made of
+ * the last _id indexed so far and of the highest _id at the start of the rebuild. Each batch
+ * indexes the next rows up to the highest _id and moves the checkpoint forward in the same
+ * transaction, so a rebuild that's interrupted resumes where it stopped. Rows above the highest
+ * _id are new and get indexed by the triggers on sms and part, which skip the rows that the
+ * rebuild hasn't reached yet.
+ *
+ * Each database helper has its own rebuilder, which runs the batches on a thread of its own.
+ */
+public class WordsIndexRebuilder {
+    private static final String TAG = "WordsIndexRebuilder";
+
+    static final String TABLE_WORDS_REINDEX = "words_reindex";
+
+    // Values of words.table_to_use and words_reindex.table_to_use.
+    private static final int TABLE_SMS = 1;
+    private static final int TABLE_PART = 2;
+
+    @VisibleForTesting
+    static final int BATCH_SIZE = 500;
+
+    // Keys of the progress bundle.
+    static final String REINDEX_PENDING = "reindex_pending";
+    static final String REINDEX_REMAINING_COUNT = "reindex_remaining_count";
+
+    // How long the idle rebuild thread is kept before it exits.
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    private final SQLiteOpenHelper mOpenHelper;
+    private final Executor mExecutor;
+    // Whether a rebuild task is queued but hasn't started yet, in which case there's no need to
+    // queue another one.
+    private final AtomicBoolean mQueued = new AtomicBoolean();
+
+    WordsIndexRebuilder(SQLiteOpenHelper openHelper) {
+        this(openHelper, createExecutor());
+    }
+
+    @VisibleForTesting
+    WordsIndexRebuilder(SQLiteOpenHelper openHelper, Executor executor) {
+        mOpenHelper = openHelper;
+        mExecutor = executor;
+    }
+
+    private static Executor createExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                runnable -> new Thread(runnable, TAG));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Returns a condition, for the WHEN clause of a trigger on sms or part, that's true if the
+     * row with the given _id is covered by the index, that is if it's not waiting to be
+     * indexed by a rebuild in progress.
+     */
+    static String getIndexedCondition(int tableToUse, String id) {
+        return "NOT EXISTS (SELECT 1 FROM " + TABLE_WORDS_REINDEX +
+                " WHERE table_to_use = " + tableToUse +
+                " AND " + id + " > last_id AND " + id + " <= max_id)";
+    }
+
+    static String getSmsIndexedCondition(String id) {
+        return getIndexedCondition(TABLE_SMS, id);
+    }
+
+    static String getPartIndexedCondition(String id) {
+        return getIndexedCondition(TABLE_PART, id);
+    }
+
+    /**
+     * Returns the columns of words that are inserted for a row of sms or part. An FTS5 words
+     * table reads all but index_text from the words_content view.
+     */
+    private static String getInsertColumns(boolean fts5) {
+        return fts5 ? "rowid, index_text"
+                : "rowid, index_text, _id, source_id, table_to_use, sub_id";
+    }
+
+    /**
+     * Returns the values of the {@link #getInsertColumns} for the row of sms or part whose
+     * columns are prefixed with {@code row}, "NEW." in a trigger or "" in a SELECT.
+     */
+    private static String getInsertValues(boolean fts5, int tableToUse, String row) {
+        final String id = tableToUse == TABLE_SMS
+                ? row + "_id" : MmsSmsDatabaseHelper.MMS_WORDS_ID_OFFSET + " + " + row + "_id";
+        final String text = tableToUse == TABLE_SMS ? row + "body" : row + "text";
+        return fts5 ? id + ", " + text
+                : id + ", " + text + ", " + id + ", " + row + "_id, " + tableToUse + ", "
+                        + row + "sub_id";
+    }
+
+    private static String getInsertStatement(boolean fts5, int tableToUse, String condition) {
+        return "INSERT INTO " + MmsProvider.TABLE_WORDS + " (" + getInsertColumns(fts5) + ")"
+                + " SELECT " + getInsertValues(fts5, tableToUse, "NEW.") + " WHERE " + condition;
+    }
+
+    private static String getDeleteStatement(boolean fts5, int tableToUse, String condition) {
+        final String id = tableToUse == TABLE_SMS
+                ? "OLD._id" : MmsSmsDatabaseHelper.MMS_WORDS_ID_OFFSET + " + OLD._id";
+        if (!fts5) {
+            return "DELETE FROM " + MmsProvider.TABLE_WORDS
+                    + " WHERE rowid = " + id + " AND " + condition;
+        }
+        // The external content is already changed, so FTS5 is given the old text to delete.
+        final String text = tableToUse == TABLE_SMS ? "OLD.body" : "OLD.text";
+        return "INSERT INTO " + MmsProvider.TABLE_WORDS + " (" + MmsProvider.TABLE_WORDS
+                + ", rowid, index_text) SELECT 'delete', " + id + ", " + text
+                + " WHERE " + condition;
+    }
+
+    /**
+     * Returns the statement of a trigger on sms that indexes the NEW row if the condition holds.
+     */
+    static String getSmsInsertStatement(boolean fts5, String condition) {
+        return getInsertStatement(fts5, TABLE_SMS, condition);
+    }
+
+    /**
+     * Returns the statement of a trigger on sms that removes the OLD row from the index if the
+     * condition holds.
+     */
+    static String getSmsDeleteStatement(boolean fts5, String condition) {
+        return getDeleteStatement(fts5, TABLE_SMS, condition);
+    }
+
+    static String getPartInsertStatement(boolean fts5, String condition) {
+        return getInsertStatement(fts5, TABLE_PART, condition);
+    }
+
+    static String getPartDeleteStatement(boolean fts5, String condition) {
+        return getDeleteStatement(fts5, TABLE_PART, condition);
+    }
+
+    /**
+     * Creates the checkpoint table. The words table and its triggers have to be created with
+     * the conditions returned by {@link #getSmsIndexedCondition} and
+     * {@link #getPartIndexedCondition}.
+     */
+    static void createCheckpointTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_WORDS_REINDEX + " (" +
+                "table_to_use INTEGER PRIMARY KEY," +
+                "last_id INTEGER NOT NULL," +
+                "max_id INTEGER NOT NULL);");
+    }
+
+    /**
+     * Empties the words index and schedules the indexing of all the existing messages. Call
+     * {@link #resume} afterwards, once the transaction, if any, is committed.
+     */
+    static void startReindex(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            if (MmsSmsDatabaseHelper.isWordsFts5(db)) {
+                db.execSQL("INSERT INTO " + MmsProvider.TABLE_WORDS +
+                        " (" + MmsProvider.TABLE_WORDS + ") VALUES ('delete-all');");
+            } else {
+                db.delete(MmsProvider.TABLE_WORDS, null, null);
+            }
+            db.delete(TABLE_WORDS_REINDEX, null, null);
+            db.execSQL("INSERT INTO " + TABLE_WORDS_REINDEX + " (table_to_use, last_id, max_id)" +
+                    " SELECT " + TABLE_SMS + ", 0, MAX(_id) FROM sms HAVING MAX(_id) > 0;");
+            db.execSQL("INSERT INTO " + TABLE_WORDS_REINDEX + " (table_to_use, last_id, max_id)" +
+                    " SELECT " + TABLE_PART + ", 0, MAX(_id) FROM part HAVING MAX(_id) > 0;");
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Indexes the next batch of at most {@code batchSize} rows, in a transaction of its own.
+     *
+     * @return true if there are rows left to index
+     */
+    @VisibleForTesting
+    static boolean reindexBatch(SQLiteDatabase db, int batchSize) {
+        db.beginTransaction();
+        try {
+            boolean pending = reindexBatch(db, TABLE_SMS, batchSize)
+                    || reindexBatch(db, TABLE_PART, batchSize);
+            db.setTransactionSuccessful();
+            return pending;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static boolean reindexBatch(SQLiteDatabase db, int tableToUse, int batchSize) {
+        long lastId;
+        long maxId;
+        try (Cursor c = db.query(TABLE_WORDS_REINDEX, new String[] { "last_id", "max_id" },
+                "table_to_use = " + tableToUse, null, null, null, null)) {
+            if (!c.moveToFirst()) {
+                return false;
+            }
+            lastId = c.getLong(0);
+            maxId = c.getLong(1);
+        }
+
+        final String table = tableToUse == TABLE_SMS ? "sms" : MmsProvider.TABLE_PART;
+        long batchLastId;
+        try (SQLiteStatement statement = db.compileStatement(
+                "SELECT MAX(_id) FROM (SELECT _id FROM " + table +
+                " WHERE _id > ? AND _id <= ? ORDER BY _id LIMIT ?)")) {
+            statement.bindLong(1, lastId);
+            statement.bindLong(2, maxId);
+            statement.bindLong(3, batchSize);
+            batchLastId = statement.simpleQueryForLong();
+        }
+        if (batchLastId <= lastId) {
+            // Done with this table.
+            db.delete(TABLE_WORDS_REINDEX, "table_to_use = " + tableToUse, null);
+            return false;
+        }
+
+        final boolean fts5 = MmsSmsDatabaseHelper.isWordsFts5(db);
+        final String select = "SELECT " + getInsertValues(fts5, tableToUse, "") + (tableToUse
+                == TABLE_SMS ? " FROM sms WHERE" : " FROM part WHERE ct = 'text/plain' AND")
+                + " _id > ? AND _id <= ?";
+        try (SQLiteStatement statement = db.compileStatement("INSERT INTO " +
+                MmsProvider.TABLE_WORDS + " (" + getInsertColumns(fts5) + ") " + select)) {
+            statement.bindLong(1, lastId);
+            statement.bindLong(2, batchLastId);
+            statement.execute();
+        }
+        try (SQLiteStatement statement = db.compileStatement("UPDATE " + TABLE_WORDS_REINDEX +
+                " SET last_id = ? WHERE table_to_use = ?")) {
+            statement.bindLong(1, batchLastId);
+            statement.bindLong(2, tableToUse);
+            statement.execute();
+        }
+        return true;
+    }
+
+    /**
+     * Resumes the rebuild in progress, if any, on the rebuild thread. If it's already running,
+     * it looks for work again once it's done with the current one.
+     */
+    void resume() {
+        if (!mQueued.compareAndSet(false, true)) {
+            return;
+        }
+        mExecutor.execute(() -> {
+            mQueued.set(false);
+            try {
+                SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+                int batches = 0;
+                while (reindexBatch(db, BATCH_SIZE)) {
+                    batches++;
+                }
+                if (batches > 0) {
+                    Log.d(TAG, "resume: indexed " + batches + " batches");
+                }
+            } catch (RuntimeException e) {
+                // Typically the database can't be opened before the user unlocks; the rebuild
+                // is resumed when it's opened.
+                Log.e(TAG, "resume: failed", e);
+            }
+        });
+    }
+
+    /**
+     * Adds the progress of the rebuild to the given bundle: whether one is pending, and how
+     * many sms and parts are left to look at.
+     */
+    static void getProgress(SQLiteDatabase db, Bundle bundle) {
+        long remaining = 0;
+        boolean pending = false;
+        try (Cursor c = db.rawQuery("SELECT" +
+                " (SELECT COUNT(*) FROM sms WHERE _id > r.last_id AND _id <= r.max_id)" +
+                " FROM " + TABLE_WORDS_REINDEX + " r WHERE r.table_to_use = " + TABLE_SMS +
+                " UNION ALL SELECT" +
+                " (SELECT COUNT(*) FROM part WHERE _id > r.last_id AND _id <= r.max_id)" +
+                " FROM " + TABLE_WORDS_REINDEX + " r WHERE r.table_to_use = " + TABLE_PART,
+                null)) {
+            while (c.moveToNext()) {
+                pending = true;
+                remaining += c.getLong(0);
+            }
+        }
+        bundle.putBoolean(REINDEX_PENDING, pending);
+        bundle.putLong(REINDEX_REMAINING_COUNT, remaining);
+    }
+}
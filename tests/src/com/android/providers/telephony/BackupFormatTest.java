@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+@RunWith(JUnit4.class)
+public class BackupFormatTest {
+    @Test
+    public void testCompact_roundTrip() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (BackupFormat.Writer writer = BackupFormat.compact(out)) {
+            writer.beginArray();
+            for (int i = 0; i < 2; i++) {
+                writer.beginObject();
+                writer.name("address").value("+15555550100");
+                writer.name("date").value("1457123456789");
+                writer.name("charset").value(106);
+                writer.name("recipients").beginArray().value("a").value("b").endArray();
+                writer.name("archived").value(i == 0);
+                writer.endObject();
+            }
+            writer.endArray();
+        }
+
+        try (BackupFormat.Reader reader =
+                BackupFormat.compact(new ByteArrayInputStream(out.toByteArray()))) {
+            reader.beginArray();
+            for (int i = 0; i < 2; i++) {
+                assertTrue(reader.hasNext());
+                reader.beginObject();
+                assertEquals("address", reader.nextName());
+                assertEquals("+15555550100", reader.nextString());
+                assertEquals("date", reader.nextName());
+                assertEquals("1457123456789", reader.nextString());
+                assertEquals("charset", reader.nextName());
+                assertEquals(106, reader.nextInt());
+                assertEquals("recipients", reader.nextName());
+                reader.beginArray();
+                assertEquals("a", reader.nextString());
+                assertEquals("b", reader.nextString());
+                assertFalse(reader.hasNext());
+                reader.endArray();
+                assertEquals("archived", reader.nextName());
+                assertEquals(i == 0, reader.nextBoolean());
+                assertFalse(reader.hasNext());
+                reader.endObject();
+            }
+            assertFalse(reader.hasNext());
+            reader.endArray();
+        }
+    }
+
+    @Test
+    public void testCompact_numericStringsReadBackUnchanged() throws IOException {
+        String[] values = { "0", "-1", "007", "-0", "1.5", "9223372036854775807",
+                "9223372036854775808", "-9223372036854775808", "", "12a" };
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (BackupFormat.Writer writer = BackupFormat.compact(out)) {
+            writer.beginArray();
+            for (String value : values) {
+                writer.value(value);
+            }
+            writer.endArray();
+        }
+
+        try (BackupFormat.Reader reader =
+                BackupFormat.compact(new ByteArrayInputStream(out.toByteArray()))) {
+            reader.beginArray();
+            for (String value : values) {
+                assertEquals(value, reader.nextString());
+            }
+            reader.endArray();
+        }
+    }
+
+    @Test
+    public void testCompact_skipValueKeepsNames() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (BackupFormat.Writer writer = BackupFormat.compact(out)) {
+            writer.beginObject();
+            writer.name("unknown").beginArray();
+            writer.beginObject().name("type").value(137).endObject();
+            writer.endArray();
+            writer.name("type").value(151);
+            writer.endObject();
+        }
+
+        try (BackupFormat.Reader reader =
+                BackupFormat.compact(new ByteArrayInputStream(out.toByteArray()))) {
+            reader.beginObject();
+            assertEquals("unknown", reader.nextName());
+            reader.skipValue();
+            // Defined inside the skipped value, referred to by index here.
+            assertEquals("type", reader.nextName());
+            assertEquals(151, reader.nextInt());
+            reader.endObject();
+        }
+    }
+
+    @Test
+    public void testCompact_rejectsUnknownVersion() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (BackupFormat.Writer writer = BackupFormat.compact(out)) {
+            writer.beginArray().endArray();
+        }
+        byte[] bytes = out.toByteArray();
+        // The version follows the 4 bytes of the magic number.
+        bytes[4] = (byte) (BackupFormat.COMPACT_VERSION + 1);
+
+        try {
+            BackupFormat.compact(new ByteArrayInputStream(bytes));
+            fail("Read an unknown version");
+        } catch (IOException expected) {
+        }
+        try {
+            BackupFormat.compact(new ByteArrayInputStream("[]".getBytes()));
+            fail("Read JSON as the compact format");
+        } catch (IOException expected) {
+        }
+    }
+}
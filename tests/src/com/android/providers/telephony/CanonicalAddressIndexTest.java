@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class CanonicalAddressIndexTest {
+    private static final int MIN_MATCH = 7;
+
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE canonical_addresses ("
+                + "_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + "address TEXT,"
+                + "sub_id INTEGER DEFAULT -1);");
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+    }
+
+    @Test
+    public void testGetKey_phoneNumberUsesMinMatchTail() {
+        CanonicalAddressIndex index = new CanonicalAddressIndex(MIN_MATCH);
+        assertEquals(index.getKey("+1 (650) 555-1234"), index.getKey("6505551234"));
+        assertEquals(index.getKey("555-1234"), index.getKey("16505551234"));
+        assertNotEquals(index.getKey("5551234"), index.getKey("5551235"));
+    }
+
+    @Test
+    public void testGetKey_nonPhoneNumberUsesExactAddress() {
+        CanonicalAddressIndex index = new CanonicalAddressIndex(MIN_MATCH);
+        assertEquals("foo@example.com", index.getKey("foo@example.com"));
+        assertNotEquals(index.getKey("My Vodafone"), index.getKey("my vodafone"));
+        assertNull(index.getKey(null));
+    }
+
+    @Test
+    public void testGetCandidates() {
+        long id1 = insertAddress("+16505551234");
+        long id2 = insertAddress("6505551234");
+        long id3 = insertAddress("foo@example.com");
+        insertAddress("6505550000");
+
+        CanonicalAddressIndex index = new CanonicalAddressIndex(MIN_MATCH);
+        assertArrayEquals(new long[] { id1, id2 }, index.getCandidates(mDb, "650-555-1234"));
+        assertArrayEquals(new long[] { id3 }, index.getCandidates(mDb, "foo@example.com"));
+        assertEquals(0, index.getCandidates(mDb, "6505559999").length);
+        assertTrue(index.isExactMatch(id3, "foo@example.com"));
+        assertFalse(index.isExactMatch(id1, "6505551234"));
+    }
+
+    @Test
+    public void testGetCandidates_phoneNumberFindsNonPhoneNumberAddress() {
+        // Not a phone number for Mms.isPhoneNumber, but PHONE_NUMBERS_EQUAL to 6505551234.
+        long id = insertAddress("650/555-1234");
+
+        CanonicalAddressIndex index = new CanonicalAddressIndex(MIN_MATCH);
+        assertArrayEquals(new long[] { id }, index.getCandidates(mDb, "6505551234"));
+        assertArrayEquals(new long[] { id }, index.getCandidates(mDb, "650/555-1234"));
+        assertEquals(0, index.getCandidates(mDb, "650/555-0000").length);
+
+        long addedId = insertAddress("650/555-0000");
+        index.add(addedId, "650/555-0000");
+        assertArrayEquals(new long[] { addedId }, index.getCandidates(mDb, "6505550000"));
+    }
+
+    @Test
+    public void testAddAndInvalidate() {
+        CanonicalAddressIndex index = CanonicalAddressIndex.getInstance(mDb, MIN_MATCH);
+        assertEquals(0, index.getCandidates(mDb, "6505551234").length);
+
+        long id = insertAddress("6505551234");
+        index.add(id, "6505551234");
+        assertArrayEquals(new long[] { id }, index.getCandidates(mDb, "6505551234"));
+
+        mDb.delete("canonical_addresses", null, null);
+        CanonicalAddressIndex.invalidate(mDb);
+        assertEquals(0, index.getCandidates(mDb, "6505551234").length);
+    }
+
+    private long insertAddress(String address) {
+        ContentValues values = new ContentValues();
+        values.put("address", address);
+        return mDb.insert("canonical_addresses", null, values);
+    }
+}
@@ -30,7 +30,10 @@ import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.content.res.Resources;
 import android.database.ContentObserver;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Bundle;
 import android.provider.Telephony;
 import android.telephony.TelephonyManager;
 import android.test.mock.MockContentResolver;
@@ -40,6 +43,9 @@ import junit.framework.TestCase;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 public class MmsProviderTest extends TestCase {
     private static final String TAG = "MmsProviderTest";
 
@@ -136,6 +142,60 @@ public class MmsProviderTest extends TestCase {
         assertEquals(0, notifyChangeCount);
     }
 
+    @Test
+    public void testBulkInsert() {
+        Bundle extras = new Bundle();
+        extras.putParcelableArrayList(MmsProvider.MESSAGES_KEY, new ArrayList<>(Arrays.asList(
+                getTestMessage("text 1"), getTestMessage("text 2"))));
+
+        Bundle result = mContentResolver.call(Telephony.Mms.CONTENT_URI,
+                MmsProvider.METHOD_BULK_INSERT, null, extras);
+
+        assertTrue(Arrays.equals(new long[] {1, 2},
+                result.getLongArray(MmsProvider.MMS_IDS_KEY)));
+        SQLiteDatabase db = mMmsProviderTestable.mOpenHelper.getReadableDatabase();
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, MmsProvider.TABLE_PART,
+                Telephony.Mms.Part.MSG_ID + "=2 AND " + Telephony.Mms.Part.TEXT + "='text 2'"));
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, MmsProvider.TABLE_ADDR,
+                Telephony.Mms.Addr.MSG_ID + "=2"));
+    }
+
+    @Test
+    public void testBulkInsertIsAtomic() {
+        Bundle invalidMessage = getTestMessage("text 2");
+        // Text parts can't have a file.
+        invalidMessage.getParcelableArrayList(MmsProvider.PARTS_KEY, ContentValues.class).get(0)
+                .put(Telephony.Mms.Part._DATA, "/data/part");
+        Bundle extras = new Bundle();
+        extras.putParcelableArrayList(MmsProvider.MESSAGES_KEY, new ArrayList<>(Arrays.asList(
+                getTestMessage("text 1"), invalidMessage)));
+
+        assertNull(mContentResolver.call(Telephony.Mms.CONTENT_URI,
+                MmsProvider.METHOD_BULK_INSERT, null, extras));
+
+        SQLiteDatabase db = mMmsProviderTestable.mOpenHelper.getReadableDatabase();
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, MmsProvider.TABLE_PDU));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, MmsProvider.TABLE_PART));
+    }
+
+    private Bundle getTestMessage(String text) {
+        ContentValues part = new ContentValues();
+        part.put(Telephony.Mms.Part.CONTENT_TYPE, "text/plain");
+        part.put(Telephony.Mms.Part.TEXT, text);
+        ContentValues addr = new ContentValues();
+        addr.put(Telephony.Mms.Addr.TYPE, 137);
+        addr.put(Telephony.Mms.Addr.ADDRESS, "+15555550100");
+        addr.put(Telephony.Mms.Addr.CHARSET, 106);
+
+        Bundle message = new Bundle();
+        message.putParcelable(MmsProvider.PDU_KEY, getTestContentValues());
+        message.putParcelableArrayList(MmsProvider.PARTS_KEY,
+                new ArrayList<>(Arrays.asList(part)));
+        message.putParcelableArrayList(MmsProvider.ADDRS_KEY,
+                new ArrayList<>(Arrays.asList(addr)));
+        return message;
+    }
+
     private ContentValues getTestContentValues() {
         final ContentValues values = new ContentValues();
         values.put(Telephony.Mms.READ, 1);
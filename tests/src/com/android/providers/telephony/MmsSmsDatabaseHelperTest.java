@@ -16,15 +16,19 @@
 
 package com.android.providers.telephony;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.spy;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Bundle;
 import android.provider.BaseColumns;
 import android.provider.Telephony;
 import android.provider.Telephony.Mms;
@@ -44,13 +48,16 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 
 @RunWith(JUnit4.class)
 public class MmsSmsDatabaseHelperTest {
     private static final String TAG = MmsSmsDatabaseHelperTest.class.getSimpleName();
     // 40 is the first upgrade trigger in onUpgrade
-    private static final int BASE_DATABASE_VERSION = 40;
+    static final int BASE_DATABASE_VERSION = 40;
 
     private Context mContext;
     private MmsSmsDatabaseHelper mMmsSmsDatabaseHelper;
@@ -159,6 +166,299 @@ public class MmsSmsDatabaseHelperTest {
         }
     }
 
+    @Test
+    public void testUpdateThreads_onlyTouchedThreads() {
+        SQLiteDatabase db = mInMemoryDbHelper.getWritableDatabase();
+        mMmsSmsDatabaseHelper.onUpgrade(db, BASE_DATABASE_VERSION,
+                MmsSmsDatabaseHelper.DATABASE_VERSION);
+        long touchedThreadId = insertThread(db, "1");
+        long emptyThreadId = insertThread(db, "2");
+        long keptThreadId = insertThread(db, "3");
+        ContentValues values = new ContentValues();
+        values.put(Telephony.Sms.THREAD_ID, keptThreadId);
+        values.put(Telephony.Sms.BODY, "kept");
+        db.insert("sms", null, values);
+
+        MmsSmsDatabaseHelper.updateThreads(db,
+                new HashSet<>(Arrays.asList(touchedThreadId, keptThreadId)));
+
+        // The empty thread that was touched is deleted, the other one is left alone.
+        assertFalse(threadExists(db, touchedThreadId));
+        assertTrue(threadExists(db, emptyThreadId));
+        assertTrue(threadExists(db, keptThreadId));
+    }
+
+    @Test
+    public void testUpdateThreads_removesUnreferencedCanonicalAddresses() {
+        SQLiteDatabase db = mInMemoryDbHelper.getWritableDatabase();
+        mMmsSmsDatabaseHelper.onUpgrade(db, BASE_DATABASE_VERSION,
+                MmsSmsDatabaseHelper.DATABASE_VERSION);
+        final long largeId = 3000000000L;
+        insertCanonicalAddress(db, 1, "+16505551234");
+        insertCanonicalAddress(db, 2, "+16505550000");
+        insertCanonicalAddress(db, largeId, "foo@example.com");
+        long deletedThreadId = insertThread(db, "2");
+        long keptThreadId = insertThread(db, "1 " + largeId);
+        ContentValues values = new ContentValues();
+        values.put(Telephony.Sms.THREAD_ID, keptThreadId);
+        values.put(Telephony.Sms.BODY, "kept");
+        db.insert("sms", null, values);
+
+        MmsSmsDatabaseHelper.updateThreads(db, new HashSet<>(Arrays.asList(deletedThreadId)));
+
+        assertFalse(threadExists(db, deletedThreadId));
+        try (Cursor cursor = db.query(MmsSmsProvider.TABLE_CANONICAL_ADDRESSES,
+                new String[] { BaseColumns._ID }, null, null, null, null, BaseColumns._ID)) {
+            assertEquals(2, cursor.getCount());
+            cursor.moveToNext();
+            assertEquals(1, cursor.getLong(0));
+            cursor.moveToNext();
+            assertEquals(largeId, cursor.getLong(0));
+        }
+    }
+
+    @Test
+    public void testThreadRecipients_populatedOnUpgradeAndKeptInSync() {
+        SQLiteDatabase db = mInMemoryDbHelper.getWritableDatabase();
+        long existingThreadId = insertThread(db, "1 2");
+        mMmsSmsDatabaseHelper.onUpgrade(db, BASE_DATABASE_VERSION,
+                MmsSmsDatabaseHelper.DATABASE_VERSION);
+        assertEquals("1 2", getThreadRecipients(db, existingThreadId));
+
+        long threadId = insertThread(db, "3 3000000000");
+        assertEquals("3 3000000000", getThreadRecipients(db, threadId));
+
+        ContentValues values = new ContentValues();
+        values.put(Threads.RECIPIENT_IDS, "4");
+        db.update(MmsSmsProvider.TABLE_THREADS, values, BaseColumns._ID + "=" + threadId, null);
+        assertEquals("4", getThreadRecipients(db, threadId));
+
+        db.delete(MmsSmsProvider.TABLE_THREADS, BaseColumns._ID + "=" + threadId, null);
+        assertEquals("", getThreadRecipients(db, threadId));
+
+        // The numbers of a malformed list are still found.
+        long malformedThreadId = insertThread(db, "5  x 006");
+        assertEquals("5 6", getThreadRecipients(db, malformedThreadId));
+    }
+
+    @Test
+    public void testThreadRecipients_keptInSyncAfterThreadsTableUpgrade() {
+        SQLiteDatabase db = mInMemoryDbHelper.getWritableDatabase();
+        mMmsSmsDatabaseHelper.onUpgrade(db, BASE_DATABASE_VERSION,
+                MmsSmsDatabaseHelper.DATABASE_VERSION);
+        long existingThreadId = insertThread(db, "1 2");
+        // Dropping the threads table drops the thread_recipients triggers.
+        mMmsSmsDatabaseHelper.upgradeThreadsTableToAutoIncrement(db);
+
+        assertEquals("1 2", getThreadRecipients(db, existingThreadId));
+        long threadId = insertThread(db, "3");
+        assertEquals("3", getThreadRecipients(db, threadId));
+        db.delete(MmsSmsProvider.TABLE_THREADS, BaseColumns._ID + "=" + existingThreadId, null);
+        assertEquals("", getThreadRecipients(db, existingThreadId));
+    }
+
+    @Test
+    public void testUpdateThreads_keepsCanonicalAddressesOfMalformedThreads() {
+        SQLiteDatabase db = mInMemoryDbHelper.getWritableDatabase();
+        mMmsSmsDatabaseHelper.onUpgrade(db, BASE_DATABASE_VERSION,
+                MmsSmsDatabaseHelper.DATABASE_VERSION);
+        for (long id = 1; id <= 5; id++) {
+            insertCanonicalAddress(db, id, "+1650555000" + id);
+        }
+        long deletedThreadId = insertThread(db, "5");
+        insertThread(db, " 1  x 002 ");
+        // Not valid JSON once turned into an array, so only the cleanup sees this one.
+        insertThread(db, "3 4\n");
+
+        MmsSmsDatabaseHelper.updateThreads(db, new HashSet<>(Arrays.asList(deletedThreadId)));
+
+        // Like Integer.parseInt() on each space-separated token, "4\n" isn't an id.
+        List<Long> ids = new ArrayList<>();
+        try (Cursor cursor = db.query(MmsSmsProvider.TABLE_CANONICAL_ADDRESSES,
+                new String[] { BaseColumns._ID }, null, null, null, null, BaseColumns._ID)) {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+        }
+        assertEquals(Arrays.asList(1L, 2L, 3L), ids);
+    }
+
+    @Test
+    public void testWords_keptInSyncBySmsAndPartTriggers() {
+        SQLiteDatabase db = mInMemoryDbHelper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(Telephony.Sms.BODY, "indexed before the upgrade");
+        long smsId = db.insert("sms", null, values);
+        mMmsSmsDatabaseHelper.onUpgrade(db, BASE_DATABASE_VERSION,
+                MmsSmsDatabaseHelper.DATABASE_VERSION);
+        // The existing messages are indexed by WordsIndexRebuilder, in batches.
+        assertTrue(searchWords(db, "\"upgr\"*").isEmpty());
+        while (WordsIndexRebuilder.reindexBatch(db, WordsIndexRebuilder.BATCH_SIZE)) {
+        }
+        assertEquals(Arrays.asList(smsId), searchWords(db, "\"upgr\"*"));
+
+        values.clear();
+        values.put(Part.CONTENT_TYPE, "text/plain");
+        values.put(Part.TEXT, "hello from mms");
+        long partId = db.insert(MmsProvider.TABLE_PART, null, values);
+        values.clear();
+        values.put(Part.CONTENT_TYPE, "application/smil");
+        values.put(Part.TEXT, "<smil>hello</smil>");
+        db.insert(MmsProvider.TABLE_PART, null, values);
+        assertEquals(Arrays.asList(MmsSmsDatabaseHelper.MMS_WORDS_ID_OFFSET + partId),
+                searchWords(db, "hello"));
+
+        values.clear();
+        values.put(Telephony.Sms.BODY, "hello again");
+        db.update("sms", values, BaseColumns._ID + "=" + smsId, null);
+        assertEquals(Arrays.asList(smsId, MmsSmsDatabaseHelper.MMS_WORDS_ID_OFFSET + partId),
+                searchWords(db, "hello"));
+        assertTrue(searchWords(db, "upgrade").isEmpty());
+
+        db.delete(MmsProvider.TABLE_PART, BaseColumns._ID + "=" + partId, null);
+        db.delete("sms", BaseColumns._ID + "=" + smsId, null);
+        assertTrue(searchWords(db, "hello").isEmpty());
+    }
+
+    @Test
+    public void testWords_reindexResumedWhenOpenedAfterUpgrade() {
+        SQLiteDatabase db = mInMemoryDbHelper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(Telephony.Sms.BODY, "indexed after the upgrade");
+        long smsId = db.insert("sms", null, values);
+        mMmsSmsDatabaseHelper.mWordsIndexRebuilder =
+                new WordsIndexRebuilder(mInMemoryDbHelper, Runnable::run);
+
+        // Like the first open after the user unlocks, which upgrades then opens the database.
+        mMmsSmsDatabaseHelper.onUpgrade(db, BASE_DATABASE_VERSION,
+                MmsSmsDatabaseHelper.DATABASE_VERSION);
+        assertTrue(searchWords(db, "\"upgr\"*").isEmpty());
+        mMmsSmsDatabaseHelper.onOpen(db);
+
+        assertEquals(Arrays.asList(smsId), searchWords(db, "\"upgr\"*"));
+        Bundle progress = new Bundle();
+        WordsIndexRebuilder.getProgress(db, progress);
+        assertFalse(progress.getBoolean(WordsIndexRebuilder.REINDEX_PENDING));
+    }
+
+    @Test
+    public void testWords_reindexInBatchesWithConcurrentChanges() {
+        SQLiteDatabase db = mInMemoryDbHelper.getWritableDatabase();
+        mMmsSmsDatabaseHelper.onUpgrade(db, BASE_DATABASE_VERSION,
+                MmsSmsDatabaseHelper.DATABASE_VERSION);
+        List<Long> smsIds = new ArrayList<>();
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < 10; i++) {
+            values.put(Telephony.Sms.BODY, "message " + i);
+            smsIds.add(db.insert("sms", null, values));
+        }
+        values.clear();
+        values.put(Part.CONTENT_TYPE, "text/plain");
+        values.put(Part.TEXT, "message from mms");
+        long partId = db.insert(MmsProvider.TABLE_PART, null, values);
+
+        WordsIndexRebuilder.startReindex(db);
+        Bundle progress = new Bundle();
+        WordsIndexRebuilder.getProgress(db, progress);
+        assertTrue(progress.getBoolean(WordsIndexRebuilder.REINDEX_PENDING));
+        assertEquals(11, progress.getLong(WordsIndexRebuilder.REINDEX_REMAINING_COUNT));
+        assertTrue(searchWords(db, "message").isEmpty());
+
+        assertTrue(WordsIndexRebuilder.reindexBatch(db, 4));
+        assertEquals(smsIds.subList(0, 4), searchWords(db, "message"));
+
+        // Change rows on both sides of the checkpoint, then add a new one.
+        values.clear();
+        values.put(Telephony.Sms.BODY, "changed");
+        db.update("sms", values, BaseColumns._ID + " IN (" + smsIds.get(1) + ","
+                + smsIds.get(8) + ")", null);
+        db.delete("sms", BaseColumns._ID + " IN (" + smsIds.get(2) + "," + smsIds.get(9) + ")",
+                null);
+        values.clear();
+        values.put(Part.TEXT, "changed mms");
+        db.update(MmsProvider.TABLE_PART, values, BaseColumns._ID + "=" + partId, null);
+        values.clear();
+        values.put(Telephony.Sms.BODY, "new message");
+        long newSmsId = db.insert("sms", null, values);
+
+        while (WordsIndexRebuilder.reindexBatch(db, 4)) {
+        }
+        WordsIndexRebuilder.getProgress(db, progress);
+        assertFalse(progress.getBoolean(WordsIndexRebuilder.REINDEX_PENDING));
+        assertEquals(0, progress.getLong(WordsIndexRebuilder.REINDEX_REMAINING_COUNT));
+
+        db.execSQL("INSERT INTO words (words, rank) VALUES ('integrity-check', 1)");
+        assertEquals(Arrays.asList(smsIds.get(0), smsIds.get(3), smsIds.get(4), smsIds.get(5),
+                smsIds.get(6), smsIds.get(7), newSmsId), searchWords(db, "message"));
+        assertEquals(Arrays.asList(smsIds.get(1), smsIds.get(8),
+                MmsSmsDatabaseHelper.MMS_WORDS_ID_OFFSET + partId), searchWords(db, "changed"));
+    }
+
+    @Test
+    public void testWords_keptInSyncAfterPartTableUpgrade() {
+        SQLiteDatabase db = mInMemoryDbHelper.getWritableDatabase();
+        mMmsSmsDatabaseHelper.onUpgrade(db, BASE_DATABASE_VERSION,
+                MmsSmsDatabaseHelper.DATABASE_VERSION);
+        // Dropping the part table drops its words triggers, which have to be recreated.
+        mMmsSmsDatabaseHelper.upgradePartTableToAutoIncrement(db);
+
+        ContentValues values = new ContentValues();
+        values.put(Part.CONTENT_TYPE, "text/plain");
+        values.put(Part.TEXT, "hello from mms");
+        long partId = db.insert(MmsProvider.TABLE_PART, null, values);
+        assertEquals(Arrays.asList(MmsSmsDatabaseHelper.MMS_WORDS_ID_OFFSET + partId),
+                searchWords(db, "hello"));
+
+        db.delete(MmsProvider.TABLE_PART, BaseColumns._ID + "=" + partId, null);
+        assertTrue(searchWords(db, "hello").isEmpty());
+    }
+
+    private static List<Long> searchWords(SQLiteDatabase db, String query) {
+        List<Long> ids = new ArrayList<>();
+        try (Cursor cursor = db.rawQuery("SELECT rowid FROM words WHERE index_text MATCH ?"
+                + " ORDER BY rowid", new String[] { query })) {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+        }
+        return ids;
+    }
+
+    private static String getThreadRecipients(SQLiteDatabase db, long threadId) {
+        StringBuilder sb = new StringBuilder();
+        try (Cursor cursor = db.query(MmsSmsProvider.TABLE_THREAD_RECIPIENTS,
+                new String[] { "address_id" }, "thread_id=" + threadId, null, null, null,
+                "address_id")) {
+            while (cursor.moveToNext()) {
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+                sb.append(cursor.getLong(0));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void insertCanonicalAddress(SQLiteDatabase db, long id, String address) {
+        ContentValues values = new ContentValues();
+        values.put(BaseColumns._ID, id);
+        values.put(Telephony.CanonicalAddressesColumns.ADDRESS, address);
+        db.insert(MmsSmsProvider.TABLE_CANONICAL_ADDRESSES, null, values);
+    }
+
+    private static long insertThread(SQLiteDatabase db, String recipientIds) {
+        ContentValues values = new ContentValues();
+        values.put(Threads.RECIPIENT_IDS, recipientIds);
+        return db.insert(MmsSmsProvider.TABLE_THREADS, null, values);
+    }
+
+    private static boolean threadExists(SQLiteDatabase db, long threadId) {
+        try (Cursor cursor = db.query(MmsSmsProvider.TABLE_THREADS, null,
+                BaseColumns._ID + "=" + threadId, null, null, null, null)) {
+            return cursor.getCount() > 0;
+        }
+    }
+
     /**
      * Helper for an in-memory DB used to test MmsSmsDatabaseHelper
      *
@@ -166,7 +466,7 @@ public class MmsSmsDatabaseHelperTest {
      * {@link MmsSmsDatabaseHelper#onUpgrade(SQLiteDatabase, int, int)} to test onUpgrade() actual
      * function without using the actual mmssms.db file.
      */
-    private static class InMemoryMmsSmsDatabaseHelper extends SQLiteOpenHelper {
+    static class InMemoryMmsSmsDatabaseHelper extends SQLiteOpenHelper {
         public InMemoryMmsSmsDatabaseHelper() {
             super(null,     // no context is needed for in-memory db
                     null,    // db file name is null for in-memory db
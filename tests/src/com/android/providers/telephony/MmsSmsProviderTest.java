@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.pm.ProviderInfo;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.provider.Telephony.Sms;
+import android.test.mock.MockContentResolver;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+@RunWith(JUnit4.class)
+public class MmsSmsProviderTest {
+    private MmsSmsProviderTestable mMmsSmsProviderTestable;
+
+    @Before
+    public void setUp() {
+        Context context = spy(ApplicationProvider.getApplicationContext());
+        doReturn(false).when(context).isCredentialProtectedStorage();
+        MockContentResolver contentResolver = new MockContentResolver() {
+            @Override
+            public void notifyChange(Uri uri, ContentObserver observer, boolean syncToNetwork,
+                    int userHandle) {
+            }
+        };
+        doReturn(contentResolver).when(context).getContentResolver();
+
+        mMmsSmsProviderTestable = new MmsSmsProviderTestable();
+        ProviderInfo providerInfo = new ProviderInfo();
+        providerInfo.authority = "mms-sms";
+        mMmsSmsProviderTestable.attachInfoForTesting(context, providerInfo);
+    }
+
+    @After
+    public void tearDown() {
+        mMmsSmsProviderTestable.closeDatabase();
+    }
+
+    @Test
+    public void testToPrefixMatchQuery() {
+        assertEquals("\"hel\"*", MmsSmsProvider.toPrefixMatchQuery("hel", true));
+        assertEquals("\"hello\" \"wor\"*",
+                MmsSmsProvider.toPrefixMatchQuery("  hello   wor ", true));
+        // Punctuation and quotes aren't taken for query syntax.
+        assertEquals("\"foo-bar\" \"a\"\"b\"*",
+                MmsSmsProvider.toPrefixMatchQuery("foo-bar a\"b", true));
+        assertEquals("\"\"*", MmsSmsProvider.toPrefixMatchQuery(null, true));
+        assertEquals("\"\"*", MmsSmsProvider.toPrefixMatchQuery(" ", true));
+    }
+
+    @Test
+    public void testToPrefixMatchQuery_fts4() {
+        assertEquals("\"hel*\"", MmsSmsProvider.toPrefixMatchQuery("hel", false));
+        assertEquals("\"hello\" \"wor*\"",
+                MmsSmsProvider.toPrefixMatchQuery("  hello   wor ", false));
+        assertEquals("\"\"", MmsSmsProvider.toPrefixMatchQuery(null, false));
+    }
+
+    @Test
+    public void testGetThreadId_concurrentLookupsCreateOneThreadPerRecipientSet()
+            throws Exception {
+        final List<List<String>> recipientSets = Arrays.asList(
+                Arrays.asList("a@example.com"),
+                Arrays.asList("b@example.com", "c@example.com"),
+                // The same recipients in another order map to the same thread.
+                Arrays.asList("c@example.com", "b@example.com"));
+        final int lookupsPerSet = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(6);
+        try {
+            List<Future<Long>> futures = new ArrayList<>();
+            for (int i = 0; i < lookupsPerSet; i++) {
+                for (List<String> recipients : recipientSets) {
+                    futures.add(executor.submit(() -> getThreadId(recipients)));
+                }
+            }
+            List<HashSet<Long>> threadIds = new ArrayList<>();
+            for (int i = 0; i < recipientSets.size(); i++) {
+                threadIds.add(new HashSet<>());
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                threadIds.get(i % recipientSets.size()).add(futures.get(i).get());
+            }
+
+            for (HashSet<Long> ids : threadIds) {
+                assertEquals(1, ids.size());
+            }
+            assertEquals(threadIds.get(1), threadIds.get(2));
+            assertNotEquals(threadIds.get(0), threadIds.get(1));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        SQLiteDatabase db = mMmsSmsProviderTestable.mOpenHelper.getReadableDatabase();
+        assertEquals(2, DatabaseUtils.queryNumEntries(db, MmsSmsProvider.TABLE_THREADS));
+    }
+
+    @Test
+    public void testGetThreadId_recreatesDeletedThread() {
+        final List<String> recipients = Arrays.asList("d@example.com");
+        final long threadId = getThreadId(recipients);
+        assertEquals(threadId, getThreadId(recipients));
+
+        // The thread is deleted once it has no messages left.
+        SQLiteDatabase db = getDatabase();
+        MmsSmsDatabaseHelper.updateThread(db, threadId);
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, MmsSmsProvider.TABLE_THREADS));
+
+        // Looking it up again doesn't return the deleted thread.
+        final long newThreadId = getThreadId(recipients);
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, MmsSmsProvider.TABLE_THREADS,
+                "_id=" + newThreadId));
+    }
+
+    private long getThreadId(List<String> recipients) {
+        try (Cursor cursor = mMmsSmsProviderTestable.getThreadId(recipients)) {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        }
+    }
+
+    @Test
+    public void testSearchMessages_pagesThroughThreads() {
+        insertSearchableMessages();
+
+        assertEquals(Arrays.asList(1L, 2L, 3L, 5L), searchThreadIds("pattern=pizza"));
+        assertEquals(Arrays.asList(1L, 2L), searchThreadIds("pattern=pizza&limit=2"));
+        assertEquals(Arrays.asList(3L, 5L), searchThreadIds("pattern=pizza&limit=2&offset=2"));
+        assertEquals(Collections.emptyList(), searchThreadIds("pattern=pizza&limit=2&offset=4"));
+        // Malformed paging parameters are ignored.
+        assertEquals(Arrays.asList(1L, 2L, 3L, 5L),
+                searchThreadIds("pattern=pizza&limit=two&offset=-1"));
+    }
+
+    @Test
+    public void testSearchMessages_ordersByRelevance() {
+        insertSearchableMessages();
+
+        // FTS5 ranks the repeated and the short matches first, and ties by date. FTS4 has no
+        // bm25, so it only orders by date.
+        final List<Long> expected = MmsSmsDatabaseHelper.isWordsFts5(getDatabase())
+                ? Arrays.asList(1L, 5L, 3L, 2L)
+                : Arrays.asList(2L, 5L, 3L, 1L);
+        assertEquals(expected, searchThreadIds("pattern=pizza&order=relevance"));
+        assertEquals(expected.subList(1, 3),
+                searchThreadIds("pattern=pizza&order=relevance&limit=2&offset=1"));
+    }
+
+    private SQLiteDatabase getDatabase() {
+        return mMmsSmsProviderTestable.mOpenHelper.getWritableDatabase();
+    }
+
+    private void insertSearchableMessages() {
+        insertSms(1, "pizza pizza pizza", 1000);
+        insertSms(2, "lunch at noon then pizza with everyone from the office", 3000);
+        insertSms(3, "pizza tonight", 2000);
+        insertSms(4, "no match here", 4000);
+        insertSms(5, "pizza later", 2500);
+    }
+
+    private void insertSms(long threadId, String body, long date) {
+        ContentValues values = new ContentValues();
+        values.put(Sms.THREAD_ID, threadId);
+        values.put(Sms.ADDRESS, "a@example.com");
+        values.put(Sms.BODY, body);
+        values.put(Sms.DATE, date);
+        values.put(Sms.TYPE, Sms.MESSAGE_TYPE_INBOX);
+        getDatabase().insert(SmsProvider.TABLE_SMS, null, values);
+    }
+
+    private List<Long> searchThreadIds(String query) {
+        Uri uri = Uri.parse("content://mms-sms/search?" + query);
+        List<Long> threadIds = new ArrayList<>();
+        try (Cursor cursor = MmsSmsProvider.searchMessages(getDatabase(), uri,
+                SmsProvider.TABLE_SMS, MmsProvider.TABLE_PDU)) {
+            while (cursor.moveToNext()) {
+                threadIds.add(cursor.getLong(cursor.getColumnIndexOrThrow(Sms.THREAD_ID)));
+            }
+        }
+        return threadIds;
+    }
+}
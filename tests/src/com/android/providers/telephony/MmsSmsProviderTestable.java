@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.providers.telephony;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * A subclass of MmsSmsProvider used for testing on an in-memory database
+ */
+public class MmsSmsProviderTestable extends MmsSmsProvider {
+    private static final String TAG = "MmsSmsProviderTestable";
+
+    @Override
+    public boolean onCreate() {
+        Log.d(TAG, "onCreate called: mOpenHelper = new InMemoryMmsSmsDatabaseHelper()");
+        final Context context = getContext();
+        mOpenHelper = new MmsSmsDatabaseHelperTest.InMemoryMmsSmsDatabaseHelper() {
+            @Override
+            public void onCreate(SQLiteDatabase db) {
+                super.onCreate(db);
+                // Bring the initial tables up to the current schema
+                new MmsSmsDatabaseHelper(context, null).onUpgrade(db,
+                        MmsSmsDatabaseHelperTest.BASE_DATABASE_VERSION,
+                        MmsSmsDatabaseHelper.DATABASE_VERSION);
+            }
+        };
+        return true;
+    }
+
+    // close mOpenHelper database object
+    protected void closeDatabase() {
+        mOpenHelper.close();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.HandlerThread;
+import android.os.UserHandle;
+import android.provider.Telephony.MmsSms;
+import android.provider.Telephony.Sms;
+import android.test.mock.MockContentResolver;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class NotificationCoalescerTest {
+    // Long enough for the flush to never happen on its own during a test.
+    private static final long WINDOW_MS = 60 * 60 * 1000;
+
+    private final List<Uri> mNotifiedUris = new ArrayList<>();
+    private Context mContext;
+    private HandlerThread mThread;
+
+    @Before
+    public void setUp() {
+        mContext = spy(ApplicationProvider.getApplicationContext());
+        MockContentResolver resolver = new MockContentResolver() {
+            @Override
+            public void notifyChange(Uri uri, ContentObserver observer, boolean syncToNetwork,
+                    int userHandle) {
+                mNotifiedUris.add(uri);
+            }
+        };
+        doReturn(resolver).when(mContext).getContentResolver();
+        mThread = new HandlerThread("NotificationCoalescerTest");
+        mThread.start();
+    }
+
+    @After
+    public void tearDown() {
+        mThread.quit();
+    }
+
+    @Test
+    public void testNotifyChange_coalescedUntilFlush() {
+        NotificationCoalescer coalescer =
+                new NotificationCoalescer(mContext, mThread.getLooper(), WINDOW_MS);
+        Uri sms1 = Uri.withAppendedPath(Sms.CONTENT_URI, "1");
+        for (int i = 0; i < 3; i++) {
+            coalescer.notifyChange(sms1);
+            coalescer.notifyChange(MmsSms.CONTENT_URI);
+        }
+        assertTrue(mNotifiedUris.isEmpty());
+
+        coalescer.flush();
+        assertEquals(Arrays.asList(sms1, MmsSms.CONTENT_URI), mNotifiedUris);
+
+        mNotifiedUris.clear();
+        coalescer.flush();
+        assertTrue(mNotifiedUris.isEmpty());
+    }
+
+    @Test
+    public void testNotifyChange_mergedIntoAuthorityRoot() {
+        NotificationCoalescer coalescer =
+                new NotificationCoalescer(mContext, mThread.getLooper(), WINDOW_MS);
+        for (int i = 0; i <= NotificationCoalescer.MAX_URIS_PER_AUTHORITY; i++) {
+            coalescer.notifyChange(Uri.withAppendedPath(Sms.CONTENT_URI, String.valueOf(i)));
+        }
+        coalescer.notifyChange(Uri.withAppendedPath(Sms.CONTENT_URI, "100"));
+        coalescer.flush();
+        assertEquals(Arrays.asList(Sms.CONTENT_URI), mNotifiedUris);
+    }
+
+    @Test
+    public void testNotifyIfNotDefaultSmsApp_resolvedPerCallingUser() {
+        final UserHandle[] callingUser = { UserHandle.SYSTEM };
+        final List<String> lookups = new ArrayList<>();
+        NotificationCoalescer coalescer =
+                new NotificationCoalescer(mContext, mThread.getLooper(), WINDOW_MS) {
+                    @Override
+                    UserHandle getCallingUserHandle() {
+                        return callingUser[0];
+                    }
+
+                    @Override
+                    ComponentName getExternalProviderChangeReceiver(String callingPackage) {
+                        // The default SMS app of user 10 made the changes there.
+                        lookups.add(callingUser[0].getIdentifier() + ":" + callingPackage);
+                        return callingUser[0].getIdentifier() == 10 ? null
+                                : new ComponentName("sms.app", "sms.app.Receiver");
+                    }
+                };
+        doNothing().when(mContext).sendBroadcast(any(Intent.class));
+
+        Uri sms1 = Uri.withAppendedPath(Sms.CONTENT_URI, "1");
+        coalescer.notifyIfNotDefaultSmsApp(sms1, "other.app");
+        coalescer.notifyIfNotDefaultSmsApp(Uri.withAppendedPath(Sms.CONTENT_URI, "2"),
+                "other.app");
+        callingUser[0] = UserHandle.of(10);
+        coalescer.notifyIfNotDefaultSmsApp(sms1, "other.app");
+        // The default SMS app is looked up once per user and package, on the calling thread.
+        assertEquals(Arrays.asList("0:other.app", "10:other.app"), lookups);
+
+        coalescer.flush();
+        ArgumentCaptor<Intent> intents = ArgumentCaptor.forClass(Intent.class);
+        verify(mContext).sendBroadcast(intents.capture());
+        assertEquals(new ComponentName("sms.app", "sms.app.Receiver"),
+                intents.getValue().getComponent());
+        assertEquals(Uri.parse("content://sms"), intents.getValue().getData());
+    }
+
+    @Test
+    public void testNotifyChange_noWindow() {
+        NotificationCoalescer coalescer =
+                new NotificationCoalescer(mContext, mThread.getLooper(), 0);
+        coalescer.notifyChange(Sms.CONTENT_URI);
+        coalescer.notifyChange(Sms.CONTENT_URI);
+        assertEquals(Arrays.asList(Sms.CONTENT_URI, Sms.CONTENT_URI), mNotifiedUris);
+    }
+}
@@ -16,14 +16,19 @@
 
 package com.android.providers.telephony;
 
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.app.AppOpsManager;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.pm.PackageManager;
@@ -31,13 +36,17 @@ import android.content.pm.ProviderInfo;
 import android.content.res.Resources;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.UserHandle;
 import android.provider.Telephony;
 import android.telephony.SmsManager;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
+import android.test.mock.MockContentProvider;
 import android.test.mock.MockContentResolver;
 import android.util.Log;
 
@@ -49,11 +58,12 @@ import com.android.internal.telephony.ISms;
 import junit.framework.TestCase;
 
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
-import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -77,8 +87,10 @@ public class SmsProviderTest extends TestCase {
     @Mock private PackageManager mPackageManager;
     @Mock private Resources mMockResources;
     @Mock private SubscriptionManager mSubscriptionManager;
+    @Mock private ISms mISms;
 
     private int notifyChangeCount;
+    private final List<ContentObserver> mContentObservers = new ArrayList<>();
 
     private final UserHandle mMyUserHandle = UserHandle.of(UserHandle.myUserId());
 
@@ -103,7 +115,7 @@ public class SmsProviderTest extends TestCase {
         MockitoAnnotations.initMocks(this);
         mSmsProviderTestable = new SmsProviderTestable();
         mContext = spy(ApplicationProvider.getApplicationContext());
-        TelephonyManager.setupISmsForTest(Mockito.mock(ISms.class));
+        TelephonyManager.setupISmsForTest(mISms);
 
         when(mContext.getSystemService(eq(Context.APP_OPS_SERVICE)))
                 .thenReturn(mock(AppOpsManager.class));
@@ -116,6 +128,8 @@ public class SmsProviderTest extends TestCase {
         when(mMockResources
                         .getString(eq(com.android.internal.R.string.config_systemBluetoothStack)))
                 .thenReturn("com.android.bluetooth");
+        // Notify right away so the tests observe the notifications synchronously.
+        when(mMockResources.getInteger(eq(R.integer.sms_notify_window_ms))).thenReturn(0);
         when(mContext.getResources()).thenReturn(mMockResources);
         when(mContext.getUserId()).thenReturn(0);
 
@@ -132,6 +146,12 @@ public class SmsProviderTest extends TestCase {
                     int userHandle) {
                 notifyChangeCount++;
             }
+
+            @Override
+            public void registerContentObserver(Uri uri, boolean notifyForDescendants,
+                    ContentObserver observer, int userHandle) {
+                mContentObservers.add(observer);
+            }
         };
         when(mContext.getContentResolver()).thenReturn(mContentResolver);
 
@@ -201,6 +221,296 @@ public class SmsProviderTest extends TestCase {
                 mContentResolver.insert(Uri.parse("content://sms/attachments"), values));
     }
 
+    @Test
+    @SmallTest
+    public void testBulkInsert_resolvesThreadsOncePerAddress() {
+        final List<ArrayList<String>> threadIdCalls = new ArrayList<>();
+        mContentResolver.addProvider("mms-sms", new MockContentProvider() {
+            @Override
+            public Bundle call(String method, String arg, Bundle extras) {
+                ArrayList<String> recipients =
+                        extras.getStringArrayList(MmsSmsProvider.RECIPIENTS_KEY);
+                threadIdCalls.add(recipients);
+                long[] threadIds = new long[recipients.size()];
+                for (int i = 0; i < threadIds.length; i++) {
+                    threadIds[i] = 100 + i;
+                }
+                Bundle result = new Bundle();
+                result.putLongArray(MmsSmsProvider.THREAD_IDS_KEY, threadIds);
+                return result;
+            }
+        });
+
+        ContentValues[] values = new ContentValues[3];
+        String[] addresses = new String[] { "12345", "67890", "12345" };
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new ContentValues();
+            values[i].put(Telephony.Sms.ADDRESS, addresses[i]);
+            values[i].put(Telephony.Sms.BODY, "test " + i);
+            values[i].put(Telephony.Sms.TYPE, Telephony.Sms.MESSAGE_TYPE_SENT);
+        }
+        assertEquals(3, mContentResolver.bulkInsert(Telephony.Sms.CONTENT_URI, values));
+
+        assertEquals(1, threadIdCalls.size());
+        assertEquals(Arrays.asList("12345", "67890"), threadIdCalls.get(0));
+        try (Cursor cursor = mSmsProviderTestable.mCeOpenHelper.getReadableDatabase().query(
+                SmsProvider.TABLE_SMS, new String[] { Telephony.Sms.THREAD_ID }, null, null,
+                null, null, Telephony.Sms._ID)) {
+            assertEquals(3, cursor.getCount());
+            long[] expected = new long[] { 100, 101, 100 };
+            for (long threadId : expected) {
+                cursor.moveToNext();
+                assertEquals(threadId, cursor.getLong(0));
+            }
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testBulkInsert_looksUpOutsideTransaction() {
+        final List<String> lookups = new ArrayList<>();
+        mSmsProviderTestable.closeDatabase();
+        mSmsProviderTestable = new SmsProviderTestable() {
+            @Override
+            int getDefaultSmsSubscriptionId() {
+                lookups.add("default subId" + (mCeOpenHelper.getWritableDatabase().inTransaction()
+                        ? " in transaction" : ""));
+                return 1;
+            }
+
+            @Override
+            boolean isSubscriptionAssociatedWithUser(int subId, UserHandle callerUserHandle,
+                    String address) {
+                lookups.add("subId " + subId + " " + address
+                        + (mCeOpenHelper.getWritableDatabase().inTransaction()
+                                ? " in transaction" : ""));
+                return true;
+            }
+        };
+        ProviderInfo providerInfo = new ProviderInfo();
+        providerInfo.authority = "sms";
+        mSmsProviderTestable.attachInfoForTesting(mContext, providerInfo);
+        mContentResolver.addProvider("sms", mSmsProviderTestable);
+        final SQLiteDatabase db = mSmsProviderTestable.mCeOpenHelper.getWritableDatabase();
+        mContentResolver.addProvider("mms-sms", new MockContentProvider() {
+            @Override
+            public Bundle call(String method, String arg, Bundle extras) {
+                lookups.add(method + (db.inTransaction() ? " in transaction" : ""));
+                long[] threadIds = new long[extras.getIntArray(
+                        MmsSmsProvider.RECIPIENT_COUNTS_KEY).length];
+                Arrays.fill(threadIds, 100);
+                Bundle result = new Bundle();
+                result.putLongArray(MmsSmsProvider.THREAD_IDS_KEY, threadIds);
+                return result;
+            }
+        });
+        mContentResolver.addProvider("contacts", new MockContentProvider() {
+            @Override
+            public Cursor query(Uri uri, String[] projection, String selection,
+                    String[] selectionArgs, String sortOrder) {
+                lookups.add("person " + uri.getLastPathSegment()
+                        + (db.inTransaction() ? " in transaction" : ""));
+                MatrixCursor cursor = new MatrixCursor(new String[] { "person" });
+                cursor.addRow(new Object[] { 7 });
+                return cursor;
+            }
+        });
+
+        ContentValues[] values = new ContentValues[3];
+        String[] addresses = new String[] { "12345", "67890", "12345" };
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new ContentValues();
+            values[i].put(Telephony.Sms.ADDRESS, addresses[i]);
+            values[i].put(Telephony.Sms.BODY, "test " + i);
+        }
+        assertEquals(3, mContentResolver.bulkInsert(Telephony.Sms.Inbox.CONTENT_URI, values));
+
+        // Each address is looked up once, before the messages are inserted.
+        assertEquals(Arrays.asList(MmsSmsProvider.METHOD_GET_OR_CREATE_THREAD_IDS,
+                "person 12345", "person 67890", "default subId", "subId 1 12345",
+                "subId 1 67890"), lookups);
+        try (Cursor cursor = db.query(SmsProvider.TABLE_SMS,
+                new String[] { Telephony.Sms.PERSON }, null, null, null, null, null)) {
+            assertEquals(3, cursor.getCount());
+            while (cursor.moveToNext()) {
+                assertEquals(7, cursor.getLong(0));
+            }
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testInsert_looksUpSenderOnceUntilContactsChange() {
+        final List<String> lookups = new ArrayList<>();
+        mContentResolver.addProvider("contacts", new MockContentProvider() {
+            @Override
+            public Cursor query(Uri uri, String[] projection, String selection,
+                    String[] selectionArgs, String sortOrder) {
+                lookups.add(uri.getLastPathSegment());
+                MatrixCursor cursor = new MatrixCursor(new String[] { "person" });
+                cursor.addRow(new Object[] { lookups.size() });
+                return cursor;
+            }
+        });
+
+        insertInboxSms("12345");
+        insertInboxSms("67890");
+        insertInboxSms("12345");
+        assertEquals(Arrays.asList("12345", "67890"), lookups);
+
+        for (ContentObserver observer : mContentObservers) {
+            observer.onChange(false);
+        }
+        insertInboxSms("12345");
+        assertEquals(Arrays.asList("12345", "67890", "12345"), lookups);
+
+        List<Long> persons = new ArrayList<>();
+        try (Cursor cursor = mSmsProviderTestable.mCeOpenHelper.getReadableDatabase().query(
+                SmsProvider.TABLE_SMS, new String[] { Telephony.Sms.PERSON }, null, null,
+                null, null, Telephony.Sms._ID)) {
+            while (cursor.moveToNext()) {
+                persons.add(cursor.getLong(0));
+            }
+        }
+        assertEquals(Arrays.asList(1L, 2L, 1L, 3L), persons);
+    }
+
+    private void insertInboxSms(String address) {
+        ContentValues values = new ContentValues();
+        values.put(Telephony.Sms.ADDRESS, address);
+        values.put(Telephony.Sms.BODY, "test");
+        values.put(Telephony.Sms.THREAD_ID, 1);
+        assertNotNull(mContentResolver.insert(Telephony.Sms.Inbox.CONTENT_URI, values));
+    }
+
+    @Test
+    @SmallTest
+    public void testQueryIcc_readsIccOnceUntilWritten() throws Exception {
+        final int subId = 1;
+        doReturn(true).when(mSubscriptionManager).isSubscriptionAssociatedWithUser(subId,
+                mMyUserHandle);
+        final Uri iccUri = Uri.parse("content://sms/icc_subId/" + subId);
+
+        mContentResolver.query(iccUri, null, null, null, null).close();
+        mContentResolver.query(iccUri, null, null, null, null).close();
+        verify(mISms, times(1)).getAllMessagesFromIccEfForSubscriber(eq(subId), any());
+
+        // Deleting a message through the provider makes the next query read the ICC again.
+        mContentResolver.delete(Uri.withAppendedPath(iccUri, "1"), null, null);
+        mContentResolver.query(iccUri, null, null, null, null).close();
+        verify(mISms, times(2)).getAllMessagesFromIccEfForSubscriber(eq(subId), any());
+    }
+
+    @Test
+    @SmallTest
+    public void testQuery_seesMessagesOfAddedSubscription() {
+        final List<SubscriptionInfo> subscriptions = new ArrayList<>();
+        subscriptions.add(new SubscriptionInfo.Builder().setId(1).setSimSlotIndex(0).build());
+        // ProviderUtil adds to the list it gets, return a copy every time.
+        doAnswer(invocation -> new ArrayList<>(subscriptions)).when(mSubscriptionManager)
+                .getSubscriptionInfoListAssociatedWithUser(mMyUserHandle);
+        when(mContext.getSystemService(TelephonyManager.class))
+                .thenReturn(mock(TelephonyManager.class));
+        final SQLiteDatabase db = mSmsProviderTestable.mCeOpenHelper.getWritableDatabase();
+        for (int subId = 1; subId <= 2; subId++) {
+            ContentValues values = new ContentValues();
+            values.put(Telephony.Sms.ADDRESS, "12345");
+            values.put(Telephony.Sms.BODY, "sub " + subId);
+            values.put(Telephony.Sms.SUBSCRIPTION_ID, subId);
+            db.insert(SmsProvider.TABLE_SMS, null, values);
+        }
+
+        assertEquals(1, getSmsCount());
+        subscriptions.add(new SubscriptionInfo.Builder().setId(2).setSimSlotIndex(1).build());
+        assertEquals(1, getSmsCount());
+        verify(mSubscriptionManager, times(1))
+                .getSubscriptionInfoListAssociatedWithUser(mMyUserHandle);
+
+        ArgumentCaptor<SubscriptionManager.OnSubscriptionsChangedListener> listener =
+                ArgumentCaptor.forClass(SubscriptionManager.OnSubscriptionsChangedListener.class);
+        verify(mSubscriptionManager).addOnSubscriptionsChangedListener(any(), listener.capture());
+        listener.getValue().onSubscriptionsChanged();
+        assertEquals(2, getSmsCount());
+    }
+
+    private int getSmsCount() {
+        try (Cursor cursor = mContentResolver.query(Telephony.Sms.CONTENT_URI, null, null, null,
+                null)) {
+            return cursor.getCount();
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testCall_flushNotifications() {
+        // Long enough for the notifications to never be sent on their own during the test.
+        when(mMockResources.getInteger(eq(R.integer.sms_notify_window_ms)))
+                .thenReturn(60 * 60 * 1000);
+        mContentResolver.insert(mRawUri, getFakeRawValue());
+        mContentResolver.insert(mRawUri, getFakeRawValue());
+        assertEquals(0, notifyChangeCount);
+
+        assertNotNull(mContentResolver.call(Telephony.Sms.CONTENT_URI,
+                SmsProvider.METHOD_FLUSH_NOTIFICATIONS, null, null));
+        // The two inserted uris, then MmsSms.CONTENT_URI and the conversations only once.
+        assertEquals(4, notifyChangeCount);
+    }
+
+    @Test
+    @SmallTest
+    public void testInsert_returnsSmsRowIdWithFts4Words() {
+        // A database whose words index fell back to FTS4, which indexes the sms by trigger.
+        doReturn(false).when(mContext).isCredentialProtectedStorage();
+        final MmsSmsDatabaseHelper upgrader = spy(new MmsSmsDatabaseHelper(mContext, null));
+        doReturn(false).when(upgrader).isFts5Available(any());
+        mSmsProviderTestable.mCeOpenHelper.close();
+        mSmsProviderTestable.mCeOpenHelper =
+                new MmsSmsDatabaseHelperTest.InMemoryMmsSmsDatabaseHelper() {
+                    @Override
+                    public void onCreate(SQLiteDatabase db) {
+                        super.onCreate(db);
+                        upgrader.onUpgrade(db, MmsSmsDatabaseHelperTest.BASE_DATABASE_VERSION,
+                                MmsSmsDatabaseHelper.DATABASE_VERSION);
+                    }
+                };
+        final SQLiteDatabase db = mSmsProviderTestable.mCeOpenHelper.getWritableDatabase();
+        assertFalse(MmsSmsDatabaseHelper.isWordsFts5(db));
+
+        Uri uri = mContentResolver.insert(Telephony.Sms.CONTENT_URI, getSentSms("fallback 0"));
+        assertEquals(getSmsId(db, "fallback 0"), ContentUris.parseId(uri));
+        assertEquals(2, mContentResolver.bulkInsert(Telephony.Sms.CONTENT_URI,
+                new ContentValues[] { getSentSms("fallback 1"), getSentSms("fallback 2") }));
+
+        // Each message is indexed under its own row id.
+        List<Long> wordIds = new ArrayList<>();
+        try (Cursor cursor = db.rawQuery(
+                "SELECT rowid FROM words WHERE index_text MATCH 'fallback' ORDER BY rowid",
+                null)) {
+            while (cursor.moveToNext()) {
+                wordIds.add(cursor.getLong(0));
+            }
+        }
+        assertEquals(Arrays.asList(getSmsId(db, "fallback 0"), getSmsId(db, "fallback 1"),
+                getSmsId(db, "fallback 2")), wordIds);
+    }
+
+    private static ContentValues getSentSms(String body) {
+        ContentValues values = new ContentValues();
+        values.put(Telephony.Sms.ADDRESS, "12345");
+        values.put(Telephony.Sms.BODY, body);
+        values.put(Telephony.Sms.THREAD_ID, 1);
+        values.put(Telephony.Sms.TYPE, Telephony.Sms.MESSAGE_TYPE_SENT);
+        return values;
+    }
+
+    private static long getSmsId(SQLiteDatabase db, String body) {
+        try (Cursor cursor = db.query(SmsProvider.TABLE_SMS, new String[] { Telephony.Sms._ID },
+                Telephony.Sms.BODY + "=?", new String[] { body }, null, null, null)) {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        }
+    }
+
     @Test
     @SmallTest
     public void testRawTableInsert() {
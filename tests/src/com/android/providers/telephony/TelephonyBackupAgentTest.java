@@ -29,6 +29,7 @@ import android.content.ContextWrapper;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 import android.provider.BaseColumns;
 import android.provider.Telephony;
@@ -55,6 +56,8 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.mockito.Mockito;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
@@ -66,6 +69,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
@@ -92,6 +96,11 @@ public class TelephonyBackupAgentTest extends AndroidTestCase {
     private final List<ContentValues> mMmsNullBodyContentValues = new ArrayList<>();
     /* Cursors being used to access sms, mms tables */
     private FakeCursor mSmsCursor, mMmsCursor;
+    /* Parts, addresses of all the mms by mms id, as read by the backup with a single query */
+    private final Map<Integer, List<ContentValues>> mMmsPartsById = new TreeMap<>();
+    private final Map<Integer, List<ContentValues>> mMmsAddrsById = new TreeMap<>();
+    private final List<ContentValues> mAllMmsParts = new ArrayList<>();
+    private final List<ContentValues> mAllMmsAddrs = new ArrayList<>();
     /* Test data with sms and mms */
     private ContentValues[] mSmsRows, mMmsRows, mMmsAttachmentRows;
     /* Json representation for the test data */
@@ -162,6 +171,10 @@ public class TelephonyBackupAgentTest extends AndroidTestCase {
         mCursors.put(Telephony.Sms.CONTENT_URI, mSmsCursor);
         mMmsCursor = new FakeCursor(mMmsTable, TelephonyBackupAgent.MMS_PROJECTION);
         mCursors.put(Telephony.Mms.CONTENT_URI, mMmsCursor);
+        mCursors.put(TelephonyBackupAgent.MMS_ALL_PARTS_URI,
+                new FakeCursor(mAllMmsParts, TelephonyBackupAgent.MMS_BATCH_TEXT_PROJECTION));
+        mCursors.put(TelephonyBackupAgent.MMS_ALL_ADDRS_URI,
+                new FakeCursor(mAllMmsAddrs, TelephonyBackupAgent.MMS_ADDR_PROJECTION));
 
 
         /* Generating test data */
@@ -432,17 +445,41 @@ public class TelephonyBackupAgentTest extends AndroidTestCase {
 
         final Uri partUri = Telephony.Mms.CONTENT_URI.buildUpon().appendPath(String.valueOf(id)).
                 appendPath("part").build();
-        mCursors.put(partUri, createBodyCursor(body, bodyCharset, smil, attachmentTypes,
-                attachmentFilenames, rowsContainer));
+        // The mms is restored before its parts.
         rowsContainer.add(mmsRow);
+        final FakeCursor bodyCursor = createBodyCursor(body, bodyCharset, smil, attachmentTypes,
+                attachmentFilenames, rowsContainer);
+        mCursors.put(partUri, bodyCursor);
+        mMmsPartsById.put(id, withMessageId(bodyCursor.rows, Telephony.Mms.Part.MSG_ID, id));
+        flatten(mMmsPartsById, mAllMmsParts);
 
-        final Uri addrUri = Telephony.Mms.CONTENT_URI.buildUpon().appendPath(String.valueOf(id)).
-                appendPath("addr").build();
-        mCursors.put(addrUri, createAddrCursor(addresses));
+        mMmsAddrsById.put(id,
+                withMessageId(createAddrRows(addresses), Telephony.Mms.Addr.MSG_ID, id));
+        flatten(mMmsAddrsById, mAllMmsAddrs);
 
         return mmsRow;
     }
 
+    // Copies of the rows, with the id of the mms they belong to.
+    private static List<ContentValues> withMessageId(List<ContentValues> rows, String column,
+            int id) {
+        List<ContentValues> copies = new ArrayList<>();
+        for (ContentValues row : rows) {
+            ContentValues copy = new ContentValues(row);
+            copy.put(column, id);
+            copies.add(copy);
+        }
+        return copies;
+    }
+
+    private static void flatten(Map<Integer, List<ContentValues>> rowsById,
+            List<ContentValues> table) {
+        table.clear();
+        for (List<ContentValues> rows : rowsById.values()) {
+            table.addAll(rows);
+        }
+    }
+
     private static final String APP_SMIL = "application/smil";
     private static final String TEXT_PLAIN = "text/plain";
     private static final String IMAGE_JPG = "image/jpg";
@@ -498,8 +535,8 @@ public class TelephonyBackupAgentTest extends AndroidTestCase {
         return new FakeCursor(table, TelephonyBackupAgent.MMS_TEXT_PROJECTION);
     }
 
-    // Cursor with addresses of Mms.
-    private FakeCursor createAddrCursor(String[] addresses) {
+    // Addresses of Mms.
+    private List<ContentValues> createAddrRows(String[] addresses) {
         List<ContentValues> table = new ArrayList<>();
         for (int i=0; i<addresses.length; ++i) {
             ContentValues addr = new ContentValues();
@@ -509,7 +546,7 @@ public class TelephonyBackupAgentTest extends AndroidTestCase {
             mMmsAllContentValues.add(addr);
             table.add(addr);
         }
-        return new FakeCursor(table, TelephonyBackupAgent.MMS_ADDR_PROJECTION);
+        return table;
     }
 
     /**
@@ -533,6 +570,22 @@ public class TelephonyBackupAgentTest extends AndroidTestCase {
         assertEquals(mAllSmsJson, mStringWriter.toString());
     }
 
+    /**
+     * Test that the recipients of the threads of all the sms are read with a single query.
+     * @throws Exception
+     */
+    public void testBackupSms_RecipientsReadOncePerBatch() throws Exception {
+        mTelephonyBackupAgent.mMaxMsgPerFile = 1;
+        mSmsTable.addAll(Arrays.asList(mSmsRows));
+        for (int i = 0; i < mSmsRows.length; i++) {
+            mStringWriter = new StringWriter();
+            mTelephonyBackupAgent.putSmsMessagesToJson(mSmsCursor, new JsonWriter(mStringWriter));
+            assertEquals("[" + mSmsJson[i] + "]", mStringWriter.toString());
+        }
+        assertEquals(1, mThreadProvider.mThreadQueries);
+        assertEquals(1, mThreadProvider.mCanonicalAddressQueries);
+    }
+
     /**
      * Test with 3 sms in the provider with the limit per file 3.
      * @throws Exception
@@ -656,6 +709,34 @@ public class TelephonyBackupAgentTest extends AndroidTestCase {
         assertEquals(mThreadProvider.mIsThreadArchived, mThreadProvider.mUpdateThreadsArchived);
     }
 
+    /**
+     * Test that restoring sms resolves the threads of all their recipient sets in one call.
+     * @throws Exception
+     */
+    public void testRestoreSms_BulkThreadIds() throws Exception {
+        mTelephonyBackupAgent.initUnknownSender();
+        JsonReader jsonReader = new JsonReader(new StringReader(addRandomDataToJson(mAllSmsJson)));
+        FakeSmsProvider smsProvider = new FakeSmsProvider(mSmsRows);
+        mMockContentResolver.addProvider("sms", smsProvider);
+        mTelephonyBackupAgent.putSmsMessagesToProvider(jsonReader);
+        assertEquals(mSmsRows.length, smsProvider.getRowsAdded());
+        assertEquals(1, mThreadProvider.mBulkThreadIdCalls);
+    }
+
+    /**
+     * Test restore sms from the compact format.
+     * @throws Exception
+     */
+    public void testRestoreSms_AllSmsCompact() throws Exception {
+        mTelephonyBackupAgent.initUnknownSender();
+        BackupFormat.Reader reader = toCompact(addRandomDataToJson(mAllSmsJson));
+        FakeSmsProvider smsProvider = new FakeSmsProvider(mSmsRows);
+        mMockContentResolver.addProvider("sms", smsProvider);
+        mTelephonyBackupAgent.putSmsMessagesToProvider(reader);
+        assertEquals(mSmsRows.length, smsProvider.getRowsAdded());
+        assertEquals(mThreadProvider.mIsThreadArchived, mThreadProvider.mUpdateThreadsArchived);
+    }
+
     /**
      * Test that crashing for one sms does not block restore of other messages.
      * @throws Exception
@@ -690,6 +771,42 @@ public class TelephonyBackupAgentTest extends AndroidTestCase {
         }
     }
 
+    /**
+     * Test that restoring sms only queries the provider for the sms that might already be there,
+     * and skips the ones that are.
+     * @throws Exception
+     */
+    public void testRestoreSms_SkipsExistingSms() throws Exception {
+        mTelephonyBackupAgent.initUnknownSender();
+        JsonReader jsonReader = new JsonReader(new StringReader(addRandomDataToJson(mAllSmsJson)));
+        final int[] duplicateQueries = new int[1];
+        FakeSmsProvider smsProvider = new FakeSmsProvider(
+                Arrays.copyOfRange(mSmsRows, 1, mSmsRows.length)) {
+            @Override
+            public Cursor query(Uri uri, String[] projection, String selection,
+                    String[] selectionArgs, String sortOrder) {
+                List<ContentValues> table = new ArrayList<>();
+                if (Arrays.equals(TelephonyBackupAgent.PROJECTION_ID, projection)) {
+                    duplicateQueries[0]++;
+                    ContentValues row = new ContentValues();
+                    row.put(BaseColumns._ID, 1);
+                    table.add(row);
+                } else {
+                    // The sms in the provider.
+                    ContentValues row = new ContentValues();
+                    row.put(Telephony.Sms.DATE, mSmsRows[0].getAsString(Telephony.Sms.DATE));
+                    row.put(Telephony.Sms.BODY, mSmsRows[0].getAsString(Telephony.Sms.BODY));
+                    table.add(row);
+                }
+                return new FakeCursor(table, projection);
+            }
+        };
+        mMockContentResolver.addProvider("sms", smsProvider);
+        mTelephonyBackupAgent.putSmsMessagesToProvider(jsonReader);
+        assertEquals(mSmsRows.length - 1, smsProvider.getRowsAdded());
+        assertEquals(1, duplicateQueries[0]);
+    }
+
     /**
      * Test restore mms with the empty json array "[]".
      */
@@ -730,6 +847,29 @@ public class TelephonyBackupAgentTest extends AndroidTestCase {
                 }
         );
         assertEquals(18, mmsProvider.getRowsAdded());
+        assertEquals(1, mmsProvider.getBulkInsertCalls());
+        assertEquals(mThreadProvider.mIsThreadArchived, mThreadProvider.mUpdateThreadsArchived);
+    }
+
+    /**
+     * Test restore mms from the compact format.
+     * @throws Exception
+     */
+    public void testRestoreMms_AllMmsCompact() throws Exception {
+        BackupFormat.Reader reader = toCompact(addRandomDataToJson(mAllMmsJson));
+        FakeMmsProvider mmsProvider = new FakeMmsProvider(mMmsAllContentValues);
+        mMockContentResolver.addProvider("mms", mmsProvider);
+        ShellIdentityUtils.invokeMethodWithShellPermissions(
+                mTelephonyBackupAgent, (agent) -> {
+                    try {
+                        agent.putMmsMessagesToProvider(reader);
+                    } catch (IOException e) {
+                        fail("Encountered exception: " + e);
+                    }
+                    return null;
+                }
+        );
+        assertEquals(18, mmsProvider.getRowsAdded());
         assertEquals(mThreadProvider.mIsThreadArchived, mThreadProvider.mUpdateThreadsArchived);
     }
 
@@ -784,6 +924,7 @@ public class TelephonyBackupAgentTest extends AndroidTestCase {
      * @throws Exception
      */
     public void testBackup_WithQuotaExceeded() throws Exception {
+        // The sizes below are those of the JSON format, written unless the flag is turned on.
         mTelephonyBackupAgent.mMaxMsgPerFile = 1;
         final int backupSize = 7168;
         final int backupSizeAfterFirstQuotaHit = 6144;
@@ -837,6 +978,25 @@ public class TelephonyBackupAgentTest extends AndroidTestCase {
         assertArrayEquals(firstBackup, secondBackup);
     }
 
+    /**
+     * Test that encoding the chunks on several threads backs up the same files, in the same
+     * order, as encoding them one after the other.
+     * @throws Exception
+     */
+    public void testBackup_Pipelined_SameOutputAsSequential() throws Exception {
+        mTelephonyBackupAgent.mMaxMsgPerFile = 1;
+        mSmsTable.addAll(Arrays.asList(mSmsRows));
+        mMmsTable.addAll(Arrays.asList(mMmsRows));
+
+        mTelephonyBackupAgent.mPipelinedBackup = false;
+        byte[] sequentialBackup = getBackup("sequential");
+        mTelephonyBackupAgent.mPipelinedBackup = true;
+        byte[] pipelinedBackup = getBackup("pipelined");
+
+        assertFalse(sequentialBackup == null || sequentialBackup.length == 0);
+        assertArrayEquals(sequentialBackup, pipelinedBackup);
+    }
+
     private byte[] getBackup(String runId) throws IOException {
         File cacheDir = getContext().getCacheDir();
         File backupOutput = File.createTempFile("backup", runId, cacheDir);
@@ -852,6 +1012,47 @@ public class TelephonyBackupAgentTest extends AndroidTestCase {
         }
     }
 
+    // Converts JSON to the compact format, and returns a reader of the result.
+    private static BackupFormat.Reader toCompact(String json) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonReader jsonReader = new JsonReader(new StringReader(json));
+                BackupFormat.Writer writer = BackupFormat.compact(out)) {
+            copyValue(jsonReader, writer);
+        }
+        return BackupFormat.compact(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    private static void copyValue(JsonReader jsonReader, BackupFormat.Writer writer)
+            throws IOException {
+        switch (jsonReader.peek()) {
+            case BEGIN_ARRAY:
+                jsonReader.beginArray();
+                writer.beginArray();
+                while (jsonReader.hasNext()) {
+                    copyValue(jsonReader, writer);
+                }
+                jsonReader.endArray();
+                writer.endArray();
+                break;
+            case BEGIN_OBJECT:
+                jsonReader.beginObject();
+                writer.beginObject();
+                while (jsonReader.hasNext()) {
+                    writer.name(jsonReader.nextName());
+                    copyValue(jsonReader, writer);
+                }
+                jsonReader.endObject();
+                writer.endObject();
+                break;
+            case BOOLEAN:
+                writer.value(jsonReader.nextBoolean());
+                break;
+            default:
+                writer.value(jsonReader.nextString());
+                break;
+        }
+    }
+
     // Adding random keys to JSON to test handling it by the BackupAgent on restore.
     private String addRandomDataToJson(String jsonString) throws JSONException {
         JSONArray jsonArray = new JSONArray(jsonString);
@@ -925,8 +1126,8 @@ public class TelephonyBackupAgentTest extends AndroidTestCase {
     private class FakeMmsProvider extends MockContentProvider {
         private int nextRow = 0;
         private List<ContentValues> mValues;
-        private long mPlaceholderMsgId = -1;
         private long mMsgId = -1;
+        private int mBulkInsertCalls = 0;
         private String mFilename;
 
         public FakeMmsProvider(List<ContentValues> values) {
@@ -944,9 +1145,8 @@ public class TelephonyBackupAgentTest extends AndroidTestCase {
                 assertEquals("read: ", modifiedValues.get("read"), values.get("read"));
             }
             if (APP_SMIL.equals(values.get(Telephony.Mms.Part.CONTENT_TYPE))) {
-                // Smil part.
-                assertEquals(-1, mPlaceholderMsgId);
-                mPlaceholderMsgId = values.getAsLong(Telephony.Mms.Part.MSG_ID);
+                // Smil part, inserted after the mms.
+                assertNotSame(-1, mMsgId);
             }
             if (IMAGE_JPG.equals(values.get(Telephony.Mms.Part.CONTENT_TYPE))) {
                 // Image attachment part.
@@ -964,7 +1164,7 @@ public class TelephonyBackupAgentTest extends AndroidTestCase {
             if (values.get(Telephony.Mms.Part.SEQ) != null) {
                 // Part of mms.
                 final Uri expectedUri = Telephony.Mms.CONTENT_URI.buildUpon()
-                        .appendPath(String.valueOf(mPlaceholderMsgId))
+                        .appendPath(String.valueOf(mMsgId))
                         .appendPath("part")
                         .build();
                 assertEquals(expectedUri, uri);
@@ -976,9 +1176,6 @@ public class TelephonyBackupAgentTest extends AndroidTestCase {
                 assertEquals("read: ", modifiedValues.get("read"), values.get("read"));
             }
 
-            if (values.get(Telephony.Mms.Part.MSG_ID) != null) {
-                modifiedValues.put(Telephony.Mms.Part.MSG_ID, mPlaceholderMsgId);
-            }
             if (values.containsKey("read")) {
                 assertEquals("read: ", modifiedValues.get("read"), values.get("read"));
             }
@@ -1014,8 +1211,6 @@ public class TelephonyBackupAgentTest extends AndroidTestCase {
                         .build();
                 assertEquals(expectedUri, uri);
                 assertNotSame(-1, mMsgId);
-                modifiedValues.put(Telephony.Mms.Addr.MSG_ID, mMsgId);
-                mPlaceholderMsgId = -1;
             }
             if (values.containsKey("read")) {
                 assertEquals("read: ", modifiedValues.get("read"), values.get("read"));
@@ -1034,16 +1229,30 @@ public class TelephonyBackupAgentTest extends AndroidTestCase {
         }
 
         @Override
-        public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-            final Uri expectedUri = Telephony.Mms.CONTENT_URI.buildUpon()
-                    .appendPath(String.valueOf(mPlaceholderMsgId))
-                    .appendPath("part")
-                    .build();
-            assertEquals(expectedUri, uri);
-            ContentValues expected = new ContentValues();
-            expected.put(Telephony.Mms.Part.MSG_ID, mMsgId);
-            assertEquals(expected, values);
-            return 2;
+        public Bundle call(String method, String arg, Bundle extras) {
+            assertEquals(MmsProvider.METHOD_BULK_INSERT, method);
+            mBulkInsertCalls++;
+            List<Bundle> messages = extras.getParcelableArrayList(MmsProvider.MESSAGES_KEY);
+            long[] mmsIds = new long[messages.size()];
+            for (int i = 0; i < mmsIds.length; i++) {
+                Bundle message = messages.get(i);
+                final Uri mmsUri = insert(Telephony.Mms.CONTENT_URI,
+                        message.getParcelable(MmsProvider.PDU_KEY));
+                mmsIds[i] = ContentUris.parseId(mmsUri);
+                List<ContentValues> parts =
+                        message.getParcelableArrayList(MmsProvider.PARTS_KEY);
+                for (ContentValues part : parts) {
+                    insert(Uri.withAppendedPath(mmsUri, "part"), part);
+                }
+                List<ContentValues> addrs =
+                        message.getParcelableArrayList(MmsProvider.ADDRS_KEY);
+                for (ContentValues addr : addrs) {
+                    insert(Uri.withAppendedPath(mmsUri, "addr"), addr);
+                }
+            }
+            Bundle result = new Bundle();
+            result.putLongArray(MmsProvider.MMS_IDS_KEY, mmsIds);
+            return result;
         }
 
         @Override
@@ -1055,6 +1264,10 @@ public class TelephonyBackupAgentTest extends AndroidTestCase {
         public int getRowsAdded() {
             return nextRow;
         }
+
+        public int getBulkInsertCalls() {
+            return mBulkInsertCalls;
+        }
     }
 
     /**
@@ -1065,6 +1278,9 @@ public class TelephonyBackupAgentTest extends AndroidTestCase {
         ArrayList<String> id2Recipient = new ArrayList<>();
         Set<Integer> mIsThreadArchived = new HashSet<>();
         Set<Integer> mUpdateThreadsArchived = new HashSet<>();
+        int mBulkThreadIdCalls = 0;
+        int mThreadQueries = 0;
+        int mCanonicalAddressQueries = 0;
 
 
         public int getOrCreateThreadId(final String[] recipients) {
@@ -1109,12 +1325,15 @@ public class TelephonyBackupAgentTest extends AndroidTestCase {
         public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                             String sortOrder) {
             if (uri.equals(TelephonyBackupAgent.ALL_THREADS_URI)) {
-                final int threadId = Integer.parseInt(selectionArgs[0]);
-                final String spaceSepIds = getSpaceSepIds(threadId);
+                mThreadQueries++;
+                // The selection isn't parsed, all the threads are returned.
                 List<ContentValues> table = new ArrayList<>();
-                ContentValues row = new ContentValues();
-                row.put(Telephony.Threads.RECIPIENT_IDS, spaceSepIds);
-                table.add(row);
+                for (int threadId = 1; threadId <= id2Thread.size(); threadId++) {
+                    ContentValues row = new ContentValues();
+                    row.put(Telephony.Threads._ID, threadId);
+                    row.put(Telephony.Threads.RECIPIENT_IDS, getSpaceSepIds(threadId));
+                    table.add(row);
+                }
                 return new FakeCursor(table, projection);
             } else if (uri.toString().startsWith(Telephony.Threads.CONTENT_URI.toString())) {
                 assertEquals(1, projection.length);
@@ -1126,19 +1345,18 @@ public class TelephonyBackupAgentTest extends AndroidTestCase {
                 row.put(Telephony.Threads.ARCHIVED, mIsThreadArchived.contains(threadId) ? 1 : 0);
                 table.add(row);
                 return new FakeCursor(table, projection);
-            } else if (uri.toString().startsWith(
-                    TelephonyBackupAgent.SINGLE_CANONICAL_ADDRESS_URI.toString())) {
-                final int recipientId = (int)ContentUris.parseId(uri);
-                final String recipient = getRecipient(recipientId);
+            } else if (uri.equals(TelephonyBackupAgent.CANONICAL_ADDRESSES_URI)) {
+                mCanonicalAddressQueries++;
+                // The selection isn't parsed, all the addresses are returned.
                 List<ContentValues> table = new ArrayList<>();
-                ContentValues row = new ContentValues();
-                row.put(Telephony.CanonicalAddressesColumns.ADDRESS, recipient);
-                table.add(row);
-
-                return new FakeCursor(table,
-                        projection != null
-                                ? projection
-                                : new String[] { Telephony.CanonicalAddressesColumns.ADDRESS });
+                for (int recipientId = 1; recipientId <= id2Recipient.size(); recipientId++) {
+                    ContentValues row = new ContentValues();
+                    row.put(Telephony.CanonicalAddressesColumns._ID, recipientId);
+                    row.put(Telephony.CanonicalAddressesColumns.ADDRESS,
+                            getRecipient(recipientId));
+                    table.add(row);
+                }
+                return new FakeCursor(table, projection);
             } else if (uri.toString().startsWith(
                     TelephonyBackupAgent.THREAD_ID_CONTENT_URI.toString())) {
                 List<String> recipients = uri.getQueryParameters("recipient");
@@ -1156,6 +1374,24 @@ public class TelephonyBackupAgentTest extends AndroidTestCase {
             return null;
         }
 
+        @Override
+        public Bundle call(String method, String arg, Bundle extras) {
+            assertEquals(MmsSmsProvider.METHOD_GET_OR_CREATE_THREAD_IDS, method);
+            List<String> recipients = extras.getStringArrayList(MmsSmsProvider.RECIPIENTS_KEY);
+            int[] recipientCounts = extras.getIntArray(MmsSmsProvider.RECIPIENT_COUNTS_KEY);
+            long[] threadIds = new long[recipientCounts.length];
+            int offset = 0;
+            for (int i = 0; i < recipientCounts.length; i++) {
+                threadIds[i] = getOrCreateThreadId(recipients.subList(offset,
+                        offset + recipientCounts[i]).toArray(new String[recipientCounts[i]]));
+                offset += recipientCounts[i];
+            }
+            mBulkThreadIdCalls++;
+            Bundle result = new Bundle();
+            result.putLongArray(MmsSmsProvider.THREAD_IDS_KEY, threadIds);
+            return result;
+        }
+
         @Override
         public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
             assertEquals(uri, Telephony.Threads.CONTENT_URI);
@@ -1229,6 +1465,17 @@ public class TelephonyBackupAgentTest extends AndroidTestCase {
             return getCount() > ++nextRow;
         }
 
+        @Override
+        public int getPosition() {
+            return nextRow;
+        }
+
+        @Override
+        public boolean moveToPosition(int position) {
+            nextRow = position;
+            return position >= 0 && position < getCount();
+        }
+
         @Override
         public int getCount() {
             return rows.size();
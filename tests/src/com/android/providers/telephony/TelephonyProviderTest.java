@@ -23,8 +23,10 @@ import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
 
+import static org.mockito.AdditionalAnswers.delegatesTo;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
@@ -38,8 +40,10 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.content.res.Resources;
+import android.content.res.XmlResourceParser;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Environment;
@@ -55,6 +59,7 @@ import android.test.mock.MockContentResolver;
 import android.test.mock.MockContext;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.Xml;
 
 import androidx.test.InstrumentationRegistry;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
@@ -71,14 +76,25 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.xmlpull.v1.XmlPullParser;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.StringReader;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.IntStream;
 
 /**
@@ -104,6 +120,9 @@ public class TelephonyProviderTest {
     private MockContextWithProvider mContext;
     private MockContentResolver mContentResolver;
     private TelephonyProviderTestable mTelephonyProviderTestable;
+    // A database loaded from xml by the actual DatabaseHelper, see createApnDatabase.
+    private TelephonyProvider.DatabaseHelper mApnDbHelper;
+    private SQLiteDatabase mApnDb;
     @Mock
     private Resources mockContextResources;
 
@@ -428,6 +447,10 @@ public class TelephonyProviderTest {
         if (file.exists()) {
             file.delete();
         }
+
+        if (mApnDb != null) {
+            mApnDb.close();
+        }
     }
 
     /**
@@ -2178,6 +2201,49 @@ public class TelephonyProviderTest {
         assertEquals(mvnoData, cursor.getString(3));
     }
 
+    @Test
+    @SmallTest
+    public void testSIMAPNLIST_MatchesMVNOAPNOnceSimRecordsLoad() {
+        setUpMockContext(true);
+
+        // Insert an MVNO APN matching on SPN, and the MNO APN
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(Carriers.APN, "mvno");
+        contentValues.put(Carriers.NUMERIC, TEST_OPERATOR);
+        contentValues.put(Carriers.MVNO_TYPE, "spn");
+        contentValues.put(Carriers.MVNO_MATCH_DATA, TEST_SPN);
+        mContentResolver.insert(Carriers.CONTENT_URI, contentValues);
+        contentValues = new ContentValues();
+        contentValues.put(Carriers.APN, "mno");
+        contentValues.put(Carriers.NUMERIC, TEST_OPERATOR);
+        mContentResolver.insert(Carriers.CONTENT_URI, contentValues);
+
+        // The SPN isn't loaded yet, so only the MNO APN matches.
+        TelephonyManager telephonyManager =
+                (TelephonyManager) mContext.getSystemService(Context.TELEPHONY_SERVICE);
+        doReturn("").when(telephonyManager).getSimOperatorName();
+        doReturn(false).when(telephonyManager).matchesCurrentSimOperator(
+                anyString(), anyInt(), anyString());
+        final String[] testProjection = { Carriers.APN };
+        try (Cursor cursor = mContentResolver.query(URL_SIM_APN_LIST, testProjection, null,
+                null, null)) {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals("mno", cursor.getString(0));
+        }
+
+        // Once the SIM records load, without any subscription change, the MVNO APN matches.
+        doReturn(TEST_SPN).when(telephonyManager).getSimOperatorName();
+        doReturn(true).when(telephonyManager).matchesCurrentSimOperator(
+                anyString(), anyInt(), eq(TEST_SPN));
+        try (Cursor cursor = mContentResolver.query(URL_SIM_APN_LIST, testProjection, null,
+                null, null)) {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals("mvno", cursor.getString(0));
+        }
+    }
+
     @Test
     @SmallTest
     public void testSIMAPNLIST_MatchTheMNOAPN() {
@@ -2449,4 +2515,339 @@ public class TelephonyProviderTest {
         cursor.moveToFirst();
         assertEquals(TEST_CARRIERID, cursor.getInt(cursor.getColumnIndex(Carriers.CARRIER_ID)));
     }
+
+    /**
+     * Verify that a write to siminfo doesn't wait for a write to carriers, while another write to
+     * carriers does.
+     */
+    @Test
+    @SmallTest
+    public void testSimInfoWriteNotBlockedByCarriersWrite() throws Exception {
+        setUpMockContext(true);
+        ContentValues apn = new ContentValues();
+        apn.put(Carriers.APN, "apnName");
+        apn.put(Carriers.NUMERIC, TEST_OPERATOR);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Uri> carriersInsert;
+        mTelephonyProviderTestable.mCarriersLock.writeLock().lock();
+        try {
+            Future<Uri> simInfoInsert = executor.submit(() -> mContentResolver.insert(
+                    SimInfo.CONTENT_URI, new ContentValues(TEST_SIM_INFO_VALUES_US)));
+            assertNotNull(simInfoInsert.get(5, TimeUnit.SECONDS));
+
+            carriersInsert = executor.submit(() -> mContentResolver.insert(URI_TELEPHONY, apn));
+            try {
+                carriersInsert.get(200, TimeUnit.MILLISECONDS);
+                fail("carriers write didn't wait for the carriers lock");
+            } catch (TimeoutException expected) {
+            }
+        } finally {
+            mTelephonyProviderTestable.mCarriersLock.writeLock().unlock();
+        }
+        assertNotNull(carriersInsert.get(5, TimeUnit.SECONDS));
+        executor.shutdown();
+    }
+
+    /**
+     * Verify that the APN list matching the SIM reflects the writes to carriers made while it was
+     * being queried from other threads.
+     */
+    @Test
+    @SmallTest
+    public void testSIMAPNLIST_MatchesAfterConcurrentWrites() throws Exception {
+        setUpMockContext(true);
+        final int writers = 4;
+        final int apnsPerWriter = 5;
+        final String[] testProjection = { Carriers.APN };
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(Carriers.APN, "apn");
+        contentValues.put(Carriers.NUMERIC, TEST_OPERATOR);
+        mContentResolver.insert(URI_TELEPHONY, contentValues);
+        try (Cursor cursor = mContentResolver.query(URL_SIM_APN_LIST, testProjection, null,
+                null, null)) {
+            assertEquals(1, cursor.getCount());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            final int writer = w;
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < apnsPerWriter; i++) {
+                    ContentValues values = new ContentValues();
+                    values.put(Carriers.APN, "apn" + writer + "_" + i);
+                    values.put(Carriers.NUMERIC, TEST_OPERATOR);
+                    mContentResolver.insert(URI_TELEPHONY, values);
+                    // Not matching the SIM.
+                    values.put(Carriers.NUMERIC, TEST_OPERATOR_SECOND_MCCMNC);
+                    mContentResolver.insert(URI_TELEPHONY, values);
+                    mContentResolver.query(URL_SIM_APN_LIST, testProjection, null, null, null)
+                            .close();
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        Set<String> expected = new HashSet<>();
+        expected.add("apn");
+        for (int w = 0; w < writers; w++) {
+            for (int i = 0; i < apnsPerWriter; i++) {
+                expected.add("apn" + w + "_" + i);
+            }
+        }
+        Set<String> matching = new HashSet<>();
+        try (Cursor cursor = mContentResolver.query(URL_SIM_APN_LIST, testProjection, null,
+                null, null)) {
+            while (cursor.moveToNext()) {
+                matching.add(cursor.getString(0));
+            }
+        }
+        assertEquals(expected, matching);
+    }
+
+    /**
+     * Verify that the APN list matching the SIM reflects each insert, update and delete of
+     * carriers made through the provider.
+     */
+    @Test
+    @SmallTest
+    public void testSIMAPNLIST_MatchesAfterEachWrite() {
+        setUpMockContext(true);
+        final String selection = Carriers.APN + "=?";
+        final String[] selectionArgs = { "apn" };
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(Carriers.APN, "apn");
+        contentValues.put(Carriers.NAME, "name");
+        contentValues.put(Carriers.NUMERIC, TEST_OPERATOR);
+        mContentResolver.insert(URI_TELEPHONY, contentValues);
+        assertEquals(Arrays.asList("name"), getSimApnNames());
+        assertEquals(Arrays.asList("name"), getSimApnNames());
+
+        contentValues = new ContentValues();
+        contentValues.put(Carriers.NAME, "new name");
+        assertEquals(1, mContentResolver.update(URI_TELEPHONY, contentValues, selection,
+                selectionArgs));
+        assertEquals(Arrays.asList("new name"), getSimApnNames());
+
+        assertEquals(1, mContentResolver.delete(URI_TELEPHONY, selection, selectionArgs));
+        assertEquals(Collections.emptyList(), getSimApnNames());
+    }
+
+    private List<String> getSimApnNames() {
+        List<String> names = new ArrayList<>();
+        try (Cursor cursor = mContentResolver.query(URL_SIM_APN_LIST,
+                new String[] { Carriers.NAME }, null, null, null)) {
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Verify that only the APNs added, removed or changed in xml are applied to the database.
+     */
+    @Test
+    @SmallTest
+    public void testUpdateDatabaseIncrementally_appliesChangedApns() {
+        setUpMockContext(true);
+        createApnDatabase(
+                getApnXml("Internet", "internet", "default,supl"),
+                getApnXml("MMS", "mms", "mms"),
+                getApnXml("Old", "old", "default"));
+        long internetId = getApnId("internet");
+
+        mockApnsXml(
+                getApnXml("Internet", "internet", "default,supl"),
+                getApnXml("MMS 2", "mms", "mms"),
+                getApnXml("New", "new", "default"));
+        assertTrue(mApnDbHelper.updateDatabaseIncrementally(mApnDb));
+
+        assertEquals(Arrays.asList(
+                "internet/Internet/default,supl/0/" + Carriers.UNEDITED,
+                "mms/MMS 2/mms/0/" + Carriers.UNEDITED,
+                "new/New/default/0/" + Carriers.UNEDITED), getApnRows());
+        // The unchanged APN wasn't reloaded.
+        assertEquals(internetId, getApnId("internet"));
+    }
+
+    /**
+     * Verify that a changed APN is merged into the row the user edited, as on a full reload.
+     */
+    @Test
+    @SmallTest
+    public void testUpdateDatabaseIncrementally_mergesChangedApnIntoUserEditedRow() {
+        setUpMockContext(true);
+        createApnDatabase(
+                getApnXml("Internet", "internet", "default"),
+                getApnXml("MMS", "mms", "mms"));
+        ContentValues edit = new ContentValues();
+        edit.put(Carriers.TYPE, "mms,supl");
+        edit.put(Carriers.EDITED_STATUS, Carriers.USER_EDITED);
+        mApnDb.update("carriers", edit, Carriers.APN + "=?", new String[] { "mms" });
+
+        mockApnsXml(
+                getApnXml("Internet", "internet", "default"),
+                getApnXml("MMS 2", "mms", "mms,ia"));
+        assertTrue(mApnDbHelper.updateDatabaseIncrementally(mApnDb));
+
+        assertEquals(Arrays.asList(
+                "internet/Internet/default/0/" + Carriers.UNEDITED,
+                "mms/MMS 2/mms,supl,ia/0/" + Carriers.USER_EDITED), getApnRows());
+    }
+
+    /**
+     * Verify that the rows deleted by the user are dropped once their APN is removed from xml.
+     */
+    @Test
+    @SmallTest
+    public void testUpdateDatabaseIncrementally_dropsUserDeletedRowsRemovedFromXml() {
+        setUpMockContext(true);
+        createApnDatabase(
+                getApnXml("Internet", "internet", "default"),
+                getApnXml("Old", "old", "default"));
+        setApnEditedStatus("internet", Carriers.USER_DELETED);
+        setApnEditedStatus("old", Carriers.USER_DELETED);
+
+        mockApnsXml(getApnXml("Internet", "internet", "default"));
+        assertTrue(mApnDbHelper.updateDatabaseIncrementally(mApnDb));
+
+        assertEquals(Arrays.asList("internet/Internet/default/0/" + Carriers.USER_DELETED),
+                getApnRows());
+    }
+
+    /**
+     * Verify that nothing is changed without the APNs last loaded, so that the caller reloads
+     * them all, and that the full reload records them again.
+     */
+    @Test
+    @SmallTest
+    public void testUpdateDatabaseIncrementally_fallsBackWithoutRecordedApns() {
+        setUpMockContext(true);
+        createApnDatabase(getApnXml("Internet", "internet", "default"));
+        mApnDb.delete("apn_conf_entries", null, null);
+
+        mockApnsXml(
+                getApnXml("Internet", "internet", "default"),
+                getApnXml("New", "new", "default"));
+        assertFalse(mApnDbHelper.updateDatabaseIncrementally(mApnDb));
+        assertEquals(Arrays.asList("internet/Internet/default/0/" + Carriers.UNEDITED),
+                getApnRows());
+
+        // Reload everything, as updateApnDb does.
+        mApnDb.delete("carriers", Carriers.EDITED_STATUS + "=" + Carriers.UNEDITED, null);
+        mApnDbHelper.initDatabase(mApnDb);
+        assertEquals(Arrays.asList(
+                "internet/Internet/default/0/" + Carriers.UNEDITED,
+                "new/New/default/0/" + Carriers.UNEDITED), getApnRows());
+
+        mockApnsXml(getApnXml("Internet", "internet", "default"));
+        assertTrue(mApnDbHelper.updateDatabaseIncrementally(mApnDb));
+        assertEquals(Arrays.asList("internet/Internet/default/0/" + Carriers.UNEDITED),
+                getApnRows());
+    }
+
+    /**
+     * Verify that loading APNs from xml merges those with the same unique fields into one row,
+     * gives a dun APN of a persist_apns_for_plmn operator a row of its own, and keeps the edited
+     * status of the existing rows, as when each conflict was found by a failing insert.
+     */
+    @Test
+    @SmallTest
+    public void testInitDatabase_mergesConflictingApns() {
+        setUpMockContext(true);
+        // persist_apns_for_plmn
+        when(mockContextResources.getStringArray(anyInt()))
+                .thenReturn(new String[] { TEST_OPERATOR });
+        createApnDatabase(
+                getApnXml("Internet", "internet", "default,supl"),
+                getApnXml("MMS", "mms", "mms"),
+                getApnXml("Old", "old", "default"));
+        setApnEditedStatus("internet", Carriers.USER_EDITED);
+        setApnEditedStatus("mms", Carriers.USER_DELETED);
+        setApnEditedStatus("old", Carriers.USER_DELETED);
+
+        mockApnsXml(
+                getApnXml("Internet", "internet", "default,supl"),
+                // Only differs by dun, so it's added with profile id 1...
+                getApnXml("Internet", "internet", "default,supl,dun"),
+                // ...and this one conflicts with that row, which the loader didn't index.
+                getApnXml("Internet", "internet", "default,supl,dun")
+                        .replace(" />", " profile_id=\"1\" />"),
+                getApnXml("MMS", "mms", "mms"),
+                getApnXml("MMS", "mms", "supl"),
+                getApnXml("New", "new", "default"),
+                getApnXml("New", "new", "ia"));
+        // Reload everything, as updateApnDb does.
+        mApnDb.delete("carriers", Carriers.EDITED_STATUS + "=" + Carriers.UNEDITED, null);
+        mApnDbHelper.initDatabase(mApnDb);
+
+        assertEquals(Arrays.asList(
+                "internet/Internet/default,supl/0/" + Carriers.USER_EDITED,
+                "internet/Internet/default,supl,dun/1/" + Carriers.UNEDITED,
+                "mms/MMS/mms,supl/0/" + Carriers.USER_DELETED,
+                "new/New/default,ia/0/" + Carriers.UNEDITED), getApnRows());
+    }
+
+    private static String getApnXml(String carrier, String apn, String type) {
+        return "<apn carrier=\"" + carrier + "\" mcc=\"" + TEST_MCC + "\" mnc=\"" + TEST_MNC
+                + "\" apn=\"" + apn + "\" type=\"" + type + "\" />";
+    }
+
+    /**
+     * Makes the given APNs those of the framework apns xml. Its version doesn't match the one of
+     * the partner apns xml on the device, if any, so that those APNs aren't loaded.
+     */
+    private void mockApnsXml(String... apns) {
+        String xml = "<apns version=\"0\">" + TextUtils.join("", apns) + "</apns>";
+        doAnswer(invocation -> {
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(new StringReader(xml));
+            return mock(XmlResourceParser.class, delegatesTo(parser));
+        }).when(mockContextResources).getXml(anyInt());
+    }
+
+    /**
+     * Creates a database with the given APNs loaded from xml, as DatabaseHelper#onCreate does.
+     */
+    private void createApnDatabase(String... apns) {
+        mockApnsXml(apns);
+        mApnDbHelper = mTelephonyProviderTestable.new DatabaseHelper(mContext);
+        mApnDb = SQLiteDatabase.create(null);
+        mApnDbHelper.onCreate(mApnDb);
+    }
+
+    private long getApnId(String apn) {
+        try (Cursor cursor = mApnDb.query("carriers", new String[] { Carriers._ID },
+                Carriers.APN + "=?", new String[] { apn }, null, null, null)) {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        }
+    }
+
+    private void setApnEditedStatus(String apn, int editedStatus) {
+        ContentValues values = new ContentValues();
+        values.put(Carriers.EDITED_STATUS, editedStatus);
+        mApnDb.update("carriers", values, Carriers.APN + "=?", new String[] { apn });
+    }
+
+    /**
+     * Returns the apn, name, type, profile id and edited status of each row of mApnDb.
+     */
+    private List<String> getApnRows() {
+        List<String> rows = new ArrayList<>();
+        try (Cursor cursor = mApnDb.query("carriers", new String[] { Carriers.APN,
+                Carriers.NAME, Carriers.TYPE, Carriers.PROFILE_ID, Carriers.EDITED_STATUS },
+                null, null, null, null, Carriers.APN + "," + Carriers.PROFILE_ID)) {
+            while (cursor.moveToNext()) {
+                rows.add(cursor.getString(0) + "/" + cursor.getString(1) + "/"
+                        + cursor.getString(2) + "/" + cursor.getInt(3) + "/" + cursor.getInt(4));
+            }
+        }
+        return rows;
+    }
 }
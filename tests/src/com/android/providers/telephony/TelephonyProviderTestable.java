@@ -74,6 +74,12 @@ public class TelephonyProviderTestable extends TelephonyProvider {
         Log.d(TAG, "initDatabaseWithDatabaseHelper called; doing nothing");
     }
 
+    @Override
+    boolean updateDatabaseIncrementallyWithDatabaseHelper(SQLiteDatabase db) {
+        Log.d(TAG, "updateDatabaseIncrementallyWithDatabaseHelper called; returning false");
+        return false;
+    }
+
     @Override
     boolean needApnDbUpdate() {
         Log.d(TAG, "needApnDbUpdate called; returning false");